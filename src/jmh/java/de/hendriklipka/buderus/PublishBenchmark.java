@@ -0,0 +1,89 @@
+package de.hendriklipka.buderus;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import de.hendriklipka.buderus.km200.KM200Device;
+import de.hendriklipka.buderus.km200.KM200Fields;
+import de.hendriklipka.buderus.km200.KM200Fixtures;
+import de.hendriklipka.buderus.km200.KM200Message;
+
+/**
+ * Turning a decoded KM200 response into the MQTT topic and message.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PublishBenchmark
+{
+    private static final String SERVICE = "/system/sensors/temperatures/outdoor_t1";
+    private static final String TOPIC = "buderus{service}";
+    private static final String MESSAGE = "temperature,sensor=outdoor value={value_d}";
+
+    private KM200Message _message;
+    private double _value;
+    private ServiceMapping _mapping;
+    private final MessageBuffer _buffer = new MessageBuffer();
+    private final KM200Fields _fields = new KM200Fields();
+
+    @Setup
+    public void setup()
+    {
+        final KM200Device device = KM200Fixtures.device();
+        _message = KM200Fixtures.decoded(device, KM200Fixtures.FLOAT_VALUE);
+        _value = MqttPublisher.parseDoubleValue(_message);
+        _mapping = new ServiceMapping();
+        _mapping.setServiceName(SERVICE);
+        _mapping.setMqttTopic(TOPIC);
+        _mapping.setMqttMessage(MESSAGE);
+        _mapping.setType("float");
+        _mapping.compileTemplates();
+    }
+
+    /**
+     * What {@link MqttPublisher#parseDoubleValue(KM200Message)} does for each new message.
+     */
+    @Benchmark
+    public double extractFields()
+    {
+        _fields.parse(_message.getData(), _message.getLength(), _message.getCharset());
+        return _fields.getNumericValue();
+    }
+
+    /**
+     * The full JSON parse, for comparison.
+     */
+    @Benchmark
+    public double parseJsonObject()
+    {
+        return new JSONObject(new JSONTokener(_message.reader())).getDouble("value");
+    }
+
+    @Benchmark
+    public MessageParameters messageParameters()
+    {
+        return new MessageParameters(SERVICE, ServiceType.FLOAT, _value);
+    }
+
+    @Benchmark
+    public String replaceTopicAndMessage()
+    {
+        final MessageParameters params = new MessageParameters(SERVICE, ServiceType.FLOAT, _value);
+        return params.replace(TOPIC) + params.replace(MESSAGE);
+    }
+
+    @Benchmark
+    public byte[] renderTemplates()
+    {
+        final MessageParameters params = new MessageParameters(SERVICE, ServiceType.FLOAT, _value);
+        final String topic = _mapping.getTopicTemplate().renderToString(params, _buffer);
+        _mapping.getMessageTemplate().render(params, _buffer);
+        return topic.isEmpty() ? null : _buffer.toByteArray();
+    }
+}
@@ -0,0 +1,71 @@
+package de.hendriklipka.buderus.km200;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Decoding of encrypted KM200 responses.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DecodeBenchmark
+{
+    @Param({"floatValue", "stringValue", "refEnum"})
+    public String response;
+
+    private KM200Comm _comm;
+    private KM200Device _device;
+    private byte[] _encoded;
+    private byte[] _padded;
+    private KM200Message _message;
+
+    @Setup
+    public void setup()
+    {
+        _comm = new KM200Comm();
+        _device = KM200Fixtures.device();
+        final String json;
+        switch (response)
+        {
+            case "stringValue":
+                json = KM200Fixtures.STRING_VALUE;
+                break;
+            case "refEnum":
+                json = KM200Fixtures.REF_ENUM;
+                break;
+            default:
+                json = KM200Fixtures.FLOAT_VALUE;
+                break;
+        }
+        _encoded = KM200Fixtures.encrypt(_device, json);
+        _message = KM200Fixtures.decoded(_device, json);
+        _padded = Arrays.copyOf(_message.getData(), (_message.getLength() + 15) / 16 * 16);
+    }
+
+    @Benchmark
+    public String decodeMessage()
+    {
+        return _comm.decodeMessage(_device, _encoded);
+    }
+
+    @Benchmark
+    public int decodeInPlace()
+    {
+        KM200Fixtures.reset(_message, _encoded);
+        _device.getDecoder().decode(_message, _device.getCharset());
+        return _message.getLength();
+    }
+
+    @Benchmark
+    public byte[] removeZeroPadding()
+    {
+        return KM200Comm.removeZeroPadding(_padded);
+    }
+}
@@ -0,0 +1,68 @@
+package de.hendriklipka.buderus.km200;
+
+import de.hendriklipka.buderus.km200.simulator.KM200Simulator;
+import de.hendriklipka.buderus.km200.simulator.SimulatedServiceTree;
+
+/**
+ * Realistic KM200 responses, encrypted the same way the device does it: zero padded to the AES block size,
+ * AES/ECB with the private key, then Base64.
+ */
+public final class KM200Fixtures
+{
+    /** a fixed private key, so the fixtures are reproducible */
+    public static final String CRYPT_KEY_PRIV = "8a1d5ba5d7c1e29f3b65d0e4a7c89b1f0e2d4c6b8a9f1e3d5c7b9a0f2e4d6c8b";
+
+    public static final String FLOAT_VALUE = "{\"id\":\"/system/sensors/temperatures/outdoor_t1\",\"type\":\"floatValue\","
+            + "\"writeable\":0,\"recordable\":0,\"value\":7.4,\"unitOfMeasure\":\"C\","
+            + "\"state\":[{\"open\":-3276.8},{\"short\":3276.7}]}";
+
+    public static final String STRING_VALUE = "{\"id\":\"/heatingCircuits/hc1/operationMode\",\"type\":\"stringValue\","
+            + "\"writeable\":1,\"recordable\":0,\"value\":\"auto\",\"allowedValues\":[\"manual\",\"auto\"]}";
+
+    public static final String REF_ENUM = "{\"id\":\"/system/sensors/temperatures\",\"type\":\"refEnum\",\"references\":["
+            + "{\"id\":\"/system/sensors/temperatures/outdoor_t1\",\"uri\":\"http://192.168.0.1/system/sensors/temperatures/outdoor_t1\"},"
+            + "{\"id\":\"/system/sensors/temperatures/supply_t1\",\"uri\":\"http://192.168.0.1/system/sensors/temperatures/supply_t1\"},"
+            + "{\"id\":\"/system/sensors/temperatures/supply_t1_setpoint\",\"uri\":\"http://192.168.0.1/system/sensors/temperatures/supply_t1_setpoint\"},"
+            + "{\"id\":\"/system/sensors/temperatures/hotWater_t2\",\"uri\":\"http://192.168.0.1/system/sensors/temperatures/hotWater_t2\"},"
+            + "{\"id\":\"/system/sensors/temperatures/return\",\"uri\":\"http://192.168.0.1/system/sensors/temperatures/return\"}]}";
+
+    private KM200Fixtures()
+    {
+    }
+
+    public static KM200Device device()
+    {
+        KM200Device device = new KM200Device();
+        device.setIP4Address("127.0.0.1");
+        device.setCryptKeyPriv(CRYPT_KEY_PRIV);
+        device.setCharSet("UTF-8");
+        return device;
+    }
+
+    public static byte[] encrypt(final KM200Device device, final String json)
+    {
+        return new KM200Simulator(new SimulatedServiceTree(), device.getCryptKeyPriv()).encrypt(json);
+    }
+
+    /**
+     * @return a new message holding the decoded JSON
+     */
+    public static KM200Message decoded(final KM200Device device, final String json)
+    {
+        final KM200Message message = new KM200Message();
+        message.setRaw(encrypt(device, json));
+        if (!device.getDecoder().decode(message, device.getCharset()))
+        {
+            throw new IllegalStateException("Cannot decode fixture");
+        }
+        return message;
+    }
+
+    /**
+     * Refills the message with a raw, still encoded response.
+     */
+    public static void reset(final KM200Message message, final byte[] encoded)
+    {
+        message.setRaw(encoded);
+    }
+}
@@ -0,0 +1,48 @@
+package de.hendriklipka.buderus.km200;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.openjdk.jol.info.GraphLayout;
+
+import de.hendriklipka.buderus.km200.simulator.KM200Simulator;
+import de.hendriklipka.buderus.km200.simulator.SimulatedServiceTree;
+
+/**
+ * Heap footprint of a completely discovered service tree (the services by name and the path index of the device),
+ * measured with JOL by walking the object graph. The tree comes from a {@link KM200Simulator}, with the heating
+ * circuits and extra sensors given as arguments. Run via './gradlew footprint [-Pcircuits=4 -Psensors=200]'.
+ */
+public class ServiceTreeFootprint
+{
+    public static void main(final String[] args) throws IOException
+    {
+        final int circuits = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        final int sensors = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        final KM200Device device = KM200Fixtures.device();
+        final KM200Simulator simulator = new KM200Simulator(SimulatedServiceTree.synthetic(circuits, sensors), device.getCryptKeyPriv());
+        simulator.start();
+        device.setIP4Address(simulator.getAddress());
+        final KM200Comm comm = new KM200Comm(new KM200HttpSettings());
+        final List<String> roots = new ArrayList<>();
+        for (KM200ServiceTypes root : KM200ServiceTypes.values())
+        {
+            roots.add(root.getDescription());
+        }
+        final Map<String, KM200CommObject> services = new KM200Discovery(comm, 1).discover(device, roots);
+        device.replaceServices(services);
+        comm.close();
+        simulator.close();
+
+        final GraphLayout byName = GraphLayout.parseInstance(device.getServices());
+        final GraphLayout index = GraphLayout.parseInstance(device.getServiceIndex());
+        final GraphLayout both = GraphLayout.parseInstance(device.getServices(), device.getServiceIndex());
+        System.out.println(both.toFootprint());
+        System.out.printf("%d services: by name %d bytes, path index %d bytes, together %d bytes (%d bytes per service)%n",
+                device.getServices().size(), byName.totalSize(), index.totalSize(), both.totalSize(),
+                both.totalSize() / device.getServices().size());
+    }
+}
@@ -0,0 +1,82 @@
+package de.hendriklipka.buderus.km200;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import de.hendriklipka.buderus.km200.simulator.KM200Simulator;
+import de.hendriklipka.buderus.km200.simulator.SimulatedServiceTree;
+
+/**
+ * Requests against a local {@link KM200Simulator}, including HTTP, decryption and decoding. The simulator answers
+ * at once by default; set a latency to see how the client behaves with a slow device.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SimulatorBenchmark
+{
+    @Param({"0"})
+    public int latencyMillis;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private KM200Simulator _simulator;
+    private KM200Comm _comm;
+    private KM200Device _device;
+    private List<String> _roots;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        _device = KM200Fixtures.device();
+        _simulator = new KM200Simulator(SimulatedServiceTree.synthetic(2, 100), _device.getCryptKeyPriv());
+        _simulator.setMaxConcurrentRequests(parallelism);
+        _simulator.setLatency(latencyMillis, latencyMillis);
+        _simulator.start();
+        _device.setIP4Address(_simulator.getAddress());
+
+        final KM200HttpSettings settings = new KM200HttpSettings();
+        settings.setMaxConnections(parallelism);
+        _comm = new KM200Comm(settings);
+        _roots = new ArrayList<>();
+        for (KM200ServiceTypes root : KM200ServiceTypes.values())
+        {
+            _roots.add(root.getDescription());
+        }
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        _comm.close();
+        _simulator.close();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int fetchMessage()
+    {
+        return _comm.fetchMessage(_device, "/system/sensors/temperatures/outdoor_t1").getLength();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    public Map<String, KM200CommObject> discover()
+    {
+        return new KM200Discovery(_comm, parallelism).discover(_device, _roots);
+    }
+}
@@ -0,0 +1,103 @@
+package de.hendriklipka.buderus;
+
+/**
+ * Configuration of the aggregation mode: instead of one MQTT message per service, the values of a cycle are
+ * collected into one document per group.
+ */
+public class AggregationConfig
+{
+    private String _format = "json";
+    private String _topic = "buderus{group}";
+    private String _measurement = "buderus";
+    private int _subtreeDepth = 2;
+    private boolean _timestamps = true;
+    private int _qos = 0;
+    private boolean _retained = false;
+
+    /**
+     * @return 'json' for a JSON object with one entry per value, or 'lineProtocol' for one line in InfluxDB line
+     * protocol, with one field per value
+     */
+    public String getFormat()
+    {
+        return _format;
+    }
+
+    public void setFormat(final String format)
+    {
+        _format = format;
+    }
+
+    /**
+     * @return the topic for the documents; {group} is replaced with the name of the group
+     */
+    public String getTopic()
+    {
+        return _topic;
+    }
+
+    public void setTopic(final String topic)
+    {
+        _topic = topic;
+    }
+
+    /**
+     * @return the measurement name, for the line protocol
+     */
+    public String getMeasurement()
+    {
+        return _measurement;
+    }
+
+    public void setMeasurement(final String measurement)
+    {
+        _measurement = measurement;
+    }
+
+    /**
+     * @return how many elements of the service path make up the group of a service without an explicit group, e.g.
+     * 2 groups '/system/sensors/temperatures/outdoor_t1' into '/system/sensors'
+     */
+    public int getSubtreeDepth()
+    {
+        return _subtreeDepth;
+    }
+
+    public void setSubtreeDepth(final int subtreeDepth)
+    {
+        _subtreeDepth = subtreeDepth;
+    }
+
+    /**
+     * @return whether each document contains the time of its cycle
+     */
+    public boolean isTimestamps()
+    {
+        return _timestamps;
+    }
+
+    public void setTimestamps(final boolean timestamps)
+    {
+        _timestamps = timestamps;
+    }
+
+    public int getQos()
+    {
+        return _qos;
+    }
+
+    public void setQos(final int qos)
+    {
+        _qos = qos;
+    }
+
+    public boolean isRetained()
+    {
+        return _retained;
+    }
+
+    public void setRetained(final boolean retained)
+    {
+        _retained = retained;
+    }
+}
@@ -0,0 +1,368 @@
+package de.hendriklipka.buderus;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the values of one publishing cycle into one document per group, instead of one MQTT message per value.
+ * <p>
+ * A mapping belongs to the group configured for it, or to the subtree of its service (the first elements of the
+ * service path). Each document is rendered directly into its own buffer while the values come in: the constant
+ * parts (document prefix, field names) are encoded once when the configuration is loaded. At the end of the cycle
+ * {@link #publish(List, Listener)} sends each non-empty document as a single message.
+ * <p>
+ * Not thread-safe, only used from the publishing thread.
+ */
+class Aggregator
+{
+    private static final Logger logger = LoggerFactory.getLogger(Aggregator.class);
+
+    enum Format
+    {
+        /** {"timestamp":1700000000000,"temperatures.outdoor_t1":7.4,...} */
+        JSON,
+        /** buderus,group=/system/sensors temperatures.outdoor_t1=7.4,... 1700000000000000000 */
+        LINE_PROTOCOL;
+
+        static Format parse(final String format)
+        {
+            final String name = null == format ? "json" : format.toLowerCase(Locale.US);
+            switch (name)
+            {
+                case "json":
+                    return JSON;
+                case "lineprotocol":
+                case "line":
+                case "influx":
+                    return LINE_PROTOCOL;
+                default:
+                    throw new IllegalArgumentException("Unknown format [" + format + "], use 'json' or 'lineProtocol'.");
+            }
+        }
+    }
+
+    /**
+     * Called for each value of a document after the document was handed to the MQTT servers.
+     */
+    interface Listener
+    {
+        /**
+         * @param nanos    how long publishing the document took
+         * @param accepted whether at least one server accepted the document
+         */
+        void published(int index, double value, long nanos, boolean accepted);
+    }
+
+    private static final byte[] JSON_TIMESTAMP = "\"timestamp\":".getBytes(StandardCharsets.US_ASCII);
+
+    private final Format _format;
+    private final boolean _timestamps;
+    private final int _qos;
+    private final boolean _retained;
+
+    /* per mapping: the group index (-1 when not aggregated), and the encoded field name including its separator */
+    private final int[] _groups;
+    private final byte[][] _fieldPrefixes;
+
+    /* per group */
+    private final String[] _groupNames;
+    private final String[] _topics;
+    private final byte[][] _documentPrefixes;
+    private final MessageBuffer[] _documents;
+    private final int[][] _members;
+    private final double[][] _values;
+    private final int[] _counts;
+
+    /* the groups with values in the current cycle, in the order of their first value */
+    private final int[] _open;
+    private int _openCount = 0;
+    private long _cycleMillis;
+
+    /**
+     * @param gateway the name of the gateway in fleet mode, added to each document; null when there is only one
+     */
+    Aggregator(final AggregationConfig config, final List<ServiceMapping> mappings, final String gateway)
+    {
+        _format = Format.parse(config.getFormat());
+        _timestamps = config.isTimestamps();
+        _qos = config.getQos();
+        _retained = config.isRetained();
+        _groups = new int[mappings.size()];
+        _fieldPrefixes = new byte[mappings.size()][];
+
+        final Map<String, Integer> groupIndexes = new LinkedHashMap<>();
+        final List<Set<String>> groupFields = new ArrayList<>();
+        final List<Integer> groupSizes = new ArrayList<>();
+        for (int i = 0; i < mappings.size(); i++)
+        {
+            final ServiceMapping mapping = mappings.get(i);
+            if (!mapping.isAggregate())
+            {
+                _groups[i] = -1;
+                continue;
+            }
+            final String service = mapping.getServiceName();
+            final String group = null != mapping.getGroup() ? mapping.getGroup() : subtree(service, config.getSubtreeDepth());
+            String field = mapping.getField();
+            if (null == field)
+            {
+                // the part of the service path below the group, or the whole path for explicit groups
+                final String relative = null == mapping.getGroup() && service.length() > group.length() ? service.substring(group.length()) : service;
+                field = relative.startsWith("/") ? relative.substring(1) : relative;
+                if (field.isEmpty())
+                {
+                    field = service.substring(service.lastIndexOf('/') + 1);
+                }
+                field = field.replace('/', '.');
+            }
+            final int g = groupIndexes.computeIfAbsent(group, k -> {
+                groupFields.add(new HashSet<>());
+                groupSizes.add(0);
+                return groupIndexes.size();
+            });
+            if (!groupFields.get(g).add(field))
+            {
+                logger.warn("Field [{}] of service {} appears more than once in aggregation group [{}].", field, service, group);
+            }
+            groupSizes.set(g, groupSizes.get(g) + 1);
+            _groups[i] = g;
+            _fieldPrefixes[i] = encodeField(field);
+        }
+
+        final int groupCount = groupIndexes.size();
+        _groupNames = groupIndexes.keySet().toArray(new String[0]);
+        _topics = new String[groupCount];
+        _documentPrefixes = new byte[groupCount][];
+        _documents = new MessageBuffer[groupCount];
+        _members = new int[groupCount][];
+        _values = new double[groupCount][];
+        _counts = new int[groupCount];
+        _open = new int[groupCount];
+        for (int g = 0; g < groupCount; g++)
+        {
+            _topics[g] = Gateway.expand(config.getTopic(), gateway).replace("{group}", _groupNames[g]);
+            final String prefix;
+            if (_format == Format.JSON)
+            {
+                prefix = null == gateway ? "{" : "{\"gateway\":" + JSONObject.quote(gateway) + ",";
+            }
+            else
+            {
+                prefix = escape(config.getMeasurement(), false) + (null == gateway ? "" : ",gateway=" + escape(gateway, true))
+                        + ",group=" + escape(_groupNames[g], true) + " ";
+            }
+            _documentPrefixes[g] = prefix.getBytes(StandardCharsets.UTF_8);
+            _documents[g] = new MessageBuffer();
+            _members[g] = new int[groupSizes.get(g)];
+            _values[g] = new double[groupSizes.get(g)];
+        }
+        logger.info("Aggregating {} services into {} documents per cycle ({}).", mappings.size() - count(_groups, -1), groupCount, _format);
+    }
+
+    /**
+     * @return the group of the mapping, -1 when it is published on its own
+     */
+    int getGroup(final int index)
+    {
+        return _groups[index];
+    }
+
+    int getGroupCount()
+    {
+        return _groupNames.length;
+    }
+
+    boolean isAggregated(final int index)
+    {
+        return _groups[index] >= 0;
+    }
+
+    /**
+     * Starts a new cycle.
+     *
+     * @param epochMillis the time stamp of the documents of this cycle
+     */
+    void begin(final long epochMillis)
+    {
+        _cycleMillis = epochMillis;
+        for (int n = 0; n < _openCount; n++)
+        {
+            _counts[_open[n]] = 0;
+        }
+        _openCount = 0;
+    }
+
+    /**
+     * Appends a value to the document of its group.
+     *
+     * @return false when the value cannot be represented (NaN or infinite)
+     */
+    boolean add(final int index, final double value)
+    {
+        if (!Double.isFinite(value))
+        {
+            return false;
+        }
+        final int g = _groups[index];
+        final MessageBuffer document = _documents[g];
+        final int count = _counts[g];
+        if (0 == count)
+        {
+            _open[_openCount++] = g;
+            document.reset();
+            document.append(_documentPrefixes[g]);
+            if (_timestamps && _format == Format.JSON)
+            {
+                document.append(JSON_TIMESTAMP);
+                document.append(Long.toString(_cycleMillis));
+            }
+        }
+        if (count > 0 || (_timestamps && _format == Format.JSON))
+        {
+            document.append((byte) ',');
+        }
+        document.append(_fieldPrefixes[index]);
+        document.append(Double.toString(value));
+        _members[g][count] = index;
+        _values[g][count] = value;
+        _counts[g] = count + 1;
+        return true;
+    }
+
+    /**
+     * Completes the documents of this cycle and hands each of them to all MQTT servers.
+     *
+     * @return the number of documents
+     */
+    int publish(final List<BrokerConnection> brokers, final Listener listener)
+    {
+        for (int n = 0; n < _openCount; n++)
+        {
+            final int g = _open[n];
+            final MessageBuffer document = _documents[g];
+            if (_format == Format.JSON)
+            {
+                document.append((byte) '}');
+            }
+            else if (_timestamps)
+            {
+                document.append((byte) ' ');
+                document.append(Long.toString(_cycleMillis * 1_000_000L));
+            }
+            final long start = System.nanoTime();
+            final MqttMessage message = new MqttMessage(document.toByteArray());
+            message.setQos(_qos);
+            message.setRetained(_retained);
+            logger.debug("Publish MQTT message '{}'->'{}'", _topics[g], message);
+            boolean accepted = false;
+            for (BrokerConnection broker : brokers)
+            {
+                accepted |= broker.publish(_topics[g], message);
+            }
+            final long nanos = System.nanoTime() - start;
+            final int[] members = _members[g];
+            final double[] values = _values[g];
+            for (int i = 0; i < _counts[g]; i++)
+            {
+                listener.published(members[i], values[i], nanos, accepted);
+            }
+            _counts[g] = 0;
+        }
+        final int documents = _openCount;
+        _openCount = 0;
+        return documents;
+    }
+
+    /**
+     * @return the first elements of the service path, e.g. '/system/sensors' for depth 2
+     */
+    static String subtree(final String service, final int depth)
+    {
+        int end = 0;
+        for (int level = 0; level < Math.max(1, depth); level++)
+        {
+            final int next = service.indexOf('/', end + 1);
+            if (next < 0)
+            {
+                // the service itself is not deeper than the subtree, group it with its parent
+                final int parent = service.lastIndexOf('/');
+                return parent > 0 ? service.substring(0, parent) : service;
+            }
+            end = next;
+        }
+        return service.substring(0, end);
+    }
+
+    private byte[] encodeField(final String field)
+    {
+        final StringBuilder sb = new StringBuilder(field.length() + 4);
+        if (_format == Format.JSON)
+        {
+            sb.append('"');
+            for (int i = 0; i < field.length(); i++)
+            {
+                final char c = field.charAt(i);
+                if (c == '"' || c == '\\')
+                {
+                    sb.append('\\').append(c);
+                }
+                else if (c < 0x20)
+                {
+                    sb.append(String.format("\\u%04x", (int) c));
+                }
+                else
+                {
+                    sb.append(c);
+                }
+            }
+            sb.append("\":");
+        }
+        else
+        {
+            sb.append(escape(field, true)).append('=');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Escapes a measurement name, or (with equalsSign) a tag key, tag value or field key for the line protocol.
+     */
+    static String escape(final String text, final boolean equalsSign)
+    {
+        final StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++)
+        {
+            final char c = text.charAt(i);
+            if (c == ',' || c == ' ' || (equalsSign && c == '='))
+            {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static int count(final int[] values, final int value)
+    {
+        int count = 0;
+        for (int v : values)
+        {
+            if (v == value)
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,47 @@
+package de.hendriklipka.buderus;
+
+/**
+ * Configuration of the local HTTP API, which serves the last known values and the discovered services.
+ */
+public class ApiConfig
+{
+    private String _address = "127.0.0.1";
+    private int _port = 8080;
+    private int _threads = 2;
+
+    /**
+     * @return the address to listen on; '0.0.0.0' for all interfaces
+     */
+    public String getAddress()
+    {
+        return _address;
+    }
+
+    public void setAddress(final String address)
+    {
+        _address = address;
+    }
+
+    public int getPort()
+    {
+        return _port;
+    }
+
+    public void setPort(final int port)
+    {
+        _port = port;
+    }
+
+    /**
+     * @return the number of requests answered at the same time
+     */
+    public int getThreads()
+    {
+        return _threads;
+    }
+
+    public void setThreads(final int threads)
+    {
+        _threads = threads;
+    }
+}
@@ -0,0 +1,176 @@
+package de.hendriklipka.buderus;
+
+import de.hendriklipka.buderus.km200.KM200Comm;
+import de.hendriklipka.buderus.km200.KM200Device;
+import de.hendriklipka.buderus.metrics.LatencyHistogram;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the overall metrics of the bridge, registered as MBean "type=Bridge". The counters are lock-free, so
+ * updating them is cheap enough for every published value.
+ */
+class BridgeStats implements BridgeStatsMXBean
+{
+    private final KM200Device _device;
+    private final KM200Comm _comm;
+    private final ValueCache _cache;
+
+    private final LatencyHistogram _cycleDuration = new LatencyHistogram();
+    private final LongAdder _published = new LongAdder();
+    private final LongAdder _unchanged = new LongAdder();
+    private final LongAdder _skipped = new LongAdder();
+
+    BridgeStats(final KM200Device device, final KM200Comm comm, final ValueCache cache)
+    {
+        _device = device;
+        _comm = comm;
+        _cache = cache;
+    }
+
+    void cycleCompleted(final long nanos)
+    {
+        _cycleDuration.recordNanos(nanos);
+    }
+
+    void published()
+    {
+        _published.increment();
+    }
+
+    void unchanged()
+    {
+        _unchanged.increment();
+    }
+
+    void skipped(final int count)
+    {
+        _skipped.add(count);
+    }
+
+    @Override
+    public LatencyHistogram getCycleDuration()
+    {
+        return _cycleDuration;
+    }
+
+    @Override
+    public long getCycleCount()
+    {
+        return _cycleDuration.getCount();
+    }
+
+    @Override
+    public long getPublishedCount()
+    {
+        return _published.sum();
+    }
+
+    @Override
+    public long getUnchangedCount()
+    {
+        return _unchanged.sum();
+    }
+
+    @Override
+    public long getSkippedCount()
+    {
+        return _skipped.sum();
+    }
+
+    @Override
+    public long getKm200ErrorCount()
+    {
+        return _comm.getErrorCount();
+    }
+
+    @Override
+    public long getKm200TimeoutCount()
+    {
+        return _comm.getTimeoutCount();
+    }
+
+    @Override
+    public boolean isKm200Connected()
+    {
+        return _comm.isConnected();
+    }
+
+    @Override
+    public int getServiceMapSize()
+    {
+        return _device.getServices().size();
+    }
+
+    @Override
+    public LatencyHistogram getKm200ConnectLatency()
+    {
+        return _comm.getTransport().getConnectLatency();
+    }
+
+    @Override
+    public LatencyHistogram getKm200WaitLatency()
+    {
+        return _comm.getTransport().getWaitLatency();
+    }
+
+    @Override
+    public LatencyHistogram getKm200ReadLatency()
+    {
+        return _comm.getTransport().getReadLatency();
+    }
+
+    @Override
+    public int getKm200LeasedConnections()
+    {
+        return _comm.getTransport().getLeasedConnections();
+    }
+
+    @Override
+    public int getKm200AvailableConnections()
+    {
+        return _comm.getTransport().getAvailableConnections();
+    }
+
+    @Override
+    public int getKm200ConcurrencyLimit()
+    {
+        return _comm.getLimiter().getLimit();
+    }
+
+    @Override
+    public int getKm200InFlight()
+    {
+        return _comm.getLimiter().getInFlight();
+    }
+
+    @Override
+    public long getKm200BaselineLatency()
+    {
+        return _comm.getLimiter().getBaselineMicros();
+    }
+
+    @Override
+    public long getKm200LimitDecreaseCount()
+    {
+        return _comm.getLimiter().getDecreaseCount();
+    }
+
+    @Override
+    public long getValueCacheHitCount()
+    {
+        return _cache.getHitCount();
+    }
+
+    @Override
+    public long getValueCacheCoalescedCount()
+    {
+        return _cache.getCoalescedCount();
+    }
+
+    @Override
+    public long getValueCacheLoadCount()
+    {
+        return _cache.getLoadCount();
+    }
+}
@@ -0,0 +1,86 @@
+package de.hendriklipka.buderus;
+
+import de.hendriklipka.buderus.metrics.LatencyHistogram;
+
+/**
+ * The overall state of the bridge. All latencies are in microseconds.
+ */
+public interface BridgeStatsMXBean
+{
+    /**
+     * @return the duration of the publishing cycles, from the first request to the device until the last message
+     * was handed to the MQTT servers
+     */
+    LatencyHistogram getCycleDuration();
+
+    long getCycleCount();
+
+    /**
+     * @return the number of values accepted by at least one MQTT server, counted once per value
+     */
+    long getPublishedCount();
+
+    /**
+     * @return the number of values not published because they did not change enough
+     */
+    long getUnchangedCount();
+
+    /**
+     * @return the number of services skipped because their value could not be retrieved, or because the device was
+     * not connected
+     */
+    long getSkippedCount();
+
+    long getKm200ErrorCount();
+
+    long getKm200TimeoutCount();
+
+    boolean isKm200Connected();
+
+    /**
+     * @return the number of services known from the KM200
+     */
+    int getServiceMapSize();
+
+    LatencyHistogram getKm200ConnectLatency();
+
+    LatencyHistogram getKm200WaitLatency();
+
+    LatencyHistogram getKm200ReadLatency();
+
+    int getKm200LeasedConnections();
+
+    int getKm200AvailableConnections();
+
+    /**
+     * @return the number of requests currently allowed at the same time, adapted to the health of the device
+     */
+    int getKm200ConcurrencyLimit();
+
+    int getKm200InFlight();
+
+    /**
+     * @return the lowest recent request latency, which the limiter compares new requests with
+     */
+    long getKm200BaselineLatency();
+
+    /**
+     * @return how often the concurrency limit was reduced because of timeouts or slow responses
+     */
+    long getKm200LimitDecreaseCount();
+
+    /**
+     * @return the number of values served from the value cache instead of the device
+     */
+    long getValueCacheHitCount();
+
+    /**
+     * @return the number of values which were requested while the same service was already being retrieved
+     */
+    long getValueCacheCoalescedCount();
+
+    /**
+     * @return the number of values retrieved from the device
+     */
+    long getValueCacheLoadCount();
+}
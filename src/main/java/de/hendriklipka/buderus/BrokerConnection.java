@@ -0,0 +1,476 @@
+package de.hendriklipka.buderus;
+
+import de.hendriklipka.buderus.metrics.LatencyHistogram;
+import de.hendriklipka.buderus.metrics.MBeans;
+import org.apache.commons.lang3.StringUtils;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The connection to one MQTT server. Publishing does not block: messages are handed to the asynchronous client, and
+ * at most a fixed number of messages may wait for their acknowledgement. When this window is full, or the server is not
+ * connected, the message is rejected for this server only, so a slow or unreachable server does not hold up the others.
+ * <p>
+ * With a buffer file, rejected and failed messages are kept in an {@link OutboundBuffer} instead of being dropped.
+ * While the buffer is not empty, new messages are added behind the buffered ones; the replay task sends them in order,
+ * at a limited rate, once the server is available again. A message which fails after it was handed to the client
+ * (e.g. when the connection is lost while it waits for its acknowledgement) is added behind the messages buffered in
+ * the meantime, so up to the in-flight window of messages can arrive out of order after a connection loss.
+ * <p>
+ * Subscriptions are made again after each reconnect, since the session is not kept by the server.
+ * <p>
+ * Registered as MBean "type=Broker" by {@link #registerMBean()}.
+ */
+public class BrokerConnection implements BrokerConnectionMXBean
+{
+    private static final Logger logger = LoggerFactory.getLogger(BrokerConnection.class);
+
+    private final String _serverURI;
+    private final MqttAsyncClient _client;
+    private final MqttConnectOptions _options;
+    private final int _maxInflight;
+    private final Semaphore _window;
+
+    private final LatencyHistogram _publishLatency = new LatencyHistogram();
+    private final LongAdder _published = new LongAdder();
+    private final LongAdder _failed = new LongAdder();
+    private final LongAdder _rejected = new LongAdder();
+    private final LongAdder _replayed = new LongAdder();
+
+    private static final long REPLAY_TICK_MILLIS = 100;
+    private final OutboundBuffer _buffer;
+    private final int _replayRate;
+    private final OutboundBuffer.Sender _replaySender = this::send;
+    /* topic -> the listeners for it, several in fleet mode when the gateways share a command topic */
+    private final Map<String, List<IMqttMessageListener>> _subscriptions = new ConcurrentHashMap<>();
+    private final IMqttMessageListener _dispatcher = this::dispatch;
+    private volatile int _subscriptionQos = 1;
+    private ScheduledFuture<?> _replayTask;
+    private ObjectName _mbeanName;
+
+    /* only used by the replay task */
+    private double _replayCredit = 0;
+    private long _replayTicks = 0;
+
+    public BrokerConnection(final MqttServerConfig serverConfig) throws MqttException, IOException
+    {
+        _serverURI = (serverConfig.isSecure() ? "ssl" : "tcp") + "://" + serverConfig.getServer() + ":" + serverConfig.getPort();
+        _maxInflight = Math.max(1, serverConfig.getMaxInflight());
+        _window = new Semaphore(_maxInflight);
+        _client = new MqttAsyncClient(_serverURI, serverConfig.getClientId(), new MemoryPersistence());
+        _options = new MqttConnectOptions();
+        _options.setAutomaticReconnect(true);
+        _options.setCleanSession(true);
+        _options.setConnectionTimeout(10);
+        _options.setMaxInflight(_maxInflight);
+        if (StringUtils.isBlank(serverConfig.getBufferFile()))
+        {
+            _buffer = null;
+        }
+        else
+        {
+            final long bufferSize = serverConfig.getBufferSizeMb() * 1024L * 1024L;
+            if (bufferSize <= 0 || bufferSize > OutboundBuffer.MAX_CAPACITY)
+            {
+                throw new IOException("bufferSizeMb must be between 1 and " + OutboundBuffer.MAX_CAPACITY / (1024 * 1024)
+                        + ", not " + serverConfig.getBufferSizeMb());
+            }
+            _buffer = new OutboundBuffer(new File(serverConfig.getBufferFile()), (int) bufferSize);
+        }
+        _replayRate = Math.max(1, serverConfig.getReplayRate());
+        if (StringUtils.isNotBlank(serverConfig.getUser()))
+        {
+            _options.setUserName(serverConfig.getUser());
+        }
+        if (StringUtils.isNotBlank(serverConfig.getPassword()))
+        {
+            _options.setPassword(serverConfig.getPassword().toCharArray());
+        }
+        _client.setCallback(new MqttCallbackExtended()
+        {
+            @Override
+            public void connectComplete(final boolean reconnect, final String serverURI)
+            {
+                if (reconnect)
+                {
+                    subscribeAll();
+                }
+            }
+
+            @Override
+            public void connectionLost(final Throwable cause)
+            {
+                logger.warn("Lost connection to MQTT server {}: {}", _serverURI, null == cause ? "" : cause.getMessage());
+            }
+
+            @Override
+            public void messageArrived(final String topic, final MqttMessage message)
+            {
+                // each subscription has its own listener
+            }
+
+            @Override
+            public void deliveryComplete(final IMqttDeliveryToken token)
+            {
+                // tracked per message, see send()
+            }
+        });
+    }
+
+    /**
+     * Connects to the server, and waits until the connection is established. Lost connections are re-established
+     * automatically afterwards.
+     */
+    public void connect() throws MqttException
+    {
+        _client.connect(_options).waitForCompletion(_options.getConnectionTimeout() * 1000L);
+    }
+
+    /**
+     * Subscribes to the topics, now and after each reconnect. The listener is called on the thread of the MQTT
+     * client, so it must not block. Several listeners can subscribe to the same topic, each one gets all of its
+     * messages.
+     */
+    public void subscribe(final Collection<String> topics, final int qos, final IMqttMessageListener listener)
+    {
+        _subscriptionQos = qos;
+        for (String topic : topics)
+        {
+            _subscriptions.computeIfAbsent(topic, k -> new CopyOnWriteArrayList<>()).add(listener);
+        }
+        subscribeAll();
+    }
+
+    /**
+     * Stops passing the topics to the listener; a topic is unsubscribed at the server once it has no listener left.
+     *
+     * @param listener the same instance as given to {@link #subscribe(Collection, int, IMqttMessageListener)}
+     */
+    public void unsubscribe(final Collection<String> topics, final IMqttMessageListener listener)
+    {
+        final List<String> unused = new ArrayList<>();
+        for (String topic : topics)
+        {
+            final List<IMqttMessageListener> listeners = _subscriptions.computeIfPresent(topic, (k, list) -> {
+                list.remove(listener);
+                return list.isEmpty() ? null : list;
+            });
+            if (null == listeners)
+            {
+                unused.add(topic);
+            }
+        }
+        if (unused.isEmpty() || !_client.isConnected())
+        {
+            return;
+        }
+        try
+        {
+            _client.unsubscribe(unused.toArray(new String[0]));
+        }
+        catch (MqttException e)
+        {
+            logger.error("Cannot unsubscribe at MQTT server {}: {}", _serverURI, e.getMessage());
+        }
+    }
+
+    /**
+     * Disconnects from the server for good, e.g. when it was removed from the configuration. Buffered messages are
+     * kept in the buffer file.
+     */
+    public void close()
+    {
+        if (null != _replayTask)
+        {
+            _replayTask.cancel(false);
+        }
+        MBeans.unregister(_mbeanName);
+        try
+        {
+            _client.disconnect().waitForCompletion(_options.getConnectionTimeout() * 1000L);
+        }
+        catch (MqttException e)
+        {
+            logger.warn("Cannot disconnect from MQTT server {}: {}", _serverURI, e.getMessage());
+        }
+        try
+        {
+            _client.close();
+        }
+        catch (MqttException e)
+        {
+            logger.warn("Cannot close the connection to MQTT server {}: {}", _serverURI, e.getMessage());
+        }
+        if (null != _buffer)
+        {
+            _buffer.flush();
+        }
+        logger.info("Disconnected from MQTT server {}.", _serverURI);
+    }
+
+    private void subscribeAll()
+    {
+        if (_subscriptions.isEmpty() || !_client.isConnected())
+        {
+            return;
+        }
+        final String[] topics = _subscriptions.keySet().toArray(new String[0]);
+        final int[] qos = new int[topics.length];
+        final IMqttMessageListener[] listeners = new IMqttMessageListener[topics.length];
+        for (int i = 0; i < topics.length; i++)
+        {
+            qos[i] = _subscriptionQos;
+            listeners[i] = _dispatcher;
+        }
+        try
+        {
+            _client.subscribe(topics, qos, null, null, listeners);
+            logger.info("Subscribed to {} topics at MQTT server {}.", topics.length, _serverURI);
+        }
+        catch (MqttException e)
+        {
+            logger.error("Cannot subscribe at MQTT server {}: {}", _serverURI, e.getMessage());
+        }
+    }
+
+    /**
+     * Passes a message to all listeners of its topic.
+     */
+    private void dispatch(final String topic, final MqttMessage message) throws Exception
+    {
+        final List<IMqttMessageListener> listeners = _subscriptions.get(topic);
+        if (null != listeners)
+        {
+            for (IMqttMessageListener listener : listeners)
+            {
+                listener.messageArrived(topic, message);
+            }
+        }
+    }
+
+    /**
+     * Hands the message over for publishing, without waiting for it to be sent.
+     *
+     * @return false when the message was rejected, because the server is not connected or too many messages are
+     * already waiting for it; with a buffer, the message is buffered instead and true is returned
+     */
+    public boolean publish(final String topic, final MqttMessage message)
+    {
+        if (null != _buffer && !_buffer.isEmpty())
+        {
+            // keep the order, new messages wait behind the buffered ones
+            return _buffer.add(topic, message);
+        }
+        if (send(topic, message))
+        {
+            return true;
+        }
+        _rejected.increment();
+        if (!_client.isConnected())
+        {
+            logger.debug("Not connected to MQTT server {}, not publishing to {}.", _serverURI, topic);
+        }
+        else
+        {
+            logger.warn("Too many messages in flight to MQTT server {}, not publishing to {}.", _serverURI, topic);
+        }
+        return null != _buffer && _buffer.add(topic, message);
+    }
+
+    /**
+     * @return false when the server is not connected or the window is full
+     */
+    private boolean send(final String topic, final MqttMessage message)
+    {
+        if (!_client.isConnected() || !_window.tryAcquire())
+        {
+            return false;
+        }
+        final long start = System.nanoTime();
+        try
+        {
+            _client.publish(topic, message, null, new IMqttActionListener()
+            {
+                @Override
+                public void onSuccess(final IMqttToken token)
+                {
+                    _window.release();
+                    _publishLatency.recordNanos(System.nanoTime() - start);
+                    _published.increment();
+                }
+
+                @Override
+                public void onFailure(final IMqttToken token, final Throwable e)
+                {
+                    _window.release();
+                    _failed.increment();
+                    logger.error("Cannot send MQTT message to {}: {}", _serverURI, e.getMessage());
+                    // behind the messages buffered since it was sent, see the class comment
+                    if (null != _buffer)
+                    {
+                        _buffer.add(topic, message);
+                    }
+                }
+            });
+            return true;
+        }
+        catch (MqttException e)
+        {
+            _window.release();
+            _failed.increment();
+            logger.error("Cannot send MQTT message to {}: {}", _serverURI, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Starts sending the buffered messages whenever the server is connected. Does nothing without a buffer.
+     */
+    public void startReplay(final ScheduledExecutorService executor)
+    {
+        if (null != _buffer)
+        {
+            _replayTask = executor.scheduleWithFixedDelay(this::replay, REPLAY_TICK_MILLIS, REPLAY_TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void replay()
+    {
+        try
+        {
+            if (!_client.isConnected() || _buffer.isEmpty())
+            {
+                _replayCredit = 0;
+            }
+            else
+            {
+                // token bucket, at most one second worth of messages at once
+                _replayCredit = Math.min(_replayRate, _replayCredit + _replayRate * REPLAY_TICK_MILLIS / 1000.0);
+                while (_replayCredit >= 1 && _buffer.sendOldest(_replaySender))
+                {
+                    _replayCredit--;
+                    _replayed.increment();
+                }
+                if (_buffer.isEmpty())
+                {
+                    logger.info("Sent all buffered messages to MQTT server {}.", _serverURI);
+                }
+            }
+            if (++_replayTicks % (1000 / REPLAY_TICK_MILLIS) == 0)
+            {
+                _buffer.flush();
+            }
+        }
+        catch (RuntimeException e)
+        {
+            // an exception would stop all further scheduled runs
+            logger.error("Error while sending buffered messages to MQTT server {}: ", _serverURI, e);
+        }
+    }
+
+    public void registerMBean()
+    {
+        _mbeanName = MBeans.register("Broker", _serverURI, this);
+    }
+
+    @Override
+    public String getServerURI()
+    {
+        return _serverURI;
+    }
+
+    @Override
+    public boolean isConnected()
+    {
+        return _client.isConnected();
+    }
+
+    /**
+     * @return the number of messages handed over, but not yet acknowledged
+     */
+    @Override
+    public int getInFlight()
+    {
+        return _maxInflight - _window.availablePermits();
+    }
+
+    @Override
+    public int getMaxInflight()
+    {
+        return _maxInflight;
+    }
+
+    @Override
+    public LatencyHistogram getPublishLatency()
+    {
+        return _publishLatency;
+    }
+
+    @Override
+    public long getPublishedCount()
+    {
+        return _published.sum();
+    }
+
+    @Override
+    public long getFailedCount()
+    {
+        return _failed.sum();
+    }
+
+    @Override
+    public long getRejectedCount()
+    {
+        return _rejected.sum();
+    }
+
+    @Override
+    public int getBufferedCount()
+    {
+        return null == _buffer ? 0 : _buffer.size();
+    }
+
+    @Override
+    public long getBufferDroppedCount()
+    {
+        return null == _buffer ? 0 : _buffer.getDroppedCount();
+    }
+
+    @Override
+    public long getReplayedCount()
+    {
+        return _replayed.sum();
+    }
+
+    public void logStatistics()
+    {
+        logger.debug("MQTT server {}: connected={} inFlight={} published={} failed={} rejected={} buffered={} replayed={} latency: {}", _serverURI,
+                isConnected(), getInFlight(), getPublishedCount(), getFailedCount(), getRejectedCount(), getBufferedCount(), getReplayedCount(),
+                _publishLatency);
+    }
+}
@@ -0,0 +1,43 @@
+package de.hendriklipka.buderus;
+
+import de.hendriklipka.buderus.metrics.LatencyHistogram;
+
+/**
+ * The state of the connection to one MQTT server. Latencies are in microseconds.
+ */
+public interface BrokerConnectionMXBean
+{
+    String getServerURI();
+
+    boolean isConnected();
+
+    int getInFlight();
+
+    int getMaxInflight();
+
+    /**
+     * @return the time from handing over a message until the server acknowledged it
+     */
+    LatencyHistogram getPublishLatency();
+
+    long getPublishedCount();
+
+    long getFailedCount();
+
+    long getRejectedCount();
+
+    /**
+     * @return the number of messages waiting in the buffer file
+     */
+    int getBufferedCount();
+
+    /**
+     * @return the number of messages dropped because the buffer file was full
+     */
+    long getBufferDroppedCount();
+
+    /**
+     * @return the number of buffered messages sent after the server became available again
+     */
+    long getReplayedCount();
+}
@@ -1,31 +1,35 @@
 package de.hendriklipka.buderus;
 
-import de.hendriklipka.buderus.km200.KM200Comm;
-import de.hendriklipka.buderus.km200.KM200Device;
-import de.hendriklipka.buderus.km200.KM200ServiceTypes;
+import de.hendriklipka.buderus.km200.KM200HttpSettings;
+import de.hendriklipka.buderus.km200.KM200Transport;
 import org.apache.commons.lang3.StringUtils;
-import org.eclipse.paho.client.mqttv3.*;
-import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
-import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
-import org.json.JSONObject;
+import org.eclipse.paho.client.mqttv3.MqttException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.yaml.snakeyaml.TypeDescription;
 import org.yaml.snakeyaml.Yaml;
 import org.yaml.snakeyaml.constructor.Constructor;
+import org.yaml.snakeyaml.error.YAMLException;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.InputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Command(name = "buderus2mqtt", mixinStandardHelpOptions = true, version = "buderus2mqtt 0.1",
         description = "Reads data from a Buderus KM100/200 and pushes it to Mqtt")
@@ -33,12 +37,25 @@ public class Buderus2Mqtt implements Runnable
 {
     private static final Logger logger = LoggerFactory.getLogger(Buderus2Mqtt.class);
 
+    private static final int MAX_RECORDINGS_THREADS = 4;
+    /* the settings which are applied to the publishing of each gateway when the configuration file changes */
+    private static final Set<String> PUBLISHING_SETTINGS = new HashSet<>(Arrays.asList(
+            "services", "intervalSeconds", "spreadPolls", "aggregation", "commands"));
+
     @Option(names = "-l", description = "list all readable bindings and exit")
     boolean listOnly;
 
     @Parameters(paramLabel = "configuration file", arity = "1")
     String configFile;
 
+    /* the MQTT servers, and the configuration (as read from the file) each one was created from */
+    private final List<BrokerConnection> _brokers = new CopyOnWriteArrayList<>();
+    private final Map<BrokerConnection, Object> _brokerConfigs = new LinkedHashMap<>();
+    private final List<Gateway> _gateways = new ArrayList<>();
+    private ScheduledExecutorService _replayExecutor;
+    /* the configuration in effect as plain maps and lists, to find what changed in the file */
+    private Map<String, Object> _rawConfig;
+
     public static void main(String[] args)
     {
         CommandLine.run(new Buderus2Mqtt(), args);
@@ -47,28 +64,22 @@ public class Buderus2Mqtt implements Runnable
     public void run()
     {
         logger.info("Reading configuration file.");
-        final Constructor constructor = new Constructor(Config.class);
-
-        TypeDescription configDescription = new TypeDescription(Config.class);
-        configDescription.addPropertyParameters("services", ServiceMapping.class);
-        constructor.addTypeDescription(configDescription);
-        configDescription.addPropertyParameters("mqttServers", MqttServerConfig.class);
-        constructor.addTypeDescription(configDescription);
-
-        Yaml yaml = new Yaml(constructor);
-
-        InputStream is = null;
+        Config config = null;
         try
         {
-            is = new FileInputStream(configFile);
+            final String text = new String(Files.readAllBytes(new File(configFile).toPath()), StandardCharsets.UTF_8);
+            config = configYaml().load(text);
+            _rawConfig = new Yaml().load(text);
         }
-        catch (FileNotFoundException e)
+        catch (IOException e)
         {
             logger.error("Cannot open configuration file [{}]: {}", configFile, e.getMessage());
             System.exit(1);
         }
-
-        Config config = yaml.load(is);
+        if (!checkMappings(config))
+        {
+            System.exit(1);
+        }
 
         logger.info("Connecting to MQTT servers.");
 
@@ -80,208 +91,390 @@ public class Buderus2Mqtt implements Runnable
             System.exit(3);
         }
 
-        List<IMqttClient> mqttClients = new ArrayList<>();
-        for (MqttServerConfig serverConfig: config.getMqttServers())
+        _replayExecutor = Executors.newSingleThreadScheduledExecutor(daemonThreads("mqtt-replay"));
+        final List<?> rawServers = (List<?>) _rawConfig.get("mqttServers");
+        for (int i = 0; i < config.getMqttServers().size(); i++)
         {
-            final String connectURI = serverConfig.isSecure()?"ssl":"tcp"+"://" + serverConfig.getServer() + ":" + serverConfig.getPort();
-            IMqttClient mqttClient = null;
-            try
+            final BrokerConnection broker = connectBroker(config.getMqttServers().get(i));
+            if (null == broker)
             {
-                MemoryPersistence persistence = new MemoryPersistence();
-
-                mqttClient = new MqttClient(connectURI, serverConfig.getClientId(), persistence);
-                MqttConnectOptions options = new MqttConnectOptions();
-                options.setAutomaticReconnect(true);
-                options.setCleanSession(true);
-                options.setConnectionTimeout(10);
-                if (StringUtils.isNotBlank(serverConfig.getUser()))
-                {
-                    options.setUserName(serverConfig.getUser());
-                }
-                if (StringUtils.isNotBlank(serverConfig.getPassword()))
+                System.exit(3);
+            }
+            _brokers.add(broker);
+            _brokerConfigs.put(broker, null == rawServers ? null : rawServers.get(i));
+        }
+
+        // each parallel request needs its own connection
+        final KM200HttpSettings httpSettings = config.getHttp();
+        httpSettings.setMaxConnections(Math.max(httpSettings.getMaxConnections(),
+                Math.max(config.getMaxParallelRequests(), config.getDiscoveryParallelism())));
+
+        if (config.getGateways().isEmpty())
+        {
+            _gateways.add(new Gateway(null, config.getSingleGateway(), config, httpSettings, new KM200Transport(httpSettings)));
+        }
+        else
+        {
+            checkFleet(config);
+            // one pool for all gateways, with the configured number of connections per gateway
+            final KM200Transport transport = new KM200Transport(httpSettings, httpSettings.getMaxConnections() * config.getGateways().size());
+            for (GatewayConfig gatewayConfig : config.getGateways())
+            {
+                _gateways.add(new Gateway(gatewayConfig.getName(), gatewayConfig, config, httpSettings, transport));
+            }
+            logger.info("Fleet mode with {} gateways.", _gateways.size());
+        }
+
+        if (listOnly)
+        {
+            for (Gateway gateway : _gateways)
+            {
+                logger.info("Connect to Buderus device.");
+                if (!gateway.connect())
                 {
-                    options.setUserName(serverConfig.getPassword());
+                    System.exit(2);
                 }
-                mqttClient.connect(options);
+                gateway.discover(true);
+                logger.info("Listing all known and readable services.");
+                gateway.getDevice().listAllServices();
+            }
+            System.err.println("List of all services written to the log file. Exiting.");
+            System.exit(0);
+        }
+
+        if (null != config.getApi())
+        {
+            final HttpApi api = new HttpApi(_gateways);
+            try
+            {
+                api.start(config.getApi(), Executors.newFixedThreadPool(Math.max(1, config.getApi().getThreads()), daemonThreads("http-api")));
             }
-            catch (MqttException e)
+            catch (IOException | IllegalArgumentException e)
             {
-                logger.error("cannot connect to MQTT server [{}]: {}", connectURI, e.getMessage());
-                System.exit(3);
+                logger.error("Cannot start HTTP API on [{}:{}]: {}", config.getApi().getAddress(), config.getApi().getPort(), e.getMessage());
+                System.exit(1);
             }
-            mqttClients.add(mqttClient);
         }
 
-        logger.info("Connect to Buderus device.");
-        KM200Device device = new KM200Device();
-        device.setIP4Address(config.getBuderusServer());
+        // on its own threads, so paging through the history does not delay the polling
+        final ScheduledExecutorService recordingsExecutor = null == config.getRecordings() ? null
+                : Executors.newScheduledThreadPool(Math.min(_gateways.size(), MAX_RECORDINGS_THREADS), daemonThreads("recordings"));
 
-        if (StringUtils.isNotBlank(config.getPrivateKey()))
+        if (null == _gateways.get(0).getName())
         {
-            device.setCryptKeyPriv(config.getPrivateKey());
+            final Gateway gateway = _gateways.get(0);
+            logger.info("Connect to Buderus device.");
+            if (!gateway.connect())
+            {
+                logger.error("Cannot connect to Buderus device at [{}]. Please check configuration. Exiting.", config.getBuderusServer());
+                System.exit(2);
+            }
+            gateway.discover(false);
+            gateway.start(_brokers, recordingsExecutor);
         }
         else
         {
-            device.setGatewayPassword(config.getGatewayPassword());
-            device.setPrivatePassword(config.getPrivatePassword());
-            device.setMD5Salt(config.getMd5Salt());
+            for (Gateway gateway : _gateways)
+            {
+                gateway.startWhenReachable(_brokers, recordingsExecutor);
+            }
         }
 
-        KM200Comm comm = new KM200Comm();
-        comm.connect(device);
-        if (!comm.isConnected())
+        if (config.isWatchConfig())
         {
-            logger.error("Cannot connect to Buderus device at [{}]. Please check configuration. Exiting.", config.getBuderusServer());
-            System.exit(2);
+            new ConfigWatcher(new File(configFile), this::reload).start();
         }
-        logger.info("Connected. Retrieve complete list of services.");
+    }
 
-        for (KM200ServiceTypes service : KM200ServiceTypes.values())
+    /**
+     * Applies the changes of the configuration file: changed MQTT servers are re-connected (the others keep their
+     * connection), and changed mappings, polling, aggregation and commands are applied to each gateway. The
+     * discovered services and the connections to the gateways are kept. Other changes need a restart; until then,
+     * they are left out of the configuration in effect, and reported again with each reload.
+     */
+    synchronized void reload()
+    {
+        final Map<String, Object> raw;
+        try
         {
-            comm.initObjects(device, service.getDescription());
+            final String text = new String(Files.readAllBytes(new File(configFile).toPath()), StandardCharsets.UTF_8);
+            // the whole file must be valid, even the parts which are not applied
+            if (null == configYaml().load(text))
+            {
+                logger.error("The changed configuration file [{}] is empty, keeping the current configuration.", configFile);
+                return;
+            }
+            raw = new Yaml().load(text);
         }
-        if (listOnly)
+        catch (IOException | YAMLException | ClassCastException e)
         {
-            logger.info("Listing all known and readable services.");
-            device.listAllServices();
-            System.err.println("List of all services written to the log file. Exiting.");
-            System.exit(0);
+            logger.error("Cannot read the changed configuration file [{}], keeping the current configuration: {}", configFile, e.getMessage());
+            return;
         }
 
-        logger.info("Retrieval of the KM200 service information completed.");
-        device.setInited(true);
+        final Set<String> changed = new TreeSet<>();
+        final Set<String> keys = new HashSet<>(_rawConfig.keySet());
+        keys.addAll(raw.keySet());
+        for (String key : keys)
+        {
+            if (!Objects.equals(_rawConfig.get(key), raw.get(key)))
+            {
+                changed.add(key);
+            }
+        }
+        if (changed.isEmpty())
+        {
+            return;
+        }
+        logger.info("Configuration file changed: {}.", changed);
 
-        ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor();
+        // the configuration in effect, with only the changes which can be applied now
+        final Map<String, Object> applied = new LinkedHashMap<>(_rawConfig);
+        final Set<String> needRestart = new TreeSet<>();
+        for (String key : changed)
+        {
+            if (!PUBLISHING_SETTINGS.contains(key) && !"mqttServers".equals(key))
+            {
+                needRestart.add(key);
+            }
+            else if (raw.containsKey(key))
+            {
+                applied.put(key, raw.get(key));
+            }
+            else
+            {
+                applied.remove(key);
+            }
+        }
+        if (!needRestart.isEmpty())
+        {
+            logger.warn("Changes of {} need a restart, they are not applied.", needRestart);
+            changed.removeAll(needRestart);
+            if (changed.isEmpty())
+            {
+                return;
+            }
+        }
+        final Config config;
+        try
+        {
+            config = configYaml().load(new Yaml().dump(applied));
+        }
+        catch (YAMLException | ClassCastException e)
+        {
+            logger.error("Cannot apply the changed configuration file [{}], keeping the current configuration: {}", configFile, e.getMessage());
+            return;
+        }
+        if (!checkMappings(config))
+        {
+            logger.error("The changed configuration file [{}] is not valid, keeping the current configuration.", configFile);
+            return;
+        }
+        if (changed.contains("mqttServers"))
+        {
+            final List<?> rawServers = (List<?>) applied.get("mqttServers");
+            final List<Object> connected = reloadBrokers(config.getMqttServers(), rawServers);
+            if (null != rawServers)
+            {
+                // servers which could not be connected are left out, so the next reload tries them again
+                applied.put("mqttServers", connected);
+            }
+        }
+        _rawConfig = applied;
 
-        final Runnable runnableTask = new MqttPublisher(config.getServices(), device, comm, mqttClients);
-        executorService.scheduleAtFixedRate(runnableTask, 1, config.getIntervalSeconds(), TimeUnit.SECONDS);
+        changed.retainAll(PUBLISHING_SETTINGS);
+        if (!changed.isEmpty())
+        {
+            for (Gateway gateway : _gateways)
+            {
+                gateway.reload(config);
+            }
+        }
     }
 
-    private static class MqttPublisher implements Runnable
+    /**
+     * Keeps the connections to the servers whose configuration did not change, disconnects from the removed servers
+     * and connects to the new ones.
+     *
+     * @return the configurations of the servers now in use, without the ones which could not be connected
+     */
+    private List<Object> reloadBrokers(final List<MqttServerConfig> serverConfigs, final List<?> rawServers)
     {
-
-        private final List<ServiceMapping> _mappings;
-        private final KM200Device _device;
-        private final KM200Comm _comm;
-        private final List<IMqttClient> mqttClients;
-
-        private MqttPublisher(final List<ServiceMapping> mappings, final KM200Device device, final KM200Comm comm, final List<IMqttClient> clients)
+        final List<BrokerConnection> kept = keptConnections(_brokerConfigs, rawServers, serverConfigs.size());
+        final List<BrokerConnection> removed = new ArrayList<>(_brokerConfigs.keySet());
+        removed.removeAll(kept);
+        final Map<BrokerConnection, Object> brokerConfigs = new LinkedHashMap<>();
+        final List<BrokerConnection> added = new ArrayList<>();
+        for (int i = 0; i < serverConfigs.size(); i++)
         {
-            _mappings = mappings;
-            _device = device;
-            _comm = comm;
-            mqttClients = clients;
+            BrokerConnection broker = kept.get(i);
+            if (null == broker)
+            {
+                broker = connectBroker(serverConfigs.get(i));
+                if (null == broker)
+                {
+                    logger.warn("MQTT server [{}] is not used; it is tried again with the next change of the configuration file.",
+                            serverConfigs.get(i).getServer());
+                    continue;
+                }
+                added.add(broker);
+            }
+            brokerConfigs.put(broker, null == rawServers ? null : rawServers.get(i));
+        }
+        // the gateways keep using the list, so it is changed in place instead of being rebuilt
+        _brokers.addAll(added);
+        _brokers.removeAll(removed);
+        _brokerConfigs.clear();
+        _brokerConfigs.putAll(brokerConfigs);
+        for (BrokerConnection broker : removed)
+        {
+            broker.close();
         }
+        for (BrokerConnection broker : added)
+        {
+            for (Gateway gateway : _gateways)
+            {
+                gateway.brokerAdded(broker);
+            }
+        }
+        logger.info("MQTT servers: {} kept, {} added, {} removed.", brokerConfigs.size() - added.size(), added.size(), removed.size());
+        return new ArrayList<>(brokerConfigs.values());
+    }
 
-        @Override
-        public void run()
+    /**
+     * Finds the connections which can be kept for the configured servers: a connection is kept for a server with the
+     * same configuration as the one it was created from, in whatever position it is now.
+     *
+     * @param current    the current connections with the configuration each one was created from
+     * @param rawServers the configured servers, null when all of them are new
+     * @return per configured server, the connection to keep, or null when it needs a new one
+     */
+    static <B> List<B> keptConnections(final Map<B, Object> current, final List<?> rawServers, final int count)
+    {
+        final Map<B, Object> unused = new LinkedHashMap<>(current);
+        final List<B> kept = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
         {
-            if (!_comm.isConnected())
+            final Object raw = null == rawServers ? null : rawServers.get(i);
+            B found = null;
+            for (Map.Entry<B, Object> entry : unused.entrySet())
             {
-                logger.warn("Not connected to KM200 device, trying to reconnect.");
-                _comm.connect(_device);
-                if (!_comm.isConnected())
+                if (Objects.equals(entry.getValue(), raw))
                 {
-                    logger.error("Reconnected failed, skipping.");
-                    return;
-                }
-                else
-                {
-                    logger.warn("reconnect succeeded.");
+                    found = entry.getKey();
+                    break;
                 }
             }
-            logger.debug("Starting MQTT publishing for configured services.");
-            for (ServiceMapping service : _mappings)
+            if (null != found)
             {
-                if (service.getType().equals("float"))
-                {
-                    Double d = getDoubleValue(_device, _comm, service.getServiceName());
-                    if (null==d)
-                    {
-                        logger.error("Could not get value for service "+ service.getServiceName()+", skipping.");
-                        continue;
-                    }
-                    MessageParameters params = new MessageParameters(service.getServiceName(), ServiceType.valueOf(service.getType().toUpperCase(Locale.US)), d);
-                    String messageStr = params.replace(service.getMqttMessage());
-
-                    MqttMessage message = new MqttMessage(messageStr.getBytes());
-                    message.setQos(service.getQos());
-                    message.setRetained(service.isRetained());
-                    final String fullTopic = service.getMqttTopic();
-                    final String finalTopic = params.replace(fullTopic);
-
-                    logger.debug("Publish MQTT message '{}'->'{}'", finalTopic, message.toString());
-
-                    try
-                    {
-                        for (IMqttClient client : mqttClients)
-                        {
-                            if (!client.isConnected())
-                            {
-                                try
-                                {
-                                    try
-                                    {
-                                        client.disconnect();
-                                    }
-                                    catch (MqttException e)
-                                    {
-                                        logger.warn("tried to disconnect first, got an error. Will try a force disconnect.",e);
-                                        try
-                                        {
-                                            client.disconnectForcibly(100, 100);
-                                        }
-                                        catch (MqttException ex)
-                                        {
-                                            logger.warn("Forced disconnect failed, got an error.", e);
-                                        }
-                                    }
-                                    client.reconnect();
-                                    if (!client.isConnected())
-                                    {
-                                        logger.error("Could not reconnect to MQTT server " + client.getServerURI());
-                                        continue;
-                                    }
-                                }
-                                catch (MqttException e)
-                                {
-                                    logger.error("Error while reconnecting to MQTT server "+client.getServerURI()+" : ", e);
-                                    continue;
-                                }
-                            }
-                            client.publish(finalTopic, message);
-                        }
-                    }
-                    catch (MqttException e)
-                    {
-                        logger.error("Cannot send MQTT message, stopping publishing: {}", e.getMessage());
-                        return;
-                    }
+                unused.remove(found);
+            }
+            kept.add(found);
+        }
+        return kept;
+    }
 
-                }
-                else
-                {
-                    logger.warn("Unknown service type [{}], ignoring service.", service.getType());
-                }
+    /**
+     * @return the connected server, null when it cannot be reached
+     */
+    private BrokerConnection connectBroker(final MqttServerConfig serverConfig)
+    {
+        BrokerConnection broker = null;
+        try
+        {
+            broker = new BrokerConnection(serverConfig);
+            broker.connect();
+        }
+        catch (MqttException | IOException e)
+        {
+            logger.error("cannot connect to MQTT server [{}]: {}", null == broker ? serverConfig.getServer() : broker.getServerURI(), e.getMessage());
+            return null;
+        }
+        broker.startReplay(_replayExecutor);
+        broker.registerMBean();
+        return broker;
+    }
+
+    private static Yaml configYaml()
+    {
+        final Constructor constructor = new Constructor(Config.class);
+
+        TypeDescription configDescription = new TypeDescription(Config.class);
+        configDescription.addPropertyParameters("services", ServiceMapping.class);
+        constructor.addTypeDescription(configDescription);
+        configDescription.addPropertyParameters("mqttServers", MqttServerConfig.class);
+        constructor.addTypeDescription(configDescription);
+        configDescription.addPropertyParameters("gateways", GatewayConfig.class);
+        constructor.addTypeDescription(configDescription);
+
+        return new Yaml(constructor);
+    }
+
+    /**
+     * Checks the mappings and compiles their templates.
+     *
+     * @return false when a mapping is not complete
+     */
+    private static boolean checkMappings(final Config config)
+    {
+        for (ServiceMapping mapping : config.getServices())
+        {
+            final boolean aggregated = null != config.getAggregation() && mapping.isAggregate();
+            if (!aggregated && (null == mapping.getMqttTopic() || null == mapping.getMqttMessage()))
+            {
+                logger.error("Service {} needs mqttTopic and mqttMessage, unless it is aggregated.", mapping.getServiceName());
+                return false;
             }
+            mapping.compileTemplates();
         }
+        return true;
+    }
 
-        private Double getDoubleValue(final KM200Device device, final KM200Comm comm, final String service)
+    /**
+     * Checks the gateway names, and warns about settings which all gateways would share.
+     */
+    private static void checkFleet(final Config config)
+    {
+        final Set<String> names = new HashSet<>();
+        for (GatewayConfig gateway : config.getGateways())
         {
-            final byte[] data = comm.getDataFromService(device, service);
-            if (null==data)
+            if (StringUtils.isBlank(gateway.getName()) || !names.add(gateway.getName()))
             {
-                logger.error("Did not receive any data from KM200 device for service {}", service);
-                return null;
+                logger.error("Each gateway needs a unique name, [{}] is missing or used twice.", gateway.getName());
+                System.exit(1);
             }
-            String s = comm.decodeMessage(device, data);
-            if (null==s)
+        }
+        for (ServiceMapping mapping : config.getServices())
+        {
+            final boolean aggregated = null != config.getAggregation() && mapping.isAggregate();
+            if (!aggregated && !mapping.getMqttTopic().contains(Gateway.PLACEHOLDER))
             {
-                logger.error("No value from KM200, skipping service {}", service);
-                return null;
+                logger.warn("The topic of service {} has no {}, all gateways publish to the same topic.", mapping.getServiceName(), Gateway.PLACEHOLDER);
             }
-            JSONObject nodeRoot = new JSONObject(s);
-            return nodeRoot.getDouble("value");
         }
+        if (null != config.getAggregation() && !config.getAggregation().getTopic().contains(Gateway.PLACEHOLDER))
+        {
+            logger.warn("The aggregation topic has no {}, all gateways publish to the same topics.", Gateway.PLACEHOLDER);
+        }
+        if (null != config.getCommands() && !config.getCommands().getTopic().contains(Gateway.PLACEHOLDER)
+                && !config.getCommands().getTopic().contains("{topic}"))
+        {
+            logger.warn("The command topic has no {}, a command would be written to all gateways.", Gateway.PLACEHOLDER);
+        }
+        if (null != config.getRecordings() && null != config.getRecordings().getTopic()
+                && !config.getRecordings().getTopic().contains(Gateway.PLACEHOLDER))
+        {
+            logger.warn("The recordings topic has no {}, all gateways publish to the same topics.", Gateway.PLACEHOLDER);
+        }
+    }
+
+    static ThreadFactory daemonThreads(final String prefix)
+    {
+        final AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
     }
 }
@@ -0,0 +1,338 @@
+package de.hendriklipka.buderus;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+import org.eclipse.paho.client.mqttv3.IMqttMessageListener;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.hendriklipka.buderus.km200.KM200Comm;
+import de.hendriklipka.buderus.km200.KM200CommObject;
+import de.hendriklipka.buderus.km200.KM200Device;
+import de.hendriklipka.buderus.metrics.LatencyHistogram;
+import de.hendriklipka.buderus.metrics.MBeans;
+
+/**
+ * Writes values received on the command topics to the KM200.
+ * <p>
+ * Each mapped service the device reports as writeable gets a command topic. A command is checked against what the
+ * device allows for the service (the range of a float value, the allowed values of a string value), then written
+ * after a short debounce time: commands arriving meanwhile for the same service replace the pending value, so a burst
+ * (e.g. from a slider) ends up as a single write of its last value. The writes are done one after another on their
+ * own thread, with priority over the polling. Afterwards, the cached value of the service is discarded, so the next
+ * poll reads the new value from the device.
+ * <p>
+ * Retained commands are ignored, since they would be written again with every reconnect.
+ */
+class CommandHandler implements CommandHandlerMXBean
+{
+    private static final Logger logger = LoggerFactory.getLogger(CommandHandler.class);
+
+    private static final class Pending
+    {
+        private final Object _value;
+        private final long _firstReceived;
+
+        private Pending(final Object value, final long firstReceived)
+        {
+            _value = value;
+            _firstReceived = firstReceived;
+        }
+    }
+
+    private final String _gateway;
+    private final KM200Device _device;
+    private final KM200Comm _comm;
+    private final ValueCache _cache;
+    private final ScheduledExecutorService _executor;
+    private final int _debounceMillis;
+    private final int _qos;
+    /* command topic -> service */
+    private final Map<String, String> _topics = new HashMap<>();
+    private final Map<String, Pending> _pending = new ConcurrentHashMap<>();
+    /* one instance, so close() removes exactly the subscriptions of this handler */
+    private final IMqttMessageListener _listener = this::commandArrived;
+
+    private final LongAdder _received = new LongAdder();
+    private final LongAdder _rejected = new LongAdder();
+    private final LongAdder _coalesced = new LongAdder();
+    private final LongAdder _written = new LongAdder();
+    private final LongAdder _failed = new LongAdder();
+    private final LatencyHistogram _writeLatency = new LatencyHistogram();
+
+    private ObjectName _mbeanName;
+
+    /**
+     * @param executor runs the writes; should have a single thread, so the writes of one service keep their order
+     * @param gateway  the name of the gateway in fleet mode, null when there is only one
+     */
+    CommandHandler(final CommandsConfig config, final List<ServiceMapping> mappings, final KM200Device device, final KM200Comm comm,
+                   final ValueCache cache, final ScheduledExecutorService executor, final String gateway)
+    {
+        _gateway = gateway;
+        _device = device;
+        _comm = comm;
+        _cache = cache;
+        _executor = executor;
+        _debounceMillis = Math.max(0, config.getDebounceMillis());
+        _qos = config.getQos();
+        for (ServiceMapping mapping : mappings)
+        {
+            final String service = mapping.getServiceName();
+            final KM200CommObject object = device.getServices().get(service);
+            if (null == object || !object.isWriteable())
+            {
+                continue;
+            }
+            final MessageTemplate topicTemplate = null == mapping.getMqttTopic() ? null : mapping.getTopicTemplate();
+            if (config.getTopic().contains("{topic}") && (null == topicTemplate || !topicTemplate.isStatic()))
+            {
+                logger.warn("Service {} has no fixed MQTT topic, so it gets no command topic.", service);
+                continue;
+            }
+            final String topic = Gateway.expand(config.getTopic(), gateway)
+                    .replace("{topic}", null == topicTemplate ? "" : topicTemplate.getStaticText())
+                    .replace("{service}", service);
+            final String previous = _topics.put(topic, service);
+            if (null != previous && !previous.equals(service))
+            {
+                logger.warn("Command topic {} is used for {} and {}, only the latter is written.", topic, previous, service);
+            }
+        }
+        logger.info("Accepting commands for {} writeable services.", _topics.size());
+    }
+
+    /**
+     * Subscribes to the command topics at all MQTT servers.
+     */
+    void subscribe(final List<BrokerConnection> brokers)
+    {
+        if (_topics.isEmpty())
+        {
+            return;
+        }
+        for (BrokerConnection broker : brokers)
+        {
+            broker.subscribe(_topics.keySet(), _qos, _listener);
+        }
+    }
+
+    void registerMBean()
+    {
+        _mbeanName = MBeans.register("Commands", _gateway, this);
+    }
+
+    /**
+     * Stops accepting commands, e.g. before this handler is replaced after a configuration reload. Writes which are
+     * already scheduled are still done; commands the MQTT client delivers afterwards are rejected.
+     */
+    void close(final List<BrokerConnection> brokers)
+    {
+        for (BrokerConnection broker : brokers)
+        {
+            broker.unsubscribe(_topics.keySet(), _listener);
+        }
+        _executor.shutdown();
+        MBeans.unregister(_mbeanName);
+    }
+
+    /**
+     * Called by the MQTT client; checks the command and schedules the write.
+     */
+    void commandArrived(final String topic, final MqttMessage message)
+    {
+        final String service = _topics.get(topic);
+        if (null == service)
+        {
+            return;
+        }
+        _received.increment();
+        if (message.isRetained())
+        {
+            logger.debug("Ignoring retained command for {}.", service);
+            _rejected.increment();
+            return;
+        }
+        final String payload = new String(message.getPayload(), StandardCharsets.UTF_8).trim();
+        final Object value = validate(service, payload);
+        if (null == value)
+        {
+            _rejected.increment();
+            return;
+        }
+        final long now = System.nanoTime();
+        final boolean[] first = new boolean[1];
+        // replaces a pending value, but keeps the time of its first command
+        _pending.compute(service, (k, previous) -> {
+            first[0] = null == previous;
+            return new Pending(value, null == previous ? now : previous._firstReceived);
+        });
+        if (first[0])
+        {
+            try
+            {
+                _executor.schedule(() -> write(service), _debounceMillis, TimeUnit.MILLISECONDS);
+            }
+            catch (RejectedExecutionException e)
+            {
+                // closed meanwhile, the command was still queued in the MQTT client; an exception here would be
+                // taken as fatal by the client and close the connection
+                _pending.remove(service);
+                _rejected.increment();
+                logger.warn("Command for {} arrived after the commands were closed, not writing it.", service);
+            }
+        }
+        else
+        {
+            _coalesced.increment();
+        }
+    }
+
+    /**
+     * @return the value to write (a Double or a String), or null when the payload is not valid for the service
+     */
+    Object validate(final String service, final String payload)
+    {
+        final KM200CommObject object = _device.getServices().get(service);
+        if (null == object)
+        {
+            logger.warn("Command for unknown service {}.", service);
+            return null;
+        }
+        switch (object.getServiceType())
+        {
+            case "floatValue":
+            {
+                final double value;
+                try
+                {
+                    value = Double.parseDouble(payload);
+                }
+                catch (NumberFormatException e)
+                {
+                    logger.warn("Command for {} is not a number: [{}]", service, payload);
+                    return null;
+                }
+                if (!Double.isFinite(value))
+                {
+                    logger.warn("Command for {} is not a finite number: [{}]", service, payload);
+                    return null;
+                }
+                if (object.hasRange())
+                {
+                    final double min = object.getMinValue();
+                    final double max = object.getMaxValue();
+                    if (value < min || value > max)
+                    {
+                        logger.warn("Command for {} is out of range [{}, {}]: {}", service, min, max, value);
+                        return null;
+                    }
+                }
+                return value;
+            }
+            case "stringValue":
+            {
+                final List<String> allowed = object.getAllowedValues();
+                if (null != allowed && !allowed.isEmpty() && !allowed.contains(payload))
+                {
+                    logger.warn("Command for {} is not one of {}: [{}]", service, allowed, payload);
+                    return null;
+                }
+                return payload;
+            }
+            default:
+                logger.warn("Commands for {} of type {} are not supported.", service, object.getServiceType());
+                return null;
+        }
+    }
+
+    private void write(final String service)
+    {
+        final Pending pending = _pending.remove(service);
+        if (null == pending)
+        {
+            return;
+        }
+        try
+        {
+            final String json = new JSONObject().put("value", pending._value).toString();
+            if (_comm.sendDataToService(_device, service, json))
+            {
+                _written.increment();
+                _writeLatency.recordNanos(System.nanoTime() - pending._firstReceived);
+                logger.info("Set {} to {}.", service, pending._value);
+                final KM200CommObject object = _device.getServices().get(service);
+                if (null != object)
+                {
+                    object.setValue(pending._value);
+                }
+                _cache.invalidate(service);
+            }
+            else
+            {
+                _failed.increment();
+                logger.warn("The KM200 did not accept {} for {}.", pending._value, service);
+            }
+        }
+        catch (RuntimeException e)
+        {
+            // an exception would stop the executor from running further writes
+            _failed.increment();
+            logger.error("Error while writing {}: ", service, e);
+        }
+    }
+
+    @Override
+    public int getTopicCount()
+    {
+        return _topics.size();
+    }
+
+    @Override
+    public long getReceivedCount()
+    {
+        return _received.sum();
+    }
+
+    @Override
+    public long getRejectedCount()
+    {
+        return _rejected.sum();
+    }
+
+    @Override
+    public long getCoalescedCount()
+    {
+        return _coalesced.sum();
+    }
+
+    @Override
+    public long getWrittenCount()
+    {
+        return _written.sum();
+    }
+
+    @Override
+    public long getFailedCount()
+    {
+        return _failed.sum();
+    }
+
+    @Override
+    public LatencyHistogram getWriteLatency()
+    {
+        return _writeLatency;
+    }
+}
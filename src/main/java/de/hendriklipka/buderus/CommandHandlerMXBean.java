@@ -0,0 +1,38 @@
+package de.hendriklipka.buderus;
+
+import de.hendriklipka.buderus.metrics.LatencyHistogram;
+
+/**
+ * The state of the command topics. Latencies are in microseconds.
+ */
+public interface CommandHandlerMXBean
+{
+    /**
+     * @return the number of command topics subscribed to
+     */
+    int getTopicCount();
+
+    long getReceivedCount();
+
+    /**
+     * @return the number of commands not written, because their value is not allowed for the service
+     */
+    long getRejectedCount();
+
+    /**
+     * @return the number of commands replaced by a newer command for the same service before they were written
+     */
+    long getCoalescedCount();
+
+    long getWrittenCount();
+
+    /**
+     * @return the number of writes the device did not accept
+     */
+    long getFailedCount();
+
+    /**
+     * @return the time from the first command of a write until the device answered it, including the debounce time
+     */
+    LatencyHistogram getWriteLatency();
+}
@@ -0,0 +1,47 @@
+package de.hendriklipka.buderus;
+
+/**
+ * Configuration of the command topics, which change writeable services on the KM200.
+ */
+public class CommandsConfig
+{
+    private String _topic = "{topic}/set";
+    private int _debounceMillis = 500;
+    private int _qos = 1;
+
+    /**
+     * @return the command topic of a mapping; {topic} is replaced with its MQTT topic, {service} with its service
+     */
+    public String getTopic()
+    {
+        return _topic;
+    }
+
+    public void setTopic(final String topic)
+    {
+        _topic = topic;
+    }
+
+    /**
+     * @return how long to collect commands for a service before writing it; only the last value is written
+     */
+    public int getDebounceMillis()
+    {
+        return _debounceMillis;
+    }
+
+    public void setDebounceMillis(final int debounceMillis)
+    {
+        _debounceMillis = debounceMillis;
+    }
+
+    public int getQos()
+    {
+        return _qos;
+    }
+
+    public void setQos(final int qos)
+    {
+        _qos = qos;
+    }
+}
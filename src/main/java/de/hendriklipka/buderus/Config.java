@@ -1,6 +1,10 @@
 package de.hendriklipka.buderus;
 
+import de.hendriklipka.buderus.km200.KM200HttpSettings;
+
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 /**
  * User: hli
@@ -16,6 +20,20 @@ public class Config
     private String _md5Salt;
 
     private int _intervalSeconds;
+    private boolean _spreadPolls = true;
+    private boolean _watchConfig = true;
+    private int _maxParallelRequests = 1;
+    private KM200HttpSettings _http = new KM200HttpSettings();
+    private int _discoveryParallelism = 1;
+    private String _discoveryCacheDir;
+    private boolean _fullDiscovery = false;
+    private List<String> _discoveryBlacklist = Collections.emptyList();
+    private Map<String, Integer> _valueCacheSeconds;
+    private AggregationConfig _aggregation;
+    private RecordingsConfig _recordings;
+    private ApiConfig _api;
+    private CommandsConfig _commands;
+    private List<GatewayConfig> _gateways = Collections.emptyList();
 
     private List<MqttServerConfig> _mqttServers;
     private List<ServiceMapping> _services;
@@ -80,6 +98,188 @@ public class Config
         _intervalSeconds = intervalSeconds;
     }
 
+    public boolean isSpreadPolls()
+    {
+        return _spreadPolls;
+    }
+
+    public void setSpreadPolls(final boolean spreadPolls)
+    {
+        _spreadPolls = spreadPolls;
+    }
+
+    /**
+     * @return whether changes of the configuration file are applied while running
+     */
+    public boolean isWatchConfig()
+    {
+        return _watchConfig;
+    }
+
+    public void setWatchConfig(final boolean watchConfig)
+    {
+        _watchConfig = watchConfig;
+    }
+
+    public int getMaxParallelRequests()
+    {
+        return _maxParallelRequests;
+    }
+
+    public void setMaxParallelRequests(final int maxParallelRequests)
+    {
+        _maxParallelRequests = maxParallelRequests;
+    }
+
+    public KM200HttpSettings getHttp()
+    {
+        return _http;
+    }
+
+    public void setHttp(final KM200HttpSettings http)
+    {
+        _http = http;
+    }
+
+    public int getDiscoveryParallelism()
+    {
+        return _discoveryParallelism;
+    }
+
+    public void setDiscoveryParallelism(final int discoveryParallelism)
+    {
+        _discoveryParallelism = discoveryParallelism;
+    }
+
+    public String getDiscoveryCacheDir()
+    {
+        return _discoveryCacheDir;
+    }
+
+    public void setDiscoveryCacheDir(final String discoveryCacheDir)
+    {
+        _discoveryCacheDir = discoveryCacheDir;
+    }
+
+    /**
+     * @return whether to discover the whole service tree at startup, instead of only the configured services
+     */
+    public boolean isFullDiscovery()
+    {
+        return _fullDiscovery;
+    }
+
+    public void setFullDiscovery(final boolean fullDiscovery)
+    {
+        _fullDiscovery = fullDiscovery;
+    }
+
+    /**
+     * @return the services to skip during the discovery, together with all services below them
+     */
+    public List<String> getDiscoveryBlacklist()
+    {
+        return _discoveryBlacklist;
+    }
+
+    public void setDiscoveryBlacklist(final List<String> discoveryBlacklist)
+    {
+        _discoveryBlacklist = discoveryBlacklist;
+    }
+
+    /**
+     * @return how long retrieved values are re-used, per KM200 service type (e.g. 'floatValue'), with 'default' for
+     * all other types; null to always ask the device
+     */
+    public Map<String, Integer> getValueCacheSeconds()
+    {
+        return _valueCacheSeconds;
+    }
+
+    public void setValueCacheSeconds(final Map<String, Integer> valueCacheSeconds)
+    {
+        _valueCacheSeconds = valueCacheSeconds;
+    }
+
+    /**
+     * @return the aggregation settings, null when each value is published on its own
+     */
+    public AggregationConfig getAggregation()
+    {
+        return _aggregation;
+    }
+
+    public void setAggregation(final AggregationConfig aggregation)
+    {
+        _aggregation = aggregation;
+    }
+
+    /**
+     * @return the settings for exporting the recordings, null to not export them
+     */
+    public RecordingsConfig getRecordings()
+    {
+        return _recordings;
+    }
+
+    public void setRecordings(final RecordingsConfig recordings)
+    {
+        _recordings = recordings;
+    }
+
+    /**
+     * @return the settings of the local HTTP API, null to not start it
+     */
+    public ApiConfig getApi()
+    {
+        return _api;
+    }
+
+    public void setApi(final ApiConfig api)
+    {
+        _api = api;
+    }
+
+    /**
+     * @return the settings for the command topics, null to not accept commands
+     */
+    public CommandsConfig getCommands()
+    {
+        return _commands;
+    }
+
+    public void setCommands(final CommandsConfig commands)
+    {
+        _commands = commands;
+    }
+
+    /**
+     * @return the gateways in fleet mode; when empty, the single gateway configured by buderusServer etc. is used
+     */
+    public List<GatewayConfig> getGateways()
+    {
+        return _gateways;
+    }
+
+    public void setGateways(final List<GatewayConfig> gateways)
+    {
+        _gateways = gateways;
+    }
+
+    /**
+     * @return the connection to the single gateway, when not in fleet mode
+     */
+    public GatewayConfig getSingleGateway()
+    {
+        final GatewayConfig gateway = new GatewayConfig();
+        gateway.setBuderusServer(_buderusServer);
+        gateway.setPrivateKey(_privateKey);
+        gateway.setGatewayPassword(_gatewayPassword);
+        gateway.setPrivatePassword(_privatePassword);
+        gateway.setMd5Salt(_md5Salt);
+        return gateway;
+    }
+
     public List<MqttServerConfig> getMqttServers()
     {
         return _mqttServers;
@@ -0,0 +1,97 @@
+package de.hendriklipka.buderus;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the configuration file, and calls the listener once the file was changed. Editors often write a file in
+ * several steps (or replace it), so the listener is only called when there were no further changes for a moment.
+ * <p>
+ * The directory of the file is watched, since a replaced file is a new file for the file system.
+ */
+class ConfigWatcher implements Runnable
+{
+    private static final Logger logger = LoggerFactory.getLogger(ConfigWatcher.class);
+
+    private static final long SETTLE_MILLIS = 1000;
+
+    private final Path _file;
+    private final Runnable _listener;
+
+    ConfigWatcher(final File file, final Runnable listener)
+    {
+        _file = file.getAbsoluteFile().toPath();
+        _listener = listener;
+    }
+
+    void start()
+    {
+        final Thread thread = new Thread(this, "config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run()
+    {
+        try (WatchService watcher = FileSystems.getDefault().newWatchService())
+        {
+            _file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            logger.info("Watching {} for changes.", _file);
+            while (true)
+            {
+                if (!changed(watcher.take()))
+                {
+                    continue;
+                }
+                // wait until the file is written completely
+                WatchKey key;
+                while (null != (key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)))
+                {
+                    changed(key);
+                }
+                try
+                {
+                    _listener.run();
+                }
+                catch (RuntimeException e)
+                {
+                    logger.error("Cannot reload the configuration: ", e);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot watch {}, changes need a restart: {}", _file, e.getMessage());
+        }
+        catch (InterruptedException | ClosedWatchServiceException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return whether the events of the key concern the configuration file
+     */
+    private boolean changed(final WatchKey key)
+    {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents())
+        {
+            changed |= event.kind() == StandardWatchEventKinds.OVERFLOW || _file.getFileName().equals(event.context());
+        }
+        key.reset();
+        return changed;
+    }
+}
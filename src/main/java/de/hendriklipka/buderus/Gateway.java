@@ -0,0 +1,458 @@
+package de.hendriklipka.buderus;
+
+import de.hendriklipka.buderus.km200.KM200Comm;
+import de.hendriklipka.buderus.km200.KM200CommObject;
+import de.hendriklipka.buderus.km200.KM200Device;
+import de.hendriklipka.buderus.km200.KM200Discovery;
+import de.hendriklipka.buderus.km200.KM200HttpSettings;
+import de.hendriklipka.buderus.km200.KM200PathTrie;
+import de.hendriklipka.buderus.km200.KM200ServiceCache;
+import de.hendriklipka.buderus.km200.KM200ServiceTypes;
+import de.hendriklipka.buderus.km200.KM200Transport;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One KM200 gateway with everything which belongs to it: the device and its discovered services, the value cache,
+ * and the publishing, commands and recordings for it. The MQTT servers and the HTTP connection pool are shared by
+ * all gateways.
+ * <p>
+ * Each gateway is polled by its own scheduler thread, and each has its own request limiter and its own connections
+ * in the pool, so a gateway which hangs or is overloaded only delays itself.
+ */
+class Gateway
+{
+    private static final Logger logger = LoggerFactory.getLogger(Gateway.class);
+
+    static final String PLACEHOLDER = "{gateway}";
+
+    private static final int RETRY_SECONDS = 60;
+    /* when the cached services are re-discovered, after the first values were published */
+    private static final int REVALIDATION_DELAY_SECONDS = 10;
+
+    private final String _name;
+    private final KM200Device _device = new KM200Device();
+    private final KM200Comm _comm;
+    private final ValueCache _cache;
+    /* polls the gateway; everything changing the publishing runs on it as well */
+    private final ScheduledExecutorService _scheduler;
+
+    /* only changed on the scheduler thread */
+    private volatile Config _config;
+    private List<BrokerConnection> _brokers;
+    private ExecutorService _fetchExecutor;
+    private boolean _started = false;
+    private MqttPublisher _publisher;
+    private ScheduledFuture<?> _polling;
+    private CommandHandler _commands;
+
+    /**
+     * @param name the name of the gateway in fleet mode, null when it is the only one
+     */
+    Gateway(final String name, final GatewayConfig gatewayConfig, final Config config, final KM200HttpSettings httpSettings,
+            final KM200Transport transport)
+    {
+        _name = name;
+        _config = config;
+        _device.setIP4Address(gatewayConfig.getBuderusServer());
+        if (StringUtils.isNotBlank(gatewayConfig.getPrivateKey()))
+        {
+            _device.setCryptKeyPriv(gatewayConfig.getPrivateKey());
+        }
+        else
+        {
+            _device.setGatewayPassword(gatewayConfig.getGatewayPassword());
+            _device.setPrivatePassword(gatewayConfig.getPrivatePassword());
+            _device.setMD5Salt(gatewayConfig.getMd5Salt());
+        }
+        for (String prefix : config.getDiscoveryBlacklist())
+        {
+            _device.addToBlacklist(prefix);
+        }
+        _comm = new KM200Comm(httpSettings, transport);
+        _cache = new ValueCache(_device, config.getValueCacheSeconds());
+        _scheduler = null == name
+                ? Executors.newSingleThreadScheduledExecutor()
+                : Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "gateway-" + name));
+    }
+
+    String getName()
+    {
+        return _name;
+    }
+
+    KM200Device getDevice()
+    {
+        return _device;
+    }
+
+    ValueCache getCache()
+    {
+        return _cache;
+    }
+
+    /**
+     * @return whether the gateway answered
+     */
+    boolean connect()
+    {
+        _comm.connect(_device);
+        if (!_comm.isConnected())
+        {
+            logger.error("Cannot connect to Buderus device at [{}].", _device.getIP4Address());
+            return false;
+        }
+        logger.info("Connected to {}. Retrieve the services.", describe());
+        return true;
+    }
+
+    /**
+     * Fills the service map of the device, with the configured services (and the services on the way to them) or
+     * with the whole service tree. When there is a discovery cache for this gateway which has all needed services, it
+     * is used and the services are re-discovered a little later on the thread of the gateway, see
+     * {@link #revalidate(KM200ServiceCache, KM200ServiceCache.GatewayIdentity)}. Otherwise, they are discovered now.
+     *
+     * @param listing true to always discover the whole service tree, without the cache
+     */
+    void discover(final boolean listing)
+    {
+        final List<String> targets = listing || _config.isFullDiscovery() ? null : discoveryTargets(_config);
+        final KM200ServiceCache cache = StringUtils.isNotBlank(_config.getDiscoveryCacheDir())
+                ? new KM200ServiceCache(new File(_config.getDiscoveryCacheDir()))
+                : null;
+        final KM200ServiceCache.GatewayIdentity identity = null == cache ? null : KM200ServiceCache.readIdentity(_comm, _device);
+        if (null != cache && null == identity)
+        {
+            logger.warn("Gateway {} does not report its UUID and firmware, not using the discovery cache.", describe());
+        }
+
+        final Map<String, KM200CommObject> cached = null == identity || listing ? null : cache.load(identity);
+        if (null != cached && (null == targets || missing(targets, KM200PathTrie.of(cached)).isEmpty()))
+        {
+            _device.replaceServices(cached);
+            _scheduler.schedule(() -> revalidate(cache, identity), REVALIDATION_DELAY_SECONDS, TimeUnit.SECONDS);
+        }
+        else
+        {
+            final Map<String, KM200CommObject> services = discover(new KM200Discovery(_comm, _config.getDiscoveryParallelism()), targets);
+            _device.replaceServices(services);
+            if (null != identity)
+            {
+                cache.save(identity, services);
+            }
+        }
+        logger.info("Retrieval of the KM200 service information of {} completed.", describe());
+        _device.setInited(true);
+    }
+
+    /**
+     * Discovers the services again after they were taken from the cache, and updates the cache. Runs on the thread of
+     * the gateway, like a reload, so the polling waits for it and it cannot overlap with the discovery of a reload;
+     * the targets are taken from the configuration in effect at that time, so services a reload added are kept.
+     */
+    private void revalidate(final KM200ServiceCache cache, final KM200ServiceCache.GatewayIdentity identity)
+    {
+        final List<String> targets = _config.isFullDiscovery() ? null : discoveryTargets(_config);
+        try
+        {
+            final Map<String, KM200CommObject> services = discover(new KM200Discovery(_comm, _config.getDiscoveryParallelism()), targets);
+            _device.replaceServices(services);
+            cache.save(identity, services);
+            logger.info("Re-validated the cached services of {}.", describe());
+        }
+        catch (RuntimeException e)
+        {
+            logger.warn("Re-validation of the cached services of {} failed, keeping them: {}", describe(), e.getMessage());
+        }
+    }
+
+    /**
+     * @param targets the service patterns to discover, null for the whole service tree
+     */
+    private Map<String, KM200CommObject> discover(final KM200Discovery discovery, final List<String> targets)
+    {
+        final List<String> roots = new ArrayList<>();
+        for (KM200ServiceTypes service : KM200ServiceTypes.values())
+        {
+            roots.add(service.getDescription());
+        }
+        return null == targets ? discovery.discover(_device, roots) : discovery.discover(_device, roots, targets);
+    }
+
+    /**
+     * Discovers the configured services which are not known yet, e.g. after mappings were added by a reload.
+     */
+    private void discoverMissing()
+    {
+        if (_config.isFullDiscovery())
+        {
+            return;
+        }
+        final List<String> missing = missing(discoveryTargets(_config), _device.getServiceIndex());
+        if (missing.isEmpty())
+        {
+            return;
+        }
+        try
+        {
+            final Map<String, KM200CommObject> services = new HashMap<>(_device.getServices());
+            services.putAll(discover(new KM200Discovery(_comm, _config.getDiscoveryParallelism()), missing));
+            _device.replaceServices(services);
+        }
+        catch (RuntimeException e)
+        {
+            logger.warn("Cannot discover the new services {} of {}: {}", missing, describe(), e.getMessage());
+        }
+    }
+
+    /**
+     * @return the services the configuration needs: the mapped services (or patterns), and the exported recordings
+     */
+    private static List<String> discoveryTargets(final Config config)
+    {
+        final Set<String> targets = new LinkedHashSet<>();
+        for (ServiceMapping mapping : config.getServices())
+        {
+            targets.add(mapping.getServiceName());
+        }
+        if (null != config.getRecordings())
+        {
+            targets.addAll(config.getRecordings().getServices());
+        }
+        return new ArrayList<>(targets);
+    }
+
+    /**
+     * @return the targets which are not known: services which are missing, and patterns matching no service
+     */
+    private static List<String> missing(final List<String> targets, final KM200PathTrie<KM200CommObject> services)
+    {
+        final List<String> missing = new ArrayList<>();
+        for (String target : targets)
+        {
+            if (target.contains(KM200PathTrie.WILDCARD) ? services.match(target).isEmpty() : null == services.get(target))
+            {
+                missing.add(target);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Starts polling and publishing, and (when configured) the commands and the recordings export.
+     *
+     * @param brokers            the MQTT servers; the list may change later, so it must be safe to iterate concurrently
+     * @param recordingsExecutor runs the recordings export, may be shared with other gateways
+     */
+    void start(final List<BrokerConnection> brokers, final ScheduledExecutorService recordingsExecutor)
+    {
+        _scheduler.execute(() -> {
+            _brokers = brokers;
+            if (_config.getMaxParallelRequests() > 1)
+            {
+                logger.info("Retrieving up to {} services of {} in parallel.", _config.getMaxParallelRequests(), describe());
+                _fetchExecutor = idleThreads(_config.getMaxParallelRequests(), threads("km200-fetch"));
+            }
+            startPublishing();
+            _started = true;
+
+            if (null != _config.getRecordings())
+            {
+                final RecordingsExporter exporter = new RecordingsExporter(_comm, _device, _config.getRecordings(), brokers, _name);
+                recordingsExecutor.scheduleWithFixedDelay(exporter, 1, Math.max(1, _config.getRecordings().getIntervalMinutes()), TimeUnit.MINUTES);
+            }
+        });
+    }
+
+    /**
+     * Connects to the gateway, discovers its services and starts it, all on its own thread. When the gateway cannot
+     * be reached, this is tried again later, so one gateway cannot keep the others from starting.
+     */
+    void startWhenReachable(final List<BrokerConnection> brokers, final ScheduledExecutorService recordingsExecutor)
+    {
+        _scheduler.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    if (connect())
+                    {
+                        discover(false);
+                        start(brokers, recordingsExecutor);
+                        return;
+                    }
+                }
+                catch (RuntimeException e)
+                {
+                    logger.error("Cannot start gateway {}: ", _name, e);
+                }
+                logger.warn("Trying gateway {} again in {} seconds.", _name, RETRY_SECONDS);
+                _scheduler.schedule(this, RETRY_SECONDS, TimeUnit.SECONDS);
+            }
+        });
+    }
+
+    /**
+     * Applies a changed configuration of the mappings, the polling, the aggregation and the commands. The device
+     * with its discovered services, the HTTP connections and the value cache are kept; the publishing state and
+     * the metrics of unchanged mappings are taken over.
+     */
+    void reload(final Config config)
+    {
+        _scheduler.execute(() -> {
+            _config = config;
+            if (!_started)
+            {
+                return;
+            }
+            try
+            {
+                discoverMissing();
+                _polling.cancel(false);
+                if (null != _commands)
+                {
+                    _commands.close(_brokers);
+                    _commands = null;
+                }
+                _publisher.unregisterMBeans();
+                startPublishing();
+                logger.info("Applied the new configuration to {}.", describe());
+            }
+            catch (RuntimeException e)
+            {
+                logger.error("Cannot apply the new configuration to {}: ", describe(), e);
+            }
+        });
+    }
+
+    /**
+     * Subscribes the command topics at an MQTT server which was added to the configuration.
+     */
+    void brokerAdded(final BrokerConnection broker)
+    {
+        _scheduler.execute(() -> {
+            if (null != _commands)
+            {
+                _commands.subscribe(Collections.singletonList(broker));
+            }
+        });
+    }
+
+    private void startPublishing()
+    {
+        final List<ServiceMapping> mappings = expandWildcards(copyMappings(_config.getServices(), _name), _device);
+        final Aggregator aggregator = null == _config.getAggregation() ? null : new Aggregator(_config.getAggregation(), mappings, _name);
+        _publisher = new MqttPublisher(mappings, _device, _comm, _brokers, _fetchExecutor, _cache, aggregator, _publisher);
+        _publisher.registerMBeans(_name);
+        _polling = _scheduler.scheduleAtFixedRate(new PollScheduler(_publisher, mappings, _config.getIntervalSeconds(), _config.isSpreadPolls(),
+                aggregator), 1, 1, TimeUnit.SECONDS);
+
+        if (null != _config.getCommands())
+        {
+            // a single thread, so the writes are done one after another
+            _commands = new CommandHandler(_config.getCommands(), mappings, _device, _comm, _cache, idleThreads(1, threads("km200-write")), _name);
+            _commands.registerMBean();
+            _commands.subscribe(_brokers);
+        }
+    }
+
+    private String describe()
+    {
+        return null == _name ? _device.getIP4Address() : _name + " (" + _device.getIP4Address() + ")";
+    }
+
+    private ThreadFactory threads(final String prefix)
+    {
+        return Buderus2Mqtt.daemonThreads(null == _name ? prefix : prefix + "-" + _name);
+    }
+
+    /**
+     * @return a pool whose threads end when idle, so hundreds of gateways do not keep hundreds of sleeping threads
+     */
+    private static ScheduledThreadPoolExecutor idleThreads(final int threads, final ThreadFactory threadFactory)
+    {
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(threads, threadFactory);
+        executor.setKeepAliveTime(60, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * @return copies of the mappings with {gateway} replaced; each gateway needs its own, they keep the state of the
+     * publishing
+     */
+    private static List<ServiceMapping> copyMappings(final List<ServiceMapping> mappings, final String name)
+    {
+        final List<ServiceMapping> copies = new ArrayList<>(mappings.size());
+        for (ServiceMapping mapping : mappings)
+        {
+            final ServiceMapping copy = mapping.copyFor(mapping.getServiceName());
+            copy.setMqttTopic(expand(mapping.getMqttTopic(), name));
+            copy.setMqttMessage(expand(mapping.getMqttMessage(), name));
+            copy.compileTemplates();
+            copies.add(copy);
+        }
+        return copies;
+    }
+
+    /**
+     * Replaces each mapping with a wildcard pattern by one mapping per matching service. This is done after the
+     * discovery and after each reload; services found later by a re-validation are not added until then.
+     */
+    private static List<ServiceMapping> expandWildcards(final List<ServiceMapping> mappings, final KM200Device device)
+    {
+        final List<ServiceMapping> expanded = new ArrayList<>(mappings.size());
+        for (ServiceMapping mapping : mappings)
+        {
+            if (!mapping.isWildcard())
+            {
+                expanded.add(mapping);
+                continue;
+            }
+            final List<String> services = device.getServiceIndex().match(mapping.getServiceName());
+            if (services.isEmpty())
+            {
+                logger.warn("No service matches {}.", mapping.getServiceName());
+            }
+            logger.debug("{} matches {}", mapping.getServiceName(), services);
+            for (String service : services)
+            {
+                final ServiceMapping copy = mapping.copyFor(service);
+                copy.compileTemplates();
+                expanded.add(copy);
+            }
+        }
+        if (expanded.size() != mappings.size())
+        {
+            logger.info("Expanded the wildcards to {} services in total.", expanded.size());
+        }
+        return expanded;
+    }
+
+    /**
+     * @return the text with {gateway} replaced by the name of the gateway (or by nothing, without a name)
+     */
+    static String expand(final String text, final String name)
+    {
+        return null == text ? null : text.replace(PLACEHOLDER, null == name ? "" : name);
+    }
+}
@@ -0,0 +1,78 @@
+package de.hendriklipka.buderus;
+
+/**
+ * The connection to one KM200 gateway in fleet mode. All other settings (services, intervals, MQTT servers, ...) are
+ * shared by all gateways.
+ */
+public class GatewayConfig
+{
+    private String _name;
+    private String _buderusServer;
+    private String _privateKey;
+    private String _gatewayPassword;
+    private String _privatePassword;
+    private String _md5Salt;
+
+    /**
+     * @return the unique name of the gateway, replaces {gateway} in topics and file names
+     */
+    public String getName()
+    {
+        return _name;
+    }
+
+    public void setName(final String name)
+    {
+        _name = name;
+    }
+
+    public String getBuderusServer()
+    {
+        return _buderusServer;
+    }
+
+    public void setBuderusServer(final String buderusServer)
+    {
+        _buderusServer = buderusServer;
+    }
+
+    public String getPrivateKey()
+    {
+        return _privateKey;
+    }
+
+    public void setPrivateKey(final String privateKey)
+    {
+        _privateKey = privateKey;
+    }
+
+    public String getGatewayPassword()
+    {
+        return _gatewayPassword;
+    }
+
+    public void setGatewayPassword(final String gatewayPassword)
+    {
+        _gatewayPassword = gatewayPassword;
+    }
+
+    public String getPrivatePassword()
+    {
+        return _privatePassword;
+    }
+
+    public void setPrivatePassword(final String privatePassword)
+    {
+        _privatePassword = privatePassword;
+    }
+
+    public String getMd5Salt()
+    {
+        return _md5Salt;
+    }
+
+    public void setMd5Salt(final String md5Salt)
+    {
+        _md5Salt = md5Salt;
+    }
+}
@@ -0,0 +1,194 @@
+package de.hendriklipka.buderus;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import de.hendriklipka.buderus.km200.KM200Device;
+import de.hendriklipka.buderus.km200.KM200ServiceCache;
+
+/**
+ * A read-only HTTP API for dashboards and scripts, so they do not need to ask the KM200 themselves:
+ * <ul>
+ * <li>GET /api/values[/subtree] - the last polled value of each service, with the time it was retrieved</li>
+ * <li>GET /api/services[/subtree] - the discovered services with their meta data and last known value</li>
+ * </ul>
+ * Everything is answered from memory; the API has no access to the device, so it cannot add to its load. A subtree
+ * like '/system/sensors' selects that service and all services below it.
+ * <p>
+ * In fleet mode, the first element of the path is the name of the gateway: '/api/values/house7/system/sensors'.
+ * Without it, the answer contains all gateways, one object per name.
+ */
+class HttpApi
+{
+    private static final Logger logger = LoggerFactory.getLogger(HttpApi.class);
+
+    private static final String VALUES = "/api/values";
+    private static final String SERVICES = "/api/services";
+
+    private final Map<String, Gateway> _gateways = new LinkedHashMap<>();
+    private final boolean _fleet;
+    private final LongAdder _requests = new LongAdder();
+
+    private HttpServer _server;
+
+    /**
+     * @param gateways the gateways; a single gateway without a name is served without the gateway element in the path
+     */
+    HttpApi(final List<Gateway> gateways)
+    {
+        for (Gateway gateway : gateways)
+        {
+            _gateways.put(gateway.getName(), gateway);
+        }
+        _fleet = gateways.size() != 1 || null != gateways.get(0).getName();
+    }
+
+    void start(final ApiConfig config, final ExecutorService executor) throws IOException
+    {
+        _server = HttpServer.create(new InetSocketAddress(config.getAddress(), config.getPort()), 50);
+        _server.setExecutor(executor);
+        _server.createContext(VALUES, exchange -> handle(exchange, VALUES));
+        _server.createContext(SERVICES, exchange -> handle(exchange, SERVICES));
+        _server.start();
+        logger.info("HTTP API listening on {}:{}.", config.getAddress(), _server.getAddress().getPort());
+    }
+
+    void stop()
+    {
+        if (null != _server)
+        {
+            _server.stop(0);
+        }
+    }
+
+    long getRequestCount()
+    {
+        return _requests.sum();
+    }
+
+    private void handle(final HttpExchange exchange, final String context) throws IOException
+    {
+        try
+        {
+            _requests.increment();
+            // the server only keeps the connection open when the request has been read completely
+            exchange.getRequestBody().close();
+            if (!"GET".equals(exchange.getRequestMethod()))
+            {
+                exchange.getResponseHeaders().add("Allow", "GET");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            String subtree = exchange.getRequestURI().getPath().substring(context.length());
+            while (subtree.endsWith("/"))
+            {
+                subtree = subtree.substring(0, subtree.length() - 1);
+            }
+            if (!subtree.isEmpty() && !subtree.startsWith("/"))
+            {
+                // e.g. '/api/valuesX'
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            final JSONObject result = _fleet ? fleet(context, subtree) : answer(context, _gateways.values().iterator().next(), subtree);
+            if (null == result || (result.isEmpty() && !subtree.isEmpty()))
+            {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            final byte[] body = result.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-type", "application/json; charset=UTF-8");
+            exchange.getResponseHeaders().add("Cache-Control", "no-store");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody())
+            {
+                out.write(body);
+            }
+        }
+        catch (RuntimeException e)
+        {
+            logger.error("Cannot answer API request {}: ", exchange.getRequestURI(), e);
+            exchange.sendResponseHeaders(500, -1);
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+
+    /**
+     * @return the answer for the gateway named by the first element of the path, or {"name":{...},...} for all
+     *         gateways; null when there is no such gateway
+     */
+    private JSONObject fleet(final String context, final String path)
+    {
+        if (path.isEmpty())
+        {
+            final JSONObject result = new JSONObject();
+            for (Gateway gateway : _gateways.values())
+            {
+                result.put(gateway.getName(), answer(context, gateway, ""));
+            }
+            return result;
+        }
+        final int end = path.indexOf('/', 1);
+        final Gateway gateway = _gateways.get(end < 0 ? path.substring(1) : path.substring(1, end));
+        return null == gateway ? null : answer(context, gateway, end < 0 ? "" : path.substring(end));
+    }
+
+    private JSONObject answer(final String context, final Gateway gateway, final String subtree)
+    {
+        return VALUES.equals(context) ? values(gateway.getCache(), subtree) : services(gateway.getDevice(), subtree);
+    }
+
+    /**
+     * @return {"/system/sensors/temperatures/outdoor_t1":{"value":7.4,"timestamp":1700000000000},...}
+     */
+    private JSONObject values(final ValueCache cache, final String subtree)
+    {
+        final JSONObject result = new JSONObject();
+        cache.forEach((service, value, epochMillis) -> {
+            if (contains(subtree, service))
+            {
+                final JSONObject entry = new JSONObject();
+                entry.put("value", Double.isFinite(value) ? value : JSONObject.NULL);
+                entry.put("timestamp", epochMillis);
+                result.put(service, entry);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return {"/system/sensors/temperatures/outdoor_t1":{"id":...,"type":"floatValue","value":7.4,...},...}
+     */
+    private JSONObject services(final KM200Device device, final String subtree)
+    {
+        final JSONObject result = new JSONObject();
+        device.getServiceIndex().subtree(subtree, (service, object) -> result.put(service, KM200ServiceCache.toJson(object)));
+        return result;
+    }
+
+    /**
+     * @return whether the service is the root of the subtree, or below it
+     */
+    static boolean contains(final String subtree, final String service)
+    {
+        return subtree.isEmpty()
+                || (service.startsWith(subtree) && (service.length() == subtree.length() || service.charAt(subtree.length()) == '/'));
+    }
+}
@@ -0,0 +1,95 @@
+package de.hendriklipka.buderus;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A growable byte buffer which is re-used for rendering many MQTT topics and messages. Not thread-safe.
+ */
+public class MessageBuffer
+{
+    private byte[] _bytes;
+    private int _length;
+
+    public MessageBuffer()
+    {
+        this(256);
+    }
+
+    public MessageBuffer(final int initialSize)
+    {
+        _bytes = new byte[initialSize];
+    }
+
+    public void reset()
+    {
+        _length = 0;
+    }
+
+    public int length()
+    {
+        return _length;
+    }
+
+    /**
+     * @return the internal buffer; only the first {@link #length()} bytes are valid
+     */
+    public byte[] bytes()
+    {
+        return _bytes;
+    }
+
+    public void append(final byte[] bytes)
+    {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, _bytes, _length, bytes.length);
+        _length += bytes.length;
+    }
+
+    public void append(final byte b)
+    {
+        ensureCapacity(1);
+        _bytes[_length++] = b;
+    }
+
+    /**
+     * Appends the text as UTF-8. Pure ASCII text (like all numbers) is copied without creating a byte array.
+     */
+    public void append(final CharSequence text)
+    {
+        final int length = text.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++)
+        {
+            final char c = text.charAt(i);
+            if (c >= 0x80)
+            {
+                append(text.subSequence(i, length).toString().getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            _bytes[_length++] = (byte) c;
+        }
+    }
+
+    /**
+     * @return a copy of the content, with the exact length
+     */
+    public byte[] toByteArray()
+    {
+        return Arrays.copyOf(_bytes, _length);
+    }
+
+    @Override
+    public String toString()
+    {
+        return new String(_bytes, 0, _length, StandardCharsets.UTF_8);
+    }
+
+    private void ensureCapacity(final int additional)
+    {
+        if (_length + additional > _bytes.length)
+        {
+            _bytes = Arrays.copyOf(_bytes, Math.max(_bytes.length * 2, _length + additional));
+        }
+    }
+}
@@ -43,30 +43,80 @@ public class MessageParameters
                 }
                 break;
             case FLOAT:
-                try
+                if (value instanceof Number)
                 {
-                    _valueD = Double.parseDouble(value.toString());
+                    _valueD = ((Number) value).doubleValue();
                 }
-                catch (NumberFormatException ignored)
+                else
                 {
-                    logger.warn("Cannot parse the message value '{}' into a double value.", value.toString());
+                    try
+                    {
+                        _valueD = Double.parseDouble(value.toString());
+                    }
+                    catch (NumberFormatException ignored)
+                    {
+                        logger.warn("Cannot parse the message value '{}' into a double value.", value.toString());
+                    }
                 }
                 _valueI = (int) _valueD;
-                _valueS = Double.toString(_valueD);
+                // the string value is only created when needed
                 _valueB = 0 != _valueD;
                 break;
         }
     }
 
+    private String getValueS()
+    {
+        if (null == _valueS)
+        {
+            _valueS = Double.toString(_valueD);
+        }
+        return _valueS;
+    }
+
     // pattern: {service} {value_i} {value_d} {value_s} {value_b}
     public String replace(String message)
     {
         String result = message;
         result = result.replace("{service}", _service);
-        result = result.replace("{value_i}", Integer.toString(_valueI));
-        result = result.replace("{value_d}", Double.toString(_valueD));
-        result = result.replace("{value_b}", Boolean.toString(_valueB));
-        result = result.replace("{value_s}", _valueS);
+        if (result.contains("{value_i}"))
+        {
+            result = result.replace("{value_i}", Integer.toString(_valueI));
+        }
+        if (result.contains("{value_d}"))
+        {
+            result = result.replace("{value_d}", Double.toString(_valueD));
+        }
+        if (result.contains("{value_b}"))
+        {
+            result = result.replace("{value_b}", Boolean.toString(_valueB));
+        }
+        if (result.contains("{value_s}"))
+        {
+            result = result.replace("{value_s}", getValueS());
+        }
         return result;
     }
+
+    void appendTo(final MessageTemplate.Placeholder placeholder, final MessageBuffer buffer)
+    {
+        switch (placeholder)
+        {
+            case SERVICE:
+                buffer.append(_service);
+                break;
+            case VALUE_I:
+                buffer.append(Integer.toString(_valueI));
+                break;
+            case VALUE_D:
+                buffer.append(Double.toString(_valueD));
+                break;
+            case VALUE_B:
+                buffer.append(Boolean.toString(_valueB));
+                break;
+            case VALUE_S:
+                buffer.append(getValueS());
+                break;
+        }
+    }
 }
@@ -0,0 +1,150 @@
+package de.hendriklipka.buderus;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A MQTT topic or message template, compiled into a list of literal and placeholder segments.
+ * <p>
+ * The {service} placeholder is replaced when compiling, since it is fixed for a mapping. A template without any value
+ * placeholder is static and its text is available without rendering.
+ */
+public class MessageTemplate
+{
+    // pattern: {service} {value_i} {value_d} {value_s} {value_b}
+    enum Placeholder
+    {
+        SERVICE("{service}"),
+        VALUE_I("{value_i}"),
+        VALUE_D("{value_d}"),
+        VALUE_B("{value_b}"),
+        VALUE_S("{value_s}"),
+        ;
+
+        private final String _pattern;
+
+        Placeholder(final String pattern)
+        {
+            _pattern = pattern;
+        }
+    }
+
+    private static final Placeholder[] VALUE_PLACEHOLDERS = {
+            Placeholder.VALUE_I, Placeholder.VALUE_D, Placeholder.VALUE_B, Placeholder.VALUE_S};
+
+    private final String _template;
+    /* each segment is either a byte[] with literal (UTF-8) text, or a placeholder */
+    private final Object[] _segments;
+    private final String _staticText;
+    private final byte[] _staticBytes;
+
+    private MessageTemplate(final String template, final Object[] segments, final String staticText)
+    {
+        _template = template;
+        _segments = segments;
+        _staticText = staticText;
+        _staticBytes = null == staticText ? null : staticText.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static MessageTemplate compile(final String template, final String service)
+    {
+        final String withService = template.replace(Placeholder.SERVICE._pattern, service);
+        final List<Object> segments = new ArrayList<>();
+        final StringBuilder literal = new StringBuilder();
+        boolean hasValues = false;
+        int pos = 0;
+        while (pos < withService.length())
+        {
+            final Placeholder placeholder = withService.charAt(pos) == '{' ? placeholderAt(withService, pos) : null;
+            if (null == placeholder)
+            {
+                literal.append(withService.charAt(pos++));
+                continue;
+            }
+            if (literal.length() > 0)
+            {
+                segments.add(literal.toString().getBytes(StandardCharsets.UTF_8));
+                literal.setLength(0);
+            }
+            segments.add(placeholder);
+            hasValues = true;
+            pos += placeholder._pattern.length();
+        }
+        if (literal.length() > 0)
+        {
+            segments.add(literal.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return new MessageTemplate(template, segments.toArray(), hasValues ? null : withService);
+    }
+
+    private static Placeholder placeholderAt(final String text, final int pos)
+    {
+        for (Placeholder placeholder : VALUE_PLACEHOLDERS)
+        {
+            if (text.startsWith(placeholder._pattern, pos))
+            {
+                return placeholder;
+            }
+        }
+        return null;
+    }
+
+    public String getTemplate()
+    {
+        return _template;
+    }
+
+    /**
+     * @return true when the template does not depend on the value
+     */
+    public boolean isStatic()
+    {
+        return null != _staticText;
+    }
+
+    /**
+     * @return the text of a static template, null otherwise
+     */
+    public String getStaticText()
+    {
+        return _staticText;
+    }
+
+    /**
+     * Renders the template into the buffer, replacing its content.
+     */
+    public void render(final MessageParameters params, final MessageBuffer buffer)
+    {
+        buffer.reset();
+        if (null != _staticBytes)
+        {
+            buffer.append(_staticBytes);
+            return;
+        }
+        for (Object segment : _segments)
+        {
+            if (segment instanceof byte[])
+            {
+                buffer.append((byte[]) segment);
+            }
+            else
+            {
+                params.appendTo((Placeholder) segment, buffer);
+            }
+        }
+    }
+
+    /**
+     * @return the rendered text; a static template is returned as-is without rendering
+     */
+    public String renderToString(final MessageParameters params, final MessageBuffer buffer)
+    {
+        if (null != _staticText)
+        {
+            return _staticText;
+        }
+        render(params, buffer);
+        return buffer.toString();
+    }
+}
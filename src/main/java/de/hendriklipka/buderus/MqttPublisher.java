@@ -0,0 +1,369 @@
+package de.hendriklipka.buderus;
+
+import de.hendriklipka.buderus.km200.KM200Comm;
+import de.hendriklipka.buderus.km200.KM200Device;
+import de.hendriklipka.buderus.km200.KM200Fields;
+import de.hendriklipka.buderus.km200.KM200Message;
+import de.hendriklipka.buderus.metrics.MBeans;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls all configured services from the KM200 and publishes their values to the MQTT servers.
+ * <p>
+ * When a fetch executor is given, the values of one cycle are retrieved concurrently (the executor size limits the
+ * number of requests in flight to the device). Publishing always happens in the order of the configured mappings.
+ * Which mappings are part of a cycle is decided by the {@link PollScheduler}.
+ * <p>
+ * Mappings of the same service share one request within a cycle, and all values go through the {@link ValueCache}.
+ * <p>
+ * The metrics of the bridge and of each mapping are collected in {@link BridgeStats} and {@link ServiceStats}, and
+ * can be exposed as MBeans via {@link #registerMBeans(String)}.
+ * <p>
+ * With an {@link Aggregator}, the values of aggregated mappings are collected during the cycle and published as one
+ * document per group at its end.
+ */
+class MqttPublisher implements Runnable
+{
+    private static final Logger logger = LoggerFactory.getLogger(MqttPublisher.class);
+
+    private final List<ServiceMapping> _mappings;
+    private final KM200Device _device;
+    private final KM200Comm _comm;
+    private final List<BrokerConnection> _brokers;
+    private final ExecutorService _fetchExecutor;
+    private final ValueCache _cache;
+    /* re-used for rendering all topics and messages, only used from the publishing thread */
+    private final MessageBuffer _buffer = new MessageBuffer();
+    private final PublishFilter _filter;
+    private final BridgeStats _stats;
+    private final ServiceStats[] _serviceStats;
+    private final Aggregator _aggregator;
+    private final Aggregator.Listener _documentListener = this::documentPublished;
+    private final List<ObjectName> _mbeanNames = new ArrayList<>();
+    private long _cycleStart;
+
+    /**
+     * @param aggregator collects the values into documents, null to publish each value on its own
+     * @param previous   the publisher this one replaces after a configuration reload, or null; the metrics and the
+     *                   last published values of unchanged mappings are taken over
+     */
+    MqttPublisher(final List<ServiceMapping> mappings, final KM200Device device, final KM200Comm comm, final List<BrokerConnection> brokers,
+                  final ExecutorService fetchExecutor, final ValueCache cache, final Aggregator aggregator, final MqttPublisher previous)
+    {
+        _mappings = mappings;
+        _device = device;
+        _comm = comm;
+        _brokers = brokers;
+        _fetchExecutor = fetchExecutor;
+        _cache = cache;
+        _aggregator = aggregator;
+        _filter = new PublishFilter(mappings.size());
+        _stats = null == previous ? new BridgeStats(device, comm, cache) : previous._stats;
+        _serviceStats = new ServiceStats[mappings.size()];
+        final Map<String, Integer> previousIndexes = new HashMap<>();
+        for (int i = 0; null != previous && i < previous._mappings.size(); i++)
+        {
+            previousIndexes.putIfAbsent(previous._mappings.get(i).getOutputKey(), i);
+        }
+        for (int i = 0; i < _serviceStats.length; i++)
+        {
+            final Integer p = previousIndexes.remove(mappings.get(i).getOutputKey());
+            if (null == p)
+            {
+                _serviceStats[i] = new ServiceStats(mappings.get(i));
+            }
+            else
+            {
+                _serviceStats[i] = previous._serviceStats[p];
+                _filter.copy(i, previous._filter, p);
+            }
+        }
+    }
+
+    /**
+     * Registers the MBeans for the bridge and for each mapping.
+     *
+     * @param gateway the name of the gateway in fleet mode, null when there is only one
+     */
+    void registerMBeans(final String gateway)
+    {
+        MBeans.register("Bridge", gateway, _stats);
+        final Set<String> names = new HashSet<>();
+        for (int i = 0; i < _serviceStats.length; i++)
+        {
+            // a service may be mapped more than once, e.g. to different topics
+            String name = _mappings.get(i).getServiceName();
+            for (int n = 2; !names.add(name); n++)
+            {
+                name = _mappings.get(i).getServiceName() + " (" + n + ")";
+            }
+            _mbeanNames.add(MBeans.register("Service", null == gateway ? name : gateway + ":" + name, _serviceStats[i]));
+        }
+    }
+
+    /**
+     * Unregisters the MBeans of the mappings, e.g. before this publisher is replaced.
+     */
+    void unregisterMBeans()
+    {
+        for (ObjectName name : _mbeanNames)
+        {
+            MBeans.unregister(name);
+        }
+        _mbeanNames.clear();
+    }
+
+    @Override
+    public void run()
+    {
+        final int[] all = new int[_mappings.size()];
+        for (int i = 0; i < all.length; i++)
+        {
+            all[i] = i;
+        }
+        publish(all, all.length);
+    }
+
+    /**
+     * Retrieves and publishes the values for some of the mappings.
+     *
+     * @param indexes the positions of the mappings to publish, in ascending order
+     * @param count   the number of valid entries in indexes
+     */
+    void publish(final int[] indexes, final int count)
+    {
+        if (!_comm.isConnected())
+        {
+            logger.warn("Not connected to KM200 device, trying to reconnect.");
+            _comm.connect(_device);
+            if (!_comm.isConnected())
+            {
+                logger.error("Reconnected failed, skipping.");
+                _stats.skipped(count);
+                return;
+            }
+            else
+            {
+                logger.warn("reconnect succeeded.");
+            }
+        }
+        logger.debug("Starting MQTT publishing for {} configured services.", count);
+        final long start = System.nanoTime();
+        _cycleStart = start;
+        if (null != _aggregator)
+        {
+            _aggregator.begin(System.currentTimeMillis());
+        }
+        final List<Future<Double>> values = fetchValues(indexes, count);
+        for (int n = 0; n < count; n++)
+        {
+            final int i = indexes[n];
+            ServiceMapping service = _mappings.get(i);
+            if (service.getType().equals("float"))
+            {
+                Double d = waitForValue(values.get(n), i);
+                if (null==d)
+                {
+                    logger.error("Could not get value for service "+ service.getServiceName()+", skipping.");
+                    _serviceStats[i].failed();
+                    _stats.skipped(1);
+                    continue;
+                }
+                final long now = System.nanoTime();
+                if (!_filter.shouldPublish(i, service, d, now))
+                {
+                    logger.debug("Value {} of service {} did not change enough, not publishing it.", d, service.getServiceName());
+                    _serviceStats[i].unchanged();
+                    _stats.unchanged();
+                    continue;
+                }
+                if (null != _aggregator && _aggregator.isAggregated(i))
+                {
+                    if (!_aggregator.add(i, d))
+                    {
+                        logger.warn("Value {} of service {} cannot be aggregated, skipping.", d, service.getServiceName());
+                        _stats.skipped(1);
+                    }
+                    continue;
+                }
+                final boolean accepted = publish(service, d);
+                _serviceStats[i].published(System.nanoTime() - now, accepted);
+                if (accepted)
+                {
+                    _filter.published(i, d, now);
+                    _stats.published();
+                }
+            }
+            else
+            {
+                logger.warn("Unknown service type [{}], ignoring service.", service.getType());
+                _stats.skipped(1);
+            }
+        }
+        if (null != _aggregator)
+        {
+            final int documents = _aggregator.publish(_brokers, _documentListener);
+            logger.debug("Published {} aggregated documents.", documents);
+        }
+        final long duration = System.nanoTime() - start;
+        _stats.cycleCompleted(duration);
+        logger.debug("Publishing cycle for {} services took {} ms.", count, TimeUnit.NANOSECONDS.toMillis(duration));
+        if (logger.isDebugEnabled())
+        {
+            _comm.getTransport().logStatistics();
+            for (BrokerConnection broker : _brokers)
+            {
+                broker.logStatistics();
+            }
+        }
+    }
+
+    private void documentPublished(final int index, final double value, final long nanos, final boolean accepted)
+    {
+        _serviceStats[index].published(nanos, accepted);
+        if (accepted)
+        {
+            _filter.published(index, value, _cycleStart);
+            _stats.published();
+        }
+    }
+
+    /**
+     * Starts retrieving the values for the given mappings. The result list has one entry per mapping, in the same order;
+     * mappings of the same service share one entry. Without a fetch executor, the values are retrieved lazily by
+     * {@link #waitForValue(Future, int)}, one after another.
+     */
+    private List<Future<Double>> fetchValues(final int[] indexes, final int count)
+    {
+        final List<Future<Double>> values = new ArrayList<>(count);
+        final Map<String, Future<Double>> services = new HashMap<>();
+        for (int n = 0; n < count; n++)
+        {
+            final int index = indexes[n];
+            final ServiceMapping service = _mappings.get(index);
+            if (!service.getType().equals("float"))
+            {
+                values.add(CompletableFuture.completedFuture(null));
+                continue;
+            }
+            Future<Double> value = services.get(service.getServiceName());
+            if (null == value)
+            {
+                final FutureTask<Double> task = new FutureTask<>(() -> fetchValue(index));
+                if (null != _fetchExecutor)
+                {
+                    _fetchExecutor.execute(task);
+                }
+                services.put(service.getServiceName(), task);
+                value = task;
+            }
+            values.add(value);
+        }
+        return values;
+    }
+
+    private Double waitForValue(final Future<Double> value, final int index)
+    {
+        if (value instanceof FutureTask && !value.isDone())
+        {
+            // not started yet without an executor; does nothing when it is already running
+            ((FutureTask<Double>) value).run();
+        }
+        try
+        {
+            return value.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (ExecutionException e)
+        {
+            logger.error("Error while retrieving service {}: ", _mappings.get(index).getServiceName(), e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Hands the message to all MQTT servers. Each server accepts or rejects it independently.
+     *
+     * @return false when no server accepted the message
+     */
+    private boolean publish(final ServiceMapping service, final Double d)
+    {
+        MessageParameters params = new MessageParameters(service.getServiceName(), service.getServiceType(), d);
+        final String finalTopic = service.getTopicTemplate().renderToString(params, _buffer);
+        service.getMessageTemplate().render(params, _buffer);
+
+        MqttMessage message = new MqttMessage(_buffer.toByteArray());
+        message.setQos(service.getQos());
+        message.setRetained(service.isRetained());
+
+        logger.debug("Publish MQTT message '{}'->'{}'", finalTopic, message);
+
+        boolean accepted = false;
+        for (BrokerConnection broker : _brokers)
+        {
+            accepted |= broker.publish(finalTopic, message);
+        }
+        return accepted;
+    }
+
+    private Double fetchValue(final int index)
+    {
+        return _cache.get(_mappings.get(index).getServiceName(), () -> loadValue(index));
+    }
+
+    private Double loadValue(final int index)
+    {
+        final String service = _mappings.get(index).getServiceName();
+        final KM200Message message = _comm.fetchMessage(_device, service);
+        if (null==message)
+        {
+            logger.error("No value from KM200, skipping service {}", service);
+            return null;
+        }
+        final long start = System.nanoTime();
+        final double value = parseDoubleValue(message);
+        _serviceStats[index].fetched(message.getFetchNanos(), message.getDecodeNanos() + System.nanoTime() - start);
+        final KM200Fields fields = message.fields();
+        final String state = null == fields ? null : fields.getValueState();
+        if (null != state)
+        {
+            logger.warn("Service {} reports state '{}' instead of a value, skipping.", service, state);
+            return null;
+        }
+        return value;
+    }
+
+    static double parseDoubleValue(final KM200Message message)
+    {
+        final KM200Fields fields = message.fields();
+        if (null != fields && fields.hasNumericValue())
+        {
+            return fields.getNumericValue();
+        }
+        // not a plain number, leave it to the full parser (which also reports what is wrong)
+        JSONObject nodeRoot = new JSONObject(new JSONTokener(message.reader()));
+        return nodeRoot.getDouble("value");
+    }
+}
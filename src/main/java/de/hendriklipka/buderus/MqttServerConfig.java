@@ -13,6 +13,10 @@ public class MqttServerConfig
     private String password;
     private String _clientId;
     private boolean _secure=false;
+    private int _maxInflight=100;
+    private String _bufferFile;
+    private int _bufferSizeMb=16;
+    private int _replayRate=20;
 
     public String getServer()
     {
@@ -73,4 +77,57 @@ public class MqttServerConfig
     {
         _secure = secure;
     }
+
+    /**
+     * @return how many messages may wait for their acknowledgement from this server, before new messages are rejected
+     */
+    public int getMaxInflight()
+    {
+        return _maxInflight;
+    }
+
+    public void setMaxInflight(final int maxInflight)
+    {
+        _maxInflight = maxInflight;
+    }
+
+    /**
+     * @return the file for keeping the messages which cannot be sent while the server is unavailable, null to drop
+     * them instead
+     */
+    public String getBufferFile()
+    {
+        return _bufferFile;
+    }
+
+    public void setBufferFile(final String bufferFile)
+    {
+        _bufferFile = bufferFile;
+    }
+
+    /**
+     * @return the size of the buffer file; when it is full, the oldest messages are dropped
+     */
+    public int getBufferSizeMb()
+    {
+        return _bufferSizeMb;
+    }
+
+    public void setBufferSizeMb(final int bufferSizeMb)
+    {
+        _bufferSizeMb = bufferSizeMb;
+    }
+
+    /**
+     * @return how many buffered messages per second are sent once the server is available again
+     */
+    public int getReplayRate()
+    {
+        return _replayRate;
+    }
+
+    public void setReplayRate(final int replayRate)
+    {
+        _replayRate = replayRate;
+    }
 }
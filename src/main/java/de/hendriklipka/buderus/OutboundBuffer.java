@@ -0,0 +1,319 @@
+package de.hendriklipka.buderus;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the messages which could not be sent to an MQTT server, in a memory-mapped ring file of fixed size. The
+ * messages survive a restart of the bridge; when the file is full, the oldest messages are dropped.
+ * <p>
+ * File layout: a header with the ring positions, then the data area. Each record is
+ * [int length][short topic length][topic][byte flags][payload], where flags holds the QoS and the retained bit. A
+ * record never wraps around the end of the data area; the rest of the area is skipped (marked with {@link #WRAP}
+ * when there is room for it).
+ * <p>
+ * Thread-safe: messages are added by the publishing thread and the MQTT client, and sent by the replay task.
+ */
+class OutboundBuffer
+{
+    private static final Logger logger = LoggerFactory.getLogger(OutboundBuffer.class);
+
+    private static final int MAGIC = 0x42324d51; // "B2MQ"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int WRAP = -1;
+    private static final int RETAINED = 0x04;
+    /* the smallest record: length, topic length and flags */
+    private static final int MIN_RECORD_SIZE = 7;
+
+    /** the largest data area, so that the whole file can be mapped at once */
+    static final long MAX_CAPACITY = Integer.MAX_VALUE - HEADER_SIZE;
+
+    /**
+     * Receives the oldest message from {@link #sendOldest(Sender)}.
+     */
+    interface Sender
+    {
+        /**
+         * @return true when the message was handed over and can be removed from the buffer
+         */
+        boolean send(String topic, MqttMessage message);
+    }
+
+    private final File _file;
+    private final MappedByteBuffer _map;
+    private final int _capacity;
+
+    /* ring state, mirrored into the header after each change */
+    private int _head;
+    private int _tail;
+    private int _used;
+    private int _count;
+    private long _dropped;
+    private boolean _dirty = false;
+
+    /**
+     * Opens the buffer file, and continues with the messages still in it. A file with a different size or an
+     * inconsistent header is started over.
+     *
+     * @param capacity the size of the data area in bytes, at most {@link #MAX_CAPACITY}
+     */
+    OutboundBuffer(final File file, final int capacity) throws IOException
+    {
+        if (capacity < 64 || capacity > MAX_CAPACITY)
+        {
+            throw new IllegalArgumentException("Buffer capacity must be between 64 and " + MAX_CAPACITY + " bytes, not " + capacity);
+        }
+        _file = file;
+        _capacity = capacity;
+        final File parent = file.getAbsoluteFile().getParentFile();
+        if (null != parent && !parent.mkdirs() && !parent.isDirectory())
+        {
+            throw new IOException("Cannot create directory " + parent);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel())
+        {
+            // the mapping stays valid after the channel is closed
+            _map = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) HEADER_SIZE + capacity);
+        }
+        if (!readHeader())
+        {
+            _dropped = 0;
+            clear();
+        }
+        else if (_count > 0)
+        {
+            logger.info("MQTT buffer {} contains {} messages from the last run.", _file, _count);
+        }
+    }
+
+    private boolean readHeader()
+    {
+        if (_map.getInt(0) != MAGIC)
+        {
+            return false;
+        }
+        if (_map.getInt(4) != VERSION || _map.getInt(8) != _capacity)
+        {
+            logger.warn("MQTT buffer {} was created with different settings, discarding its messages.", _file);
+            return false;
+        }
+        _head = _map.getInt(12);
+        _tail = _map.getInt(16);
+        _used = _map.getInt(20);
+        _count = _map.getInt(24);
+        _dropped = _map.getLong(28);
+        if (_head < 0 || _head >= _capacity || _tail < 0 || _tail >= _capacity || _used < 0 || _used > _capacity || _count < 0
+                || (0 == _count) != (0 == _used) || _count > _used / MIN_RECORD_SIZE)
+        {
+            logger.warn("MQTT buffer {} is inconsistent, discarding its messages.", _file);
+            return false;
+        }
+        return true;
+    }
+
+    private void writeHeader()
+    {
+        _map.putInt(0, MAGIC);
+        _map.putInt(4, VERSION);
+        _map.putInt(8, _capacity);
+        _map.putInt(12, _head);
+        _map.putInt(16, _tail);
+        _map.putInt(20, _used);
+        _map.putInt(24, _count);
+        _map.putLong(28, _dropped);
+        _dirty = true;
+    }
+
+    /**
+     * Appends a message, dropping the oldest messages when there is not enough room.
+     *
+     * @return false when the message is too large for the buffer
+     */
+    synchronized boolean add(final String topic, final MqttMessage message)
+    {
+        final byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        final byte[] payload = message.getPayload();
+        final int size = 4 + 2 + topicBytes.length + 1 + payload.length;
+        if (size > _capacity / 2 || topicBytes.length > 0xffff)
+        {
+            logger.warn("Message to {} with {} bytes is too large for MQTT buffer {}.", topic, payload.length, _file);
+            return false;
+        }
+        int pad;
+        while (true)
+        {
+            pad = _tail + size > _capacity ? _capacity - _tail : 0;
+            if (_capacity - _used >= pad + size)
+            {
+                break;
+            }
+            removeOldest();
+            _dropped++;
+        }
+        if (pad > 0)
+        {
+            if (pad >= 4)
+            {
+                _map.putInt(HEADER_SIZE + _tail, WRAP);
+            }
+            _used += pad;
+            _tail = 0;
+        }
+        int pos = HEADER_SIZE + _tail;
+        _map.putInt(pos, size);
+        _map.putShort(pos + 4, (short) topicBytes.length);
+        putBytes(pos + 6, topicBytes);
+        pos += 6 + topicBytes.length;
+        _map.put(pos, (byte) (message.getQos() | (message.isRetained() ? RETAINED : 0)));
+        putBytes(pos + 1, payload);
+        _tail = (_tail + size) % _capacity;
+        _used += size;
+        _count++;
+        writeHeader();
+        return true;
+    }
+
+    /**
+     * Hands the oldest message to the sender, and removes it when the sender accepted it.
+     *
+     * @return false when the buffer is empty or the sender did not accept the message
+     */
+    synchronized boolean sendOldest(final Sender sender)
+    {
+        if (0 == _count)
+        {
+            return false;
+        }
+        skipWrap();
+        int pos = HEADER_SIZE + _head;
+        final int size = _map.getInt(pos);
+        if (!isValidRecord(size, pos))
+        {
+            return false;
+        }
+        final byte[] topic = new byte[_map.getShort(pos + 4) & 0xffff];
+        getBytes(pos + 6, topic);
+        pos += 6 + topic.length;
+        final int flags = _map.get(pos);
+        final byte[] payload = new byte[size - 7 - topic.length];
+        getBytes(pos + 1, payload);
+        final MqttMessage message = new MqttMessage(payload);
+        message.setQos(flags & 0x03);
+        message.setRetained(0 != (flags & RETAINED));
+        if (!sender.send(new String(topic, StandardCharsets.UTF_8), message))
+        {
+            return false;
+        }
+        removeOldest();
+        writeHeader();
+        return true;
+    }
+
+    private void putBytes(final int pos, final byte[] bytes)
+    {
+        ((Buffer) _map).position(pos);
+        _map.put(bytes);
+    }
+
+    private void getBytes(final int pos, final byte[] bytes)
+    {
+        ((Buffer) _map).position(pos);
+        _map.get(bytes);
+    }
+
+    private void skipWrap()
+    {
+        final int rest = _capacity - _head;
+        if (rest < 4 || _map.getInt(HEADER_SIZE + _head) == WRAP)
+        {
+            _used -= rest;
+            _head = 0;
+        }
+    }
+
+    /**
+     * Checks the record at the head, and starts the buffer over when it cannot be right (e.g. when the file was
+     * damaged while the bridge was not running).
+     */
+    private boolean isValidRecord(final int size, final int pos)
+    {
+        if (size >= MIN_RECORD_SIZE && size <= _used && _head + size <= _capacity
+                && MIN_RECORD_SIZE + (_map.getShort(pos + 4) & 0xffff) <= size)
+        {
+            return true;
+        }
+        logger.warn("MQTT buffer {} is inconsistent, discarding its {} messages.", _file, _count);
+        clear();
+        return false;
+    }
+
+    private void clear()
+    {
+        _head = 0;
+        _tail = 0;
+        _used = 0;
+        _count = 0;
+        writeHeader();
+    }
+
+    private void removeOldest()
+    {
+        skipWrap();
+        final int size = _map.getInt(HEADER_SIZE + _head);
+        if (!isValidRecord(size, HEADER_SIZE + _head))
+        {
+            return;
+        }
+        _head = (_head + size) % _capacity;
+        _used -= size;
+        _count--;
+        if (0 == _count)
+        {
+            // start at the beginning again, so the next messages need no wrapping
+            _head = 0;
+            _tail = 0;
+            _used = 0;
+        }
+    }
+
+    synchronized boolean isEmpty()
+    {
+        return 0 == _count;
+    }
+
+    synchronized int size()
+    {
+        return _count;
+    }
+
+    /**
+     * @return the number of messages dropped because the buffer was full, since the file was created
+     */
+    synchronized long getDroppedCount()
+    {
+        return _dropped;
+    }
+
+    /**
+     * Writes the changes to the disk. Without this, they are still written by the operating system, but could be
+     * lost when the whole machine fails.
+     */
+    synchronized void flush()
+    {
+        if (_dirty)
+        {
+            _map.force();
+            _dirty = false;
+        }
+    }
+}
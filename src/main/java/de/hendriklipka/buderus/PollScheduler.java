@@ -0,0 +1,163 @@
+package de.hendriklipka.buderus;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides which service mappings are polled when, using a hashed timing wheel with a tick of one second.
+ * <p>
+ * Each mapping is polled with its own interval (or the global one). Mappings with the same interval are spread
+ * evenly over that interval, so the requests to the device are distributed over time instead of all being sent at
+ * the same moment. Run this once per second; each run publishes the mappings which are due.
+ * <p>
+ * When aggregating, all mappings of a group with the same interval share one slot, so their values end up in the same
+ * document; the groups (instead of single mappings) are spread over the interval.
+ */
+class PollScheduler implements Runnable
+{
+    private static final Logger logger = LoggerFactory.getLogger(PollScheduler.class);
+
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    private final MqttPublisher _publisher;
+    private final int[] _intervals;
+    /* how many more turns of the wheel each mapping has to wait when its slot comes up */
+    private final int[] _rounds;
+    /* the mapping indexes in each slot of the wheel */
+    private final int[][] _slots = new int[WHEEL_SIZE][];
+    private final int[] _slotSizes = new int[WHEEL_SIZE];
+    private final int[] _due;
+
+    private long _tick = 0;
+
+    /**
+     * @param defaultInterval the interval (in seconds) for mappings without their own interval
+     * @param spread          whether mappings with the same interval are spread over it, instead of all polled
+     *                        in the same second
+     * @param aggregator      the aggregator whose groups are polled together, or null
+     */
+    PollScheduler(final MqttPublisher publisher, final List<ServiceMapping> mappings, final int defaultInterval, final boolean spread,
+                  final Aggregator aggregator)
+    {
+        _publisher = publisher;
+        _intervals = new int[mappings.size()];
+        _rounds = new int[mappings.size()];
+        _due = new int[mappings.size()];
+        for (int i = 0; i < WHEEL_SIZE; i++)
+        {
+            _slots[i] = new int[4];
+        }
+
+        // the units which are spread over an interval: single mappings, or aggregation groups
+        final Map<Integer, Integer> intervalCounts = new HashMap<>();
+        final Map<Integer, Map<Integer, Integer>> groupRanks = new HashMap<>();
+        final int[] ranks = new int[mappings.size()];
+        for (int i = 0; i < mappings.size(); i++)
+        {
+            final int interval = mappings.get(i).getIntervalSeconds() > 0 ? mappings.get(i).getIntervalSeconds() : defaultInterval;
+            _intervals[i] = Math.max(1, interval);
+            final int group = null == aggregator ? -1 : aggregator.getGroup(i);
+            if (group < 0)
+            {
+                ranks[i] = intervalCounts.merge(_intervals[i], 1, Integer::sum) - 1;
+            }
+            else
+            {
+                final Map<Integer, Integer> groups = groupRanks.computeIfAbsent(_intervals[i], k -> new HashMap<>());
+                final Integer rank = groups.get(group);
+                ranks[i] = null != rank ? rank : intervalCounts.merge(_intervals[i], 1, Integer::sum) - 1;
+                groups.putIfAbsent(group, ranks[i]);
+            }
+        }
+        for (int i = 0; i < mappings.size(); i++)
+        {
+            final int interval = _intervals[i];
+            final int offset = spread ? (int) ((long) ranks[i] * interval / intervalCounts.get(interval)) : 0;
+            schedule(i, offset + 1);
+        }
+        logger.info("Polling {} services with {} different intervals.", mappings.size(), intervalCounts.size());
+    }
+
+    /**
+     * @param delay the number of ticks from now, at least one
+     */
+    private void schedule(final int index, final int delay)
+    {
+        final int slot = (int) ((_tick + delay) & WHEEL_MASK);
+        _rounds[index] = (delay - 1) / WHEEL_SIZE;
+        if (_slotSizes[slot] == _slots[slot].length)
+        {
+            _slots[slot] = Arrays.copyOf(_slots[slot], _slots[slot].length * 2);
+        }
+        _slots[slot][_slotSizes[slot]++] = index;
+    }
+
+    /**
+     * Advances the wheel by one tick.
+     *
+     * @return the number of due mappings, their indexes are in {@link #getDue()}, in ascending order
+     */
+    int advance()
+    {
+        _tick++;
+        final int slot = (int) (_tick & WHEEL_MASK);
+        final int[] entries = _slots[slot];
+        final int size = _slotSizes[slot];
+        int dueCount = 0;
+        int remaining = 0;
+        for (int i = 0; i < size; i++)
+        {
+            final int index = entries[i];
+            if (_rounds[index] > 0)
+            {
+                _rounds[index]--;
+                entries[remaining++] = index;
+            }
+            else
+            {
+                _due[dueCount++] = index;
+            }
+        }
+        _slotSizes[slot] = remaining;
+        for (int i = 0; i < dueCount; i++)
+        {
+            schedule(_due[i], _intervals[_due[i]]);
+        }
+        Arrays.sort(_due, 0, dueCount);
+        return dueCount;
+    }
+
+    /**
+     * @return the indexes of the mappings which were due in the last tick, valid up to the count returned by
+     * {@link #advance()}
+     */
+    int[] getDue()
+    {
+        return _due;
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            final int dueCount = advance();
+            if (dueCount > 0)
+            {
+                _publisher.publish(_due, dueCount);
+            }
+        }
+        catch (RuntimeException e)
+        {
+            // an exception would stop all further scheduled runs
+            logger.error("Error while publishing services: ", e);
+        }
+    }
+}
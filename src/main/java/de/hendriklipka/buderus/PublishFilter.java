@@ -0,0 +1,66 @@
+package de.hendriklipka.buderus;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether a new value of a service mapping needs to be published, according to the publish policy of the
+ * mapping: always, on every change, or when the value left a deadband around the last published value. A value is
+ * always re-published when the mapping was silent for longer than its maximum silence interval.
+ * <p>
+ * The last published state is kept in primitive arrays, indexed by the position of the mapping. Not thread-safe.
+ */
+class PublishFilter
+{
+    private final double[] _lastValues;
+    private final long[] _lastPublished;
+
+    PublishFilter(final int mappingCount)
+    {
+        _lastValues = new double[mappingCount];
+        _lastPublished = new long[mappingCount];
+        // NaN marks a mapping which was never published
+        Arrays.fill(_lastValues, Double.NaN);
+    }
+
+    /**
+     * @param now the current time, from System.nanoTime()
+     */
+    boolean shouldPublish(final int index, final ServiceMapping mapping, final double value, final long now)
+    {
+        if (!mapping.isPublishOnChange())
+        {
+            return true;
+        }
+        final double last = _lastValues[index];
+        if (Double.isNaN(last))
+        {
+            return true;
+        }
+        if (mapping.getMaxSilenceSeconds() > 0 && now - _lastPublished[index] >= TimeUnit.SECONDS.toNanos(mapping.getMaxSilenceSeconds()))
+        {
+            return true;
+        }
+        final double threshold = Math.max(mapping.getDeadband(), Math.abs(last) * mapping.getDeadbandPercent() / 100.0);
+        if (threshold <= 0)
+        {
+            return Double.compare(value, last) != 0;
+        }
+        return Math.abs(value - last) >= threshold;
+    }
+
+    /**
+     * Takes over the last published state of a mapping from another filter.
+     */
+    void copy(final int index, final PublishFilter from, final int fromIndex)
+    {
+        _lastValues[index] = from._lastValues[fromIndex];
+        _lastPublished[index] = from._lastPublished[fromIndex];
+    }
+
+    void published(final int index, final double value, final long now)
+    {
+        _lastValues[index] = value;
+        _lastPublished[index] = now;
+    }
+}
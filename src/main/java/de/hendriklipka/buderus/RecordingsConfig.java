@@ -0,0 +1,159 @@
+package de.hendriklipka.buderus;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Configuration of the export of the recordings (the history the KM200 keeps of some values).
+ */
+public class RecordingsConfig
+{
+    private List<String> _services = Collections.emptyList();
+    private List<String> _resolutions = Collections.singletonList("hour");
+    private int _backfillDays = 7;
+    private int _intervalMinutes = 60;
+    private String _cursorFile = "recordings-cursor.json";
+    private String _topic;
+    private String _file;
+    private String _format = "json";
+    private String _measurement = "recording";
+    private int _qos = 1;
+    private boolean _retained = false;
+
+    /**
+     * @return the recordings to export, e.g. '/recordings/heatSources/actualPower'
+     */
+    public List<String> getServices()
+    {
+        return _services;
+    }
+
+    public void setServices(final List<String> services)
+    {
+        _services = services;
+    }
+
+    /**
+     * @return which series to export of each recording: 'hour', 'day' and / or 'month'
+     */
+    public List<String> getResolutions()
+    {
+        return _resolutions;
+    }
+
+    public void setResolutions(final List<String> resolutions)
+    {
+        _resolutions = resolutions;
+    }
+
+    /**
+     * @return how far back the first export starts, when there is no cursor yet
+     */
+    public int getBackfillDays()
+    {
+        return _backfillDays;
+    }
+
+    public void setBackfillDays(final int backfillDays)
+    {
+        _backfillDays = backfillDays;
+    }
+
+    /**
+     * @return how often to look for new entries
+     */
+    public int getIntervalMinutes()
+    {
+        return _intervalMinutes;
+    }
+
+    public void setIntervalMinutes(final int intervalMinutes)
+    {
+        _intervalMinutes = intervalMinutes;
+    }
+
+    /**
+     * @return the file which keeps the last exported entry of each series, so the next run continues from there
+     */
+    public String getCursorFile()
+    {
+        return _cursorFile;
+    }
+
+    public void setCursorFile(final String cursorFile)
+    {
+        _cursorFile = cursorFile;
+    }
+
+    /**
+     * @return the MQTT topic for the entries, with {service} and {resolution}; null to not publish them
+     */
+    public String getTopic()
+    {
+        return _topic;
+    }
+
+    public void setTopic(final String topic)
+    {
+        _topic = topic;
+    }
+
+    /**
+     * @return the file the entries are appended to, one per line; null to not write them
+     */
+    public String getFile()
+    {
+        return _file;
+    }
+
+    public void setFile(final String file)
+    {
+        _file = file;
+    }
+
+    /**
+     * @return 'json' or 'lineProtocol'
+     */
+    public String getFormat()
+    {
+        return _format;
+    }
+
+    public void setFormat(final String format)
+    {
+        _format = format;
+    }
+
+    /**
+     * @return the measurement name, for the line protocol
+     */
+    public String getMeasurement()
+    {
+        return _measurement;
+    }
+
+    public void setMeasurement(final String measurement)
+    {
+        _measurement = measurement;
+    }
+
+    public int getQos()
+    {
+        return _qos;
+    }
+
+    public void setQos(final int qos)
+    {
+        _qos = qos;
+    }
+
+    public boolean isRetained()
+    {
+        return _retained;
+    }
+
+    public void setRetained(final boolean retained)
+    {
+        _retained = retained;
+    }
+}
@@ -0,0 +1,426 @@
+package de.hendriklipka.buderus;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.hendriklipka.buderus.km200.KM200Comm;
+import de.hendriklipka.buderus.km200.KM200Device;
+import de.hendriklipka.buderus.km200.KM200Message;
+
+/**
+ * Exports the recordings of the KM200 incrementally, to MQTT and / or a file.
+ * <p>
+ * The device answers a recording for one period at a time: a day with hourly entries, a month with daily entries, or
+ * a year with monthly entries. Each entry has the sum of its samples ('y') and their number ('c'). The exporter pages
+ * through the periods from the last exported entry up to now, and exports each complete entry. After each page (or
+ * when delivering stops within a page), the start of the last delivered entry is saved as cursor, so the next run (or
+ * the next start of the bridge) continues from there.
+ * <p>
+ * Entries are delivered at least once: an entry which was published to MQTT but could not be written to the file, or
+ * which was delivered just before the bridge stopped (before the cursor was saved), is exported again.
+ */
+class RecordingsExporter implements Runnable
+{
+    private static final Logger logger = LoggerFactory.getLogger(RecordingsExporter.class);
+
+    private static final int CURSOR_VERSION = 1;
+    /* the device needs a moment to write an entry after its interval ended */
+    private static final int SETTLE_MINUTES = 10;
+
+    enum Resolution
+    {
+        HOUR(ChronoUnit.HOURS, ChronoUnit.DAYS, DateTimeFormatter.ofPattern("yyyy-MM-dd")),
+        DAY(ChronoUnit.DAYS, ChronoUnit.MONTHS, DateTimeFormatter.ofPattern("yyyy-MM")),
+        MONTH(ChronoUnit.MONTHS, ChronoUnit.YEARS, DateTimeFormatter.ofPattern("yyyy"));
+
+        private final ChronoUnit _entryUnit;
+        private final ChronoUnit _periodUnit;
+        private final DateTimeFormatter _intervalFormat;
+
+        Resolution(final ChronoUnit entryUnit, final ChronoUnit periodUnit, final DateTimeFormatter intervalFormat)
+        {
+            _entryUnit = entryUnit;
+            _periodUnit = periodUnit;
+            _intervalFormat = intervalFormat;
+        }
+
+        static Resolution parse(final String name)
+        {
+            return valueOf(name.toUpperCase(Locale.US));
+        }
+
+        String getName()
+        {
+            return name().toLowerCase(Locale.US);
+        }
+
+        /**
+         * @return the start of the entry containing the given time
+         */
+        LocalDateTime entryStart(final LocalDateTime time)
+        {
+            switch (this)
+            {
+                case HOUR:
+                    return time.truncatedTo(ChronoUnit.HOURS);
+                case DAY:
+                    return time.truncatedTo(ChronoUnit.DAYS);
+                default:
+                    return time.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1);
+            }
+        }
+
+        /**
+         * @return the start of the period (the page requested from the device) containing the given time
+         */
+        LocalDateTime periodStart(final LocalDateTime time)
+        {
+            switch (this)
+            {
+                case HOUR:
+                    return time.truncatedTo(ChronoUnit.DAYS);
+                case DAY:
+                    return time.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1);
+                default:
+                    return time.truncatedTo(ChronoUnit.DAYS).withDayOfYear(1);
+            }
+        }
+    }
+
+    private final KM200Comm _comm;
+    private final KM200Device _device;
+    private final RecordingsConfig _config;
+    private final String _gateway;
+    private final String _topic;
+    private final File _file;
+    private final List<BrokerConnection> _brokers;
+    private final Aggregator.Format _format;
+    private final List<Resolution> _resolutions = new ArrayList<>();
+    private final File _cursorFile;
+    private final Map<String, LocalDateTime> _cursors = new HashMap<>();
+
+    /**
+     * @param gateway the name of the gateway in fleet mode, added to each entry; null when there is only one
+     */
+    RecordingsExporter(final KM200Comm comm, final KM200Device device, final RecordingsConfig config, final List<BrokerConnection> brokers,
+                       final String gateway)
+    {
+        _comm = comm;
+        _device = device;
+        _config = config;
+        _gateway = gateway;
+        _topic = Gateway.expand(config.getTopic(), gateway);
+        _file = null == config.getFile() ? null : new File(Gateway.expand(config.getFile(), gateway));
+        _brokers = brokers;
+        _format = Aggregator.Format.parse(config.getFormat());
+        for (String resolution : config.getResolutions())
+        {
+            _resolutions.add(Resolution.parse(resolution));
+        }
+        _cursorFile = cursorFile(config.getCursorFile(), gateway);
+        loadCursors();
+    }
+
+    /**
+     * @return the cursor file of the gateway; each gateway needs its own, so without {gateway} its name is prepended
+     */
+    static File cursorFile(final String cursorFile, final String gateway)
+    {
+        final File file = new File(Gateway.expand(cursorFile, gateway));
+        if (null == gateway || cursorFile.contains(Gateway.PLACEHOLDER))
+        {
+            return file;
+        }
+        return new File(file.getAbsoluteFile().getParentFile(), gateway + "-" + file.getName());
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            final LocalDateTime now = LocalDateTime.now().minusMinutes(SETTLE_MINUTES);
+            int exported = 0;
+            for (String service : _config.getServices())
+            {
+                for (Resolution resolution : _resolutions)
+                {
+                    final int count = export(service, resolution, now);
+                    if (count < 0)
+                    {
+                        logger.warn("Stopped exporting recordings, will continue with the next run.");
+                        return;
+                    }
+                    exported += count;
+                }
+            }
+            logger.info("Exported {} new recording entries.", exported);
+        }
+        catch (RuntimeException e)
+        {
+            // an exception would stop all further scheduled runs
+            logger.error("Error while exporting recordings: ", e);
+        }
+    }
+
+    /**
+     * Exports the complete entries of one series which are newer than its cursor.
+     *
+     * @return the number of exported entries, -1 when they could not be delivered
+     */
+    int export(final String service, final Resolution resolution, final LocalDateTime now)
+    {
+        final String key = service + "|" + resolution.getName();
+        final LocalDateTime cursor = _cursors.get(key);
+        LocalDateTime next = null == cursor
+                ? resolution.entryStart(now.minusDays(_config.getBackfillDays()))
+                : cursor.plus(1, resolution._entryUnit);
+        int exported = 0;
+        for (LocalDateTime period = resolution.periodStart(next);
+             !next.plus(1, resolution._entryUnit).isAfter(now);
+             period = period.plus(1, resolution._periodUnit))
+        {
+            final JSONArray entries = fetch(service, resolution, period);
+            if (null == entries)
+            {
+                // try again with the next run
+                return exported;
+            }
+            final List<String> lines = new ArrayList<>();
+            final List<LocalDateTime> starts = new ArrayList<>();
+            LocalDateTime last = null;
+            for (int i = 0; i < entries.length(); i++)
+            {
+                final LocalDateTime start = period.plus(i, resolution._entryUnit);
+                if (start.isBefore(next))
+                {
+                    continue;
+                }
+                if (start.plus(1, resolution._entryUnit).isAfter(now))
+                {
+                    break;
+                }
+                final JSONObject entry = entries.optJSONObject(i);
+                final int samples = null == entry ? 0 : entry.optInt("c", 0);
+                if (samples > 0)
+                {
+                    lines.add(render(service, resolution, start, entry.optDouble("y", 0), samples));
+                    starts.add(start);
+                }
+                last = start;
+            }
+            final int delivered = deliver(service, resolution, lines);
+            if (delivered < lines.size())
+            {
+                // continue after the delivered entries, so they are not sent again
+                if (delivered > 0)
+                {
+                    _cursors.put(key, starts.get(delivered - 1));
+                    saveCursors();
+                }
+                return -1;
+            }
+            exported += delivered;
+            if (null == last)
+            {
+                // the device has no entries for this period; skip it once it is over
+                final LocalDateTime end = period.plus(1, resolution._periodUnit);
+                if (end.isAfter(now))
+                {
+                    return exported;
+                }
+                last = end.minus(1, resolution._entryUnit);
+            }
+            _cursors.put(key, last);
+            saveCursors();
+            next = last.plus(1, resolution._entryUnit);
+        }
+        return exported;
+    }
+
+    private JSONArray fetch(final String service, final Resolution resolution, final LocalDateTime period)
+    {
+        final String interval = resolution._intervalFormat.format(period);
+        final KM200Message message = _comm.fetchMessage(_device, service + "?interval=" + interval);
+        if (null == message)
+        {
+            logger.warn("Cannot retrieve recording {} for {}.", service, interval);
+            return null;
+        }
+        try
+        {
+            return new JSONObject(message.toString()).optJSONArray("recording");
+        }
+        catch (JSONException e)
+        {
+            logger.warn("Cannot parse recording {} for {}: {}", service, interval, e.getMessage());
+            return null;
+        }
+    }
+
+    private String render(final String service, final Resolution resolution, final LocalDateTime start, final double sum, final int samples)
+    {
+        final long epochMillis = start.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        final double value = sum / samples;
+        if (_format == Aggregator.Format.JSON)
+        {
+            return "{" + (null == _gateway ? "" : "\"gateway\":" + JSONObject.quote(_gateway) + ",") + "\"service\":" + JSONObject.quote(service) + ",\"resolution\":\"" + resolution.getName() + "\",\"time\":\"" + start
+                    + "\",\"timestamp\":" + epochMillis + ",\"y\":" + sum + ",\"c\":" + samples + ",\"value\":" + value + "}";
+        }
+        return Aggregator.escape(_config.getMeasurement(), false) + (null == _gateway ? "" : ",gateway=" + Aggregator.escape(_gateway, true)) + ",service=" + Aggregator.escape(service, true) + ",resolution=" + resolution.getName()
+                + " y=" + sum + ",c=" + samples + "i,value=" + value + " " + epochMillis * 1_000_000L;
+    }
+
+    /**
+     * Delivers the lines in order, each to the MQTT servers and then to the file, and stops at the first line which
+     * cannot be delivered.
+     *
+     * @return the number of delivered lines
+     */
+    private int deliver(final String service, final Resolution resolution, final List<String> lines)
+    {
+        if (lines.isEmpty())
+        {
+            return 0;
+        }
+        final String topic = null == _topic ? null : _topic.replace("{service}", service).replace("{resolution}", resolution.getName());
+        BufferedWriter writer = null;
+        try
+        {
+            if (null != _file)
+            {
+                writer = Files.newBufferedWriter(_file.toPath(), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            for (int i = 0; i < lines.size(); i++)
+            {
+                final String line = lines.get(i);
+                if (null != topic && !publish(topic, line))
+                {
+                    logger.warn("No MQTT server accepted the recording entries of {}.", service);
+                    return i;
+                }
+                if (null != writer)
+                {
+                    try
+                    {
+                        writer.write(line);
+                        writer.newLine();
+                        writer.flush();
+                    }
+                    catch (IOException e)
+                    {
+                        logger.warn("Cannot write recordings to {}: {}", _file.getAbsolutePath(), e.getMessage());
+                        return i;
+                    }
+                }
+            }
+            return lines.size();
+        }
+        catch (IOException e)
+        {
+            logger.warn("Cannot open {} for the recordings: {}", _file.getAbsolutePath(), e.getMessage());
+            return 0;
+        }
+        finally
+        {
+            if (null != writer)
+            {
+                try
+                {
+                    writer.close();
+                }
+                catch (IOException e)
+                {
+                    // every line was flushed already
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether at least one MQTT server accepted the line
+     */
+    private boolean publish(final String topic, final String line)
+    {
+        final MqttMessage message = new MqttMessage(line.getBytes(StandardCharsets.UTF_8));
+        message.setQos(_config.getQos());
+        message.setRetained(_config.isRetained());
+        boolean accepted = false;
+        for (BrokerConnection broker : _brokers)
+        {
+            accepted |= broker.publish(topic, message);
+        }
+        return accepted;
+    }
+
+    private void loadCursors()
+    {
+        if (!_cursorFile.isFile())
+        {
+            logger.info("No recordings cursor yet, exporting the last {} days.", _config.getBackfillDays());
+            return;
+        }
+        try
+        {
+            final JSONObject root = new JSONObject(new String(Files.readAllBytes(_cursorFile.toPath()), StandardCharsets.UTF_8));
+            if (root.optInt("version") != CURSOR_VERSION)
+            {
+                logger.warn("Recordings cursor {} has an unknown format, ignoring it.", _cursorFile.getAbsolutePath());
+                return;
+            }
+            final JSONObject cursors = root.getJSONObject("cursors");
+            for (String key : cursors.keySet())
+            {
+                _cursors.put(key, LocalDateTime.parse(cursors.getString(key)));
+            }
+        }
+        catch (IOException | JSONException | DateTimeParseException e)
+        {
+            logger.warn("Cannot read recordings cursor {}, ignoring it: {}", _cursorFile.getAbsolutePath(), e.getMessage());
+        }
+    }
+
+    private void saveCursors()
+    {
+        final JSONObject cursors = new JSONObject();
+        for (Map.Entry<String, LocalDateTime> cursor : _cursors.entrySet())
+        {
+            cursors.put(cursor.getKey(), cursor.getValue().toString());
+        }
+        final JSONObject root = new JSONObject();
+        root.put("version", CURSOR_VERSION);
+        root.put("cursors", cursors);
+        final File temp = new File(_cursorFile.getAbsoluteFile().getParentFile(), _cursorFile.getName() + ".tmp");
+        try
+        {
+            Files.write(temp.toPath(), root.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp.toPath(), _cursorFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            logger.warn("Cannot write recordings cursor {}: {}", _cursorFile.getAbsolutePath(), e.getMessage());
+        }
+    }
+}
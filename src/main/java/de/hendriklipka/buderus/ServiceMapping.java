@@ -1,5 +1,7 @@
 package de.hendriklipka.buderus;
 
+import java.util.Locale;
+
 /**
  * User: hli
  * Date: 29.06.20
@@ -11,8 +13,21 @@ public class ServiceMapping
     private String _mqttTopic;
     private String mqttMessage;
     private String _type;
+    private ServiceType _serviceType;
     private int _qos=0;
     private boolean _retained=false;
+    private int _intervalSeconds=0;
+    private boolean _publishOnChange=false;
+    private double _deadband=0;
+    private double _deadbandPercent=0;
+    private int _maxSilenceSeconds=0;
+    private String _group;
+    private String _field;
+    private boolean _aggregate=true;
+
+    /* compiled when the configuration is loaded, see compileTemplates() */
+    private MessageTemplate _topicTemplate;
+    private MessageTemplate _messageTemplate;
 
     public String getServiceName()
     {
@@ -22,6 +37,7 @@ public class ServiceMapping
     public void setServiceName(final String serviceName)
     {
         _serviceName = serviceName;
+        resetTemplates();
     }
 
     public String getMqttTopic()
@@ -32,6 +48,7 @@ public class ServiceMapping
     public void setMqttTopic(final String mqttTopic)
     {
         _mqttTopic = mqttTopic;
+        resetTemplates();
     }
 
     public String getMqttMessage()
@@ -42,6 +59,7 @@ public class ServiceMapping
     public void setMqttMessage(final String mqttMessage)
     {
         this.mqttMessage = mqttMessage;
+        resetTemplates();
     }
 
     public String getType()
@@ -52,6 +70,14 @@ public class ServiceMapping
     public void setType(final String type)
     {
         _type = type;
+        try
+        {
+            _serviceType = null == type ? null : ServiceType.valueOf(type.toUpperCase(Locale.US));
+        }
+        catch (IllegalArgumentException e)
+        {
+            _serviceType = null;
+        }
     }
 
     public int getQos()
@@ -73,4 +99,191 @@ public class ServiceMapping
     {
         _retained = retained;
     }
+
+    /**
+     * @return how often to poll this service, 0 to use the global interval
+     */
+    public int getIntervalSeconds()
+    {
+        return _intervalSeconds;
+    }
+
+    public void setIntervalSeconds(final int intervalSeconds)
+    {
+        _intervalSeconds = intervalSeconds;
+    }
+
+    public boolean isPublishOnChange()
+    {
+        return _publishOnChange;
+    }
+
+    public void setPublishOnChange(final boolean publishOnChange)
+    {
+        _publishOnChange = publishOnChange;
+    }
+
+    /**
+     * @return the absolute change needed to publish a value again, when publishing on change
+     */
+    public double getDeadband()
+    {
+        return _deadband;
+    }
+
+    public void setDeadband(final double deadband)
+    {
+        _deadband = deadband;
+    }
+
+    /**
+     * @return the change relative to the last published value (in percent) needed to publish a value again, when
+     * publishing on change
+     */
+    public double getDeadbandPercent()
+    {
+        return _deadbandPercent;
+    }
+
+    public void setDeadbandPercent(final double deadbandPercent)
+    {
+        _deadbandPercent = deadbandPercent;
+    }
+
+    /**
+     * @return after how many seconds without publishing the value is published even without a change, 0 for never
+     */
+    public int getMaxSilenceSeconds()
+    {
+        return _maxSilenceSeconds;
+    }
+
+    public void setMaxSilenceSeconds(final int maxSilenceSeconds)
+    {
+        _maxSilenceSeconds = maxSilenceSeconds;
+    }
+
+    /**
+     * @return the group of this service in aggregation mode, null to group by the subtree of the service
+     */
+    public String getGroup()
+    {
+        return _group;
+    }
+
+    public void setGroup(final String group)
+    {
+        _group = group;
+    }
+
+    /**
+     * @return the name of the value in the aggregated document, null to derive it from the service name
+     */
+    public String getField()
+    {
+        return _field;
+    }
+
+    public void setField(final String field)
+    {
+        _field = field;
+    }
+
+    /**
+     * @return whether the value is part of an aggregated document in aggregation mode; when false, it is
+     * published on its own topic as without aggregation
+     */
+    public boolean isAggregate()
+    {
+        return _aggregate;
+    }
+
+    public void setAggregate(final boolean aggregate)
+    {
+        _aggregate = aggregate;
+    }
+
+    /**
+     * @return the service type, or null if the configured type is unknown
+     */
+    public ServiceType getServiceType()
+    {
+        return _serviceType;
+    }
+
+    /**
+     * @return whether the service name is a pattern like '/heatingCircuits/*&#47;supplyTemperatureSetpoint', which is
+     * expanded into one mapping per matching service after the discovery
+     */
+    public boolean isWildcard()
+    {
+        return null != _serviceName && _serviceName.contains("*");
+    }
+
+    /**
+     * @return what this mapping publishes (service, topic, message, group and field); a reloaded mapping with the same
+     * key continues where the old one stopped
+     */
+    public String getOutputKey()
+    {
+        return _serviceName + '|' + _mqttTopic + '|' + mqttMessage + '|' + _group + '|' + _field;
+    }
+
+    /**
+     * @return a copy of this mapping for another service, e.g. one matched by a wildcard
+     */
+    public ServiceMapping copyFor(final String serviceName)
+    {
+        final ServiceMapping copy = new ServiceMapping();
+        copy._serviceName = serviceName;
+        copy._mqttTopic = _mqttTopic;
+        copy.mqttMessage = mqttMessage;
+        copy._type = _type;
+        copy._serviceType = _serviceType;
+        copy._qos = _qos;
+        copy._retained = _retained;
+        copy._intervalSeconds = _intervalSeconds;
+        copy._publishOnChange = _publishOnChange;
+        copy._deadband = _deadband;
+        copy._deadbandPercent = _deadbandPercent;
+        copy._maxSilenceSeconds = _maxSilenceSeconds;
+        copy._group = _group;
+        copy._field = _field;
+        copy._aggregate = _aggregate;
+        return copy;
+    }
+
+    /**
+     * Compiles the topic and message templates, so they are not parsed again for each message. Mappings which are
+     * only published in aggregated documents need no templates.
+     */
+    public void compileTemplates()
+    {
+        _topicTemplate = null == _mqttTopic ? null : MessageTemplate.compile(_mqttTopic, _serviceName);
+        _messageTemplate = null == mqttMessage ? null : MessageTemplate.compile(mqttMessage, _serviceName);
+    }
+
+    public MessageTemplate getTopicTemplate()
+    {
+        if (null == _topicTemplate)
+        {
+            compileTemplates();
+        }
+        return _topicTemplate;
+    }
+
+    public MessageTemplate getMessageTemplate()
+    {
+        if (null == _messageTemplate)
+        {
+            compileTemplates();
+        }
+        return _messageTemplate;
+    }
+
+    private void resetTemplates()
+    {
+        _topicTemplate = null;
+        _messageTemplate = null;
+    }
 }
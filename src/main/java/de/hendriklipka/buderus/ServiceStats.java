@@ -0,0 +1,102 @@
+package de.hendriklipka.buderus;
+
+import de.hendriklipka.buderus.metrics.LatencyHistogram;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the metrics of a single service mapping, registered as MBean "type=Service". Fetch and decode times are
+ * recorded by the thread retrieving the value, publish times by the publishing thread.
+ */
+class ServiceStats implements ServiceStatsMXBean
+{
+    private final ServiceMapping _mapping;
+
+    private final LatencyHistogram _fetchLatency = new LatencyHistogram();
+    private final LatencyHistogram _decodeLatency = new LatencyHistogram();
+    private final LatencyHistogram _publishLatency = new LatencyHistogram();
+    private final LongAdder _published = new LongAdder();
+    private final LongAdder _unchanged = new LongAdder();
+    private final LongAdder _errors = new LongAdder();
+
+    ServiceStats(final ServiceMapping mapping)
+    {
+        _mapping = mapping;
+    }
+
+    void fetched(final long fetchNanos, final long decodeNanos)
+    {
+        _fetchLatency.recordNanos(fetchNanos);
+        _decodeLatency.recordNanos(decodeNanos);
+    }
+
+    /**
+     * @param accepted whether at least one MQTT server accepted the message
+     */
+    void published(final long nanos, final boolean accepted)
+    {
+        _publishLatency.recordNanos(nanos);
+        if (accepted)
+        {
+            _published.increment();
+        }
+    }
+
+    void unchanged()
+    {
+        _unchanged.increment();
+    }
+
+    void failed()
+    {
+        _errors.increment();
+    }
+
+    @Override
+    public String getServiceName()
+    {
+        return _mapping.getServiceName();
+    }
+
+    @Override
+    public String getMqttTopic()
+    {
+        return _mapping.getMqttTopic();
+    }
+
+    @Override
+    public LatencyHistogram getFetchLatency()
+    {
+        return _fetchLatency;
+    }
+
+    @Override
+    public LatencyHistogram getDecodeLatency()
+    {
+        return _decodeLatency;
+    }
+
+    @Override
+    public LatencyHistogram getPublishLatency()
+    {
+        return _publishLatency;
+    }
+
+    @Override
+    public long getPublishedCount()
+    {
+        return _published.sum();
+    }
+
+    @Override
+    public long getUnchangedCount()
+    {
+        return _unchanged.sum();
+    }
+
+    @Override
+    public long getErrorCount()
+    {
+        return _errors.sum();
+    }
+}
@@ -0,0 +1,40 @@
+package de.hendriklipka.buderus;
+
+import de.hendriklipka.buderus.metrics.LatencyHistogram;
+
+/**
+ * The metrics of a single service mapping. All latencies are in microseconds.
+ */
+public interface ServiceStatsMXBean
+{
+    String getServiceName();
+
+    String getMqttTopic();
+
+    /**
+     * @return the time for retrieving the raw value from the device
+     */
+    LatencyHistogram getFetchLatency();
+
+    /**
+     * @return the time for decrypting, decoding and parsing the value
+     */
+    LatencyHistogram getDecodeLatency();
+
+    /**
+     * @return the time for rendering the message and handing it to all MQTT servers
+     */
+    LatencyHistogram getPublishLatency();
+
+    /**
+     * @return the number of values accepted by at least one MQTT server
+     */
+    long getPublishedCount();
+
+    long getUnchangedCount();
+
+    /**
+     * @return the number of cycles in which the value could not be retrieved
+     */
+    long getErrorCount();
+}
@@ -0,0 +1,242 @@
+package de.hendriklipka.buderus;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import de.hendriklipka.buderus.km200.KM200CommObject;
+import de.hendriklipka.buderus.km200.KM200Device;
+
+/**
+ * Caches the values retrieved from the KM200, so the device is asked at most once for a service while its value is
+ * fresh. How long a value stays fresh depends on the KM200 type of the service (e.g. 'floatValue'); without a TTL for
+ * the type, values are not kept.
+ * <p>
+ * Concurrent requests for the same service are coalesced: only the first one asks the device, the others wait for its
+ * result. A new value is also stored in the {@link KM200CommObject} of the service, unless the service was invalidated
+ * while it was loaded: then the value may be older than the change which caused the invalidation, and it is only
+ * passed to the requests which asked for it.
+ */
+class ValueCache
+{
+    /**
+     * Retrieves a value from the device.
+     */
+    interface Loader
+    {
+        /**
+         * @return the value, or null when it could not be retrieved
+         */
+        Double load();
+    }
+
+    /**
+     * Receives the cached values, see {@link #forEach(Visitor)}.
+     */
+    interface Visitor
+    {
+        /**
+         * @param epochMillis when the value was retrieved
+         */
+        void value(String service, double value, long epochMillis);
+    }
+
+    private static final String DEFAULT_TYPE = "default";
+
+    private static final class Entry
+    {
+        private double _value;
+        private long _loaded;
+        private long _loadedMillis;
+        private boolean _valid = false;
+        private boolean _stale = false;
+        /* counts the invalidations, so a load started before one does not store its value */
+        private long _generation = 0;
+        private CompletableFuture<Double> _loading;
+    }
+
+    private final KM200Device _device;
+    private final Map<String, Long> _ttlNanos = new ConcurrentHashMap<>();
+    private final long _defaultTtlNanos;
+    private final Map<String, Entry> _entries = new ConcurrentHashMap<>();
+
+    private final LongAdder _hits = new LongAdder();
+    private final LongAdder _coalesced = new LongAdder();
+    private final LongAdder _loads = new LongAdder();
+
+    /**
+     * @param ttlSeconds how long values stay fresh, per KM200 service type; 'default' for all other types. May be null.
+     */
+    ValueCache(final KM200Device device, final Map<String, Integer> ttlSeconds)
+    {
+        _device = device;
+        final Map<String, Integer> ttls = null == ttlSeconds ? Collections.emptyMap() : ttlSeconds;
+        for (Map.Entry<String, Integer> ttl : ttls.entrySet())
+        {
+            _ttlNanos.put(ttl.getKey(), TimeUnit.SECONDS.toNanos(ttl.getValue()));
+        }
+        _defaultTtlNanos = _ttlNanos.getOrDefault(DEFAULT_TYPE, 0L);
+    }
+
+    /**
+     * @return the cached value while it is fresh, otherwise the value from the loader (or from a concurrent load of
+     * the same service)
+     */
+    Double get(final String service, final Loader loader)
+    {
+        final Entry entry = _entries.computeIfAbsent(service, k -> new Entry());
+        final CompletableFuture<Double> loading;
+        final boolean owner;
+        final long generation;
+        synchronized (entry)
+        {
+            if (entry._valid && !entry._stale && System.nanoTime() - entry._loaded < ttlNanos(service))
+            {
+                _hits.increment();
+                return entry._value;
+            }
+            owner = null == entry._loading;
+            if (owner)
+            {
+                entry._loading = new CompletableFuture<>();
+            }
+            loading = entry._loading;
+            generation = entry._generation;
+        }
+        if (!owner)
+        {
+            _coalesced.increment();
+            return await(loading);
+        }
+
+        _loads.increment();
+        Double value = null;
+        try
+        {
+            value = loader.load();
+            return value;
+        }
+        finally
+        {
+            final boolean current;
+            synchronized (entry)
+            {
+                current = null != value && entry._generation == generation;
+                if (current)
+                {
+                    entry._value = value;
+                    entry._loaded = System.nanoTime();
+                    entry._loadedMillis = System.currentTimeMillis();
+                    entry._valid = true;
+                    entry._stale = false;
+                }
+                entry._loading = null;
+            }
+            if (current)
+            {
+                final KM200CommObject object = _device.getServices().get(service);
+                if (null != object)
+                {
+                    object.setFloatValue(value.floatValue());
+                }
+            }
+            // waiting requests get null when the loader failed, they would most likely fail the same way
+            loading.complete(value);
+        }
+    }
+
+    /**
+     * Forgets the cached value of the service, e.g. after it was changed, so the next request asks the device again.
+     */
+    void invalidate(final String service)
+    {
+        final Entry entry = _entries.get(service);
+        if (null != entry)
+        {
+            synchronized (entry)
+            {
+                entry._stale = true;
+                entry._generation++;
+            }
+        }
+    }
+
+    /**
+     * Passes the last retrieved value of each service to the visitor, regardless of its age. Never waits for a load.
+     */
+    void forEach(final Visitor visitor)
+    {
+        for (Map.Entry<String, Entry> e : _entries.entrySet())
+        {
+            final Entry entry = e.getValue();
+            final double value;
+            final long loaded;
+            synchronized (entry)
+            {
+                if (!entry._valid)
+                {
+                    continue;
+                }
+                value = entry._value;
+                loaded = entry._loadedMillis;
+            }
+            visitor.value(e.getKey(), value, loaded);
+        }
+    }
+
+    private static Double await(final CompletableFuture<Double> loading)
+    {
+        try
+        {
+            return loading.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (ExecutionException e)
+        {
+            return null;
+        }
+    }
+
+    private long ttlNanos(final String service)
+    {
+        if (_ttlNanos.isEmpty())
+        {
+            return 0;
+        }
+        final KM200CommObject object = _device.getServices().get(service);
+        final Long ttl = null == object ? null : _ttlNanos.get(object.getServiceType());
+        return null == ttl ? _defaultTtlNanos : ttl;
+    }
+
+    /**
+     * @return the number of values served from the cache
+     */
+    long getHitCount()
+    {
+        return _hits.sum();
+    }
+
+    /**
+     * @return the number of requests which waited for a concurrent request of the same service
+     */
+    long getCoalescedCount()
+    {
+        return _coalesced.sum();
+    }
+
+    /**
+     * @return the number of values retrieved from the device
+     */
+    long getLoadCount()
+    {
+        return _loads.sum();
+    }
+}
@@ -14,43 +14,34 @@ package de.hendriklipka.buderus.km200;
 
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 
-import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.SecretKeySpec;
 
-import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.hc.client5.http.classic.methods.HttpGet;
-import org.apache.hc.client5.http.config.ConnectionConfig;
-import org.apache.hc.client5.http.impl.DefaultHttpRequestRetryStrategy;
-import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
-import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
-import org.apache.hc.client5.http.impl.classic.HttpClients;
-import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
-import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.classic.methods.HttpPost;
 import org.apache.hc.core5.http.*;
+import org.apache.hc.core5.http.io.HttpClientResponseHandler;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
 import org.apache.hc.core5.net.URIBuilder;
-import org.apache.hc.core5.util.TimeValue;
-import org.apache.hc.core5.util.Timeout;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.io.ByteStreams;
-
 /**
  * This class was taken from the OpenHAB 1.x Buderus / KM200 binding, and modified to run without the OpenHAB infrastructure. Not needed code was removed.
  * The KM200Comm class does the communication to the device and does any encryption/decryption/converting jobs
@@ -63,19 +54,35 @@ public class KM200Comm
 {
 
     private static final Logger logger = LoggerFactory.getLogger(KM200Comm.class);
-    private boolean _connected = false;
+    private volatile boolean _connected = false;
+
+    /* one reusable message buffer per thread talking to the device */
+    private static final ThreadLocal<KM200Message> MESSAGES = ThreadLocal.withInitial(KM200Message::new);
+
+    private final KM200Transport _transport;
+    private final KM200Limiter _limiter;
 
-    final PoolingHttpClientConnectionManager cm = PoolingHttpClientConnectionManagerBuilder.create()
-            .setConnectionConfigResolver(route -> ConnectionConfig.custom()
-                    .setConnectTimeout(Timeout.ofSeconds(30))
-                    .setSocketTimeout(Timeout.ofSeconds(30))
-                    .setValidateAfterInactivity(TimeValue.ofSeconds(15))
-                    .setTimeToLive(TimeValue.ofMinutes(1))
-                    .build())
-            .build();
+    private final LongAdder _errorCount = new LongAdder();
+    private final LongAdder _timeoutCount = new LongAdder();
 
     public KM200Comm()
     {
+        this(new KM200HttpSettings());
+    }
+
+    public KM200Comm(final KM200HttpSettings httpSettings)
+    {
+        this(httpSettings, new KM200Transport(httpSettings));
+    }
+
+    /**
+     * @param transport the transport, possibly shared with the communication to other gateways; each gateway has its
+     *                  own limiter
+     */
+    public KM200Comm(final KM200HttpSettings httpSettings, final KM200Transport transport)
+    {
+        _transport = transport;
+        _limiter = new KM200Limiter(httpSettings);
     }
 
     /**
@@ -83,12 +90,7 @@ public class KM200Comm
      */
     public static byte[] removeZeroPadding(byte[] bytes)
     {
-        int i = bytes.length - 1;
-        while (i >= 0 && bytes[i] == 0)
-        {
-            --i;
-        }
-        return Arrays.copyOf(bytes, i + 1);
+        return Arrays.copyOf(bytes, KM200Decoder.zeroPaddingStart(bytes, bytes.length));
     }
 
     /**
@@ -96,150 +98,243 @@ public class KM200Comm
      */
     public byte[] getDataFromService(KM200Device device, String service)
     {
-        byte[] responseBodyB64 = null;
-        // Create an instance of HttpClient.
-        try (CloseableHttpClient client = HttpClients.custom()
-                .setConnectionManager(cm)
-                .setRetryStrategy(new DefaultHttpRequestRetryStrategy(3, TimeValue.ofSeconds(10)))
-                .build())
+        return get(device, service, EntityUtils::toByteArray, new byte[1]);
+    }
+
+    /**
+     * Retrieves and decodes a message from the device, without allocating new buffers for it.
+     *
+     * @return the decoded message, or null if it could not be retrieved, was forbidden, or could not be decoded. The
+     * message is owned by the calling thread, and only valid until its next call.
+     */
+    public KM200Message fetchMessage(KM200Device device, String service)
+    {
+        final KM200Message message = MESSAGES.get();
+        final long start = System.nanoTime();
+        final KM200Message received = get(device, service, entity -> {
+            message.readFrom(entity.getContent());
+            return message;
+        }, null);
+        if (null == received)
+        {
+            return null;
+        }
+        final long fetched = System.nanoTime();
+        if (!device.getDecoder().decode(received, device.getCharset()))
         {
+            _errorCount.increment();
+            return null;
+        }
+        received.setTimings(fetched - start, System.nanoTime() - fetched);
+        return received;
+    }
 
-            // Create a method instance.
-            HttpGet method = new HttpGet("http://" + device.getIP4Address() + service);
+    private interface BodyReader<T>
+    {
+        T read(HttpEntity entity) throws IOException;
+    }
 
+    /**
+     * @param forbidden the result when the device answers with a 403 error
+     */
+    private <T> T get(KM200Device device, String service, BodyReader<T> bodyReader, T forbidden)
+    {
+        // Create a method instance.
+        HttpGet method = new HttpGet("http://" + device.getIP4Address() + service);
+        try
+        {
+            URI uri = new URIBuilder(method.getUri())
+                    .addParameter("param1", "value1")
+                    .addParameter("param2", "value2")
+                    .build();
+            method.setUri(uri);
+            // Set the right header
+            method.setHeader("Accept", "application/json");
+            method.addHeader("User-Agent", "TeleHeater/2.2.3");
+        }
+        catch (URISyntaxException e)
+        {
+            logger.error("Error building connect URI: ", e);
+            _connected = false;
+            return null;
+        }
 
-            CloseableHttpResponse response = null;
-            try
+        return execute(method, false, response -> {
+            int statusCode = response.getCode();
+            // Check the status and the forbidden 403 Error.
+            if (statusCode != HttpStatus.SC_OK)
             {
-                URI uri = new URIBuilder(method.getUri())
-                        .addParameter("param1", "value1")
-                        .addParameter("param2", "value2")
-                        .build();
-                method.setUri(uri);
-                // Set the right header
-                method.setHeader("Accept", "application/json");
-                method.addHeader("User-Agent", "TeleHeater/2.2.3");
-
-                // Execute the method.
-                response = client.execute(method);
-                int statusCode = response.getCode();
-                // Check the status and the forbidden 403 Error.
-                if (statusCode != HttpStatus.SC_OK)
+                if (statusCode == HttpStatus.SC_FORBIDDEN)
                 {
-                    String statusLine = response.getReasonPhrase();
-                    if (statusLine.contains(" 403 "))
-                    {
-                        return new byte[1];
-                    }
-                    else
-                    {
-                        logger.error("HTTP GET failed: {}", response.getReasonPhrase());
-                        return null;
-                    }
+                    return forbidden;
                 }
-                final HttpEntity entity = response.getEntity();
-                String contentTypeStr = response.getFirstHeader("Content-type").getValue();
-                if (StringUtils.isNotEmpty(contentTypeStr))
+                else
                 {
-                    ContentType contentType = ContentType.parse(contentTypeStr);
-                    device.setCharSet(contentType.getCharset().name());
+                    logger.error("HTTP GET failed: {}", response.getReasonPhrase());
+                    _errorCount.increment();
+                    return null;
                 }
-                // Read the response body.
-                responseBodyB64 = ByteStreams.toByteArray(entity.getContent());
-
-            }
-            catch (IOException e)
-            {
-                logger.error("Fatal transport error: ", e);
-                _connected = false;
             }
-            catch (URISyntaxException e)
+            final HttpEntity entity = response.getEntity();
+            String contentTypeStr = response.getFirstHeader("Content-type").getValue();
+            if (StringUtils.isNotEmpty(contentTypeStr))
             {
-                logger.error("Error building connect URI: ", e);
-                _connected = false;
-            }
-            finally
-            {
-                // Release the connection.
-                try
-                {
-                    if (null!=response)
-                    {
-                        response.close();
-                    }
-                }
-                catch (IOException e)
-                {
-                    logger.error("Error while closing connection to Buderus server: ", e);
-                }
+                ContentType contentType = ContentType.parse(contentTypeStr);
+                device.setCharSet(contentType.getCharset().name());
             }
-        }
-        catch (IOException e)
+            // Read the response body.
+            return bodyReader.read(entity);
+        });
+    }
+
+    /**
+     * This function does the POST http communication to the device, to change the value of a service.
+     *
+     * @param json the new value, like {"value":21.5}
+     * @return whether the device accepted the value
+     */
+    public boolean sendDataToService(KM200Device device, String service, String json)
+    {
+        final byte[] encoded = encodeMessage(device, json);
+        if (null == encoded)
         {
-            logger.error("Error while creating HTTP client: e");
+            return false;
         }
-        return responseBodyB64;
+        HttpPost method = new HttpPost("http://" + device.getIP4Address() + service);
+        method.setHeader("Accept", "application/json");
+        method.addHeader("User-Agent", "TeleHeater/2.2.3");
+        method.setEntity(new ByteArrayEntity(encoded, ContentType.APPLICATION_JSON));
+        // writes go before the polling, and are not retried, as they are not idempotent
+        final Boolean accepted = execute(method, true, response -> {
+            int statusCode = response.getCode();
+            EntityUtils.consume(response.getEntity());
+            if (statusCode == HttpStatus.SC_OK || statusCode == HttpStatus.SC_NO_CONTENT)
+            {
+                return true;
+            }
+            logger.error("HTTP POST to {} failed: {} {}", service, statusCode, response.getReasonPhrase());
+            _errorCount.increment();
+            return false;
+        });
+        return Boolean.TRUE.equals(accepted);
     }
 
     /**
-     * This function does the decoding for a new message from the device
+     * Sends the request when the limiter allows it, and reports its outcome to the limiter.
+     *
+     * @return the result of the handler, null when the request failed
      */
-    public String decodeMessage(KM200Device device, byte[] encoded)
+    private <T> T execute(ClassicHttpRequest method, boolean priority, HttpClientResponseHandler<T> handler)
     {
-        String retString;
-        byte[] decodedB64;
-
+        final long start;
         try
         {
-            decodedB64 = Base64.decodeBase64(encoded);
+            start = _limiter.acquire(priority);
         }
-        catch (Exception e)
+        catch (InterruptedException e)
         {
-            logger.error("Message is not in valid Base64 scheme: ", e);
-            e.printStackTrace();
+            Thread.currentThread().interrupt();
             return null;
         }
+        KM200Limiter.Outcome outcome = KM200Limiter.Outcome.IGNORE;
         try
         {
-            /* Check whether the length of the decryptData is NOT multiplies of 16 */
-            if ((decodedB64.length & 0xF) != 0)
-            {
-                /* Return the data */
-                retString = new String(decodedB64, device.getCharSet());
-                return retString;
-            }
-            // --- create cipher
+            // Execute the method, the connection is released when the response has been handled.
+            final int[] status = new int[1];
+            final T result = _transport.execute(method, response -> {
+                status[0] = response.getCode();
+                return handler.handleResponse(response);
+            });
+            outcome = status[0] >= HttpStatus.SC_SERVER_ERROR ? KM200Limiter.Outcome.OVERLOAD : KM200Limiter.Outcome.SUCCESS;
+            return result;
+        }
+        catch (SocketTimeoutException e)
+        {
+            // also covers connect timeouts
+            logger.error("Timeout while talking to the KM200: {}", e.getMessage());
+            _timeoutCount.increment();
+            _connected = false;
+            outcome = KM200Limiter.Outcome.OVERLOAD;
+        }
+        catch (IOException e)
+        {
+            logger.error("Fatal transport error: ", e);
+            _errorCount.increment();
+            _connected = false;
+        }
+        finally
+        {
+            _limiter.release(start, outcome);
+        }
+        return null;
+    }
+
+    /**
+     * This function does the encoding for a new message to the device: zero padding, AES/ECB, then Base64
+     *
+     * @return the encoded message, or null if it could not be encrypted
+     */
+    public byte[] encodeMessage(KM200Device device, String data)
+    {
+        try
+        {
+            final byte[] bytes = data.getBytes(device.getCharset());
             final Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
-            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(device.getCryptKeyPriv(), "AES"));
-            final byte[] decryptedData = cipher.doFinal(decodedB64);
-            byte[] decryptedDataWOZP = removeZeroPadding(decryptedData);
-            retString = new String(decryptedDataWOZP, device.getCharSet());
-            return retString;
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(device.getCryptKeyPriv(), "AES"));
+            final int blockSize = cipher.getBlockSize();
+            final byte[] padded = Arrays.copyOf(bytes, (bytes.length + blockSize - 1) / blockSize * blockSize);
+            return Base64.getEncoder().encode(cipher.doFinal(padded));
         }
-        catch (BadPaddingException | IllegalBlockSizeException | UnsupportedEncodingException
-                | NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e)
+        catch (GeneralSecurityException e)
         {
-            // failure to authenticate
-            logger.error("Exception on encoding: ", e);
+            logger.error("Cannot encrypt the message to the KM200: {}", e.getMessage());
             return null;
         }
     }
 
     /**
-     * This function checks the capabilities of a service on the device
+     * This function does the decoding for a new message from the device
+     */
+    public String decodeMessage(KM200Device device, byte[] encoded)
+    {
+        final KM200Message message = MESSAGES.get();
+        message.setRaw(encoded);
+        if (!device.getDecoder().decode(message, device.getCharset()))
+        {
+            return null;
+        }
+        return message.toString();
+    }
+
+    /**
+     * This function checks the capabilities of a service on the device, and of all services below it
      */
     public void initObjects(KM200Device device, String service)
+    {
+        for (String child : initObject(device, service, device.serviceMap))
+        {
+            initObjects(device, child);
+        }
+    }
+
+    /**
+     * This function checks the capabilities of a single service on the device, and stores it in the service map.
+     *
+     * @return the services referenced by this service, which need to be checked next
+     */
+    public List<String> initObject(KM200Device device, String service, Map<String, KM200CommObject> serviceMap)
     {
         String id, type, decodedData = null;
         int writeable = 0;
         int recordable = 0;
         JSONObject nodeRoot;
         KM200CommObject newObject;
+        List<String> children = new ArrayList<>();
         logger.debug("Init: {}", service);
-        if (device.blacklistMap.contains(service))
+        if (device.isBlacklisted(service))
         {
             logger.debug("Service on blacklist: {}", service);
-            return;
+            return children;
         }
         byte[] recData = getDataFromService(device, service);
         try
@@ -256,14 +351,20 @@ public class KM200Comm
             if (recData.length == 1)
             {
                 newObject = new KM200CommObject(service, "", 0, 0, 0);
-                device.serviceMap.put(service, newObject);
-                return;
+                serviceMap.put(service, newObject);
+                return children;
             }
-            decodedData = decodeMessage(device, recData);
-            if (decodedData == null)
+            final KM200Message message = MESSAGES.get();
+            message.setRaw(recData);
+            if (!device.getDecoder().decode(message, device.getCharset()))
             {
                 throw new RuntimeException("Decoding of the KM200 message is not possible!");
             }
+            if (initFloatValue(message.fields(), serviceMap))
+            {
+                return children;
+            }
+            decodedData = message.toString();
             if (decodedData.length() > 0)
             {
                 nodeRoot = new JSONObject(decodedData);
@@ -273,7 +374,7 @@ public class KM200Comm
             else
             {
                 logger.error("Get empty reply");
-                return;
+                return children;
             }
 
             /* Check the service features and set the flags */
@@ -311,33 +412,28 @@ public class KM200Comm
                             String subJSON = (String) paras.get(i);
                             valParas.add(subJSON);
                         }
-                        newObject.setValueParameter(valParas);
+                        newObject.setAllowedValues(valParas);
                     }
-                    device.serviceMap.put(id, newObject);
+                    serviceMap.put(id, newObject);
 
                     break;
                 }
                 case "floatValue":
                 { /* Check whether the type is a single value containing a float value */
-                    Object valObject;
                     logger.debug("initDevice: type float value: {}", decodedData);
-                    valObject = (float) nodeRoot.getDouble("value");
-                    newObject.setValue(valObject);
+                    newObject.setFloatValue((float) nodeRoot.getDouble("value"));
                     if (nodeRoot.has("minValue") && nodeRoot.has("maxValue"))
                     {
-                        List<Float> valParas = new ArrayList<>();
-                        valParas.add((float) nodeRoot.getDouble("minValue"));
-                        valParas.add((float) nodeRoot.getDouble("maxValue"));
-                        newObject.setValueParameter(valParas);
+                        newObject.setRange((float) nodeRoot.getDouble("minValue"), (float) nodeRoot.getDouble("maxValue"));
                     }
-                    device.serviceMap.put(id, newObject);
+                    serviceMap.put(id, newObject);
 
                     break;
                 }
                 case "switchProgram":  /* Check whether the type is a switchProgram */
                     logger.debug("initDevice: type switchProgram {}", decodedData);
                     newObject.setValue(decodedData);
-                    device.serviceMap.put(id, newObject);
+                    serviceMap.put(id, newObject);
                     /* have to be completed */
 
                     break;
@@ -345,36 +441,37 @@ public class KM200Comm
                     logger.debug("initDevice: type errorList: {}", decodedData);
                     JSONArray errorValues = nodeRoot.getJSONArray("values");
                     newObject.setValue(errorValues);
+                    serviceMap.put(id, newObject);
                     /* have to be completed */
 
                     break;
                 case "refEnum":  /* Check whether the type is a refEnum */
                     logger.debug("initDevice: type refEnum: {}", decodedData);
-                    device.serviceMap.put(id, newObject);
+                    serviceMap.put(id, newObject);
                     JSONArray refers = nodeRoot.getJSONArray("references");
                     for (int i = 0; i < refers.length(); i++)
                     {
                         JSONObject subJSON = refers.getJSONObject(i);
                         id = subJSON.getString("id");
-                        initObjects(device, id);
+                        children.add(id);
                     }
 
                     break;
                 case "moduleList":  /* Check whether the type is a moduleList */
                     logger.debug("initDevice: type moduleList: {}", decodedData);
-                    device.serviceMap.put(id, newObject);
+                    serviceMap.put(id, newObject);
                     JSONArray vals = nodeRoot.getJSONArray("values");
                     for (int i = 0; i < vals.length(); i++)
                     {
                         JSONObject subJSON = vals.getJSONObject(i);
                         id = subJSON.getString("id");
-                        initObjects(device, id);
+                        children.add(id);
                     }
 
                     break;
                 case "yRecording":  /* Check whether the type is a yRecording */
                     logger.debug("initDevice: type yRecording: {}", decodedData);
-                    device.serviceMap.put(id, newObject);
+                    serviceMap.put(id, newObject);
                     /* have to be completed */
 
                     break;
@@ -382,7 +479,7 @@ public class KM200Comm
                     logger.debug("initDevice: type systeminfo: {}", decodedData);
                     JSONArray sInfo = nodeRoot.getJSONArray("values");
                     newObject.setValue(sInfo);
-                    device.serviceMap.put(id, newObject);
+                    serviceMap.put(id, newObject);
                     /* have to be completed */
 
                     break;
@@ -390,7 +487,7 @@ public class KM200Comm
                     logger.info("initDevice: type unknown for service: {}",
                             service + "Data:" + decodedData);
                     newObject.setValue(decodedData);
-                    device.serviceMap.put(id, newObject);
+                    serviceMap.put(id, newObject);
                     break;
             }
         }
@@ -401,6 +498,30 @@ public class KM200Comm
             logger.error("Parsingexception in JSON: {} data: {}", e, decodedData);
             e.printStackTrace();
         }
+        return children;
+    }
+
+    /**
+     * Stores a float value service without a full JSON parse, since these are the most common services.
+     *
+     * @return false when the message is not a plain float value, and needs to be parsed completely
+     */
+    private boolean initFloatValue(final KM200Fields fields, final Map<String, KM200CommObject> serviceMap)
+    {
+        if (null == fields || !"floatValue".equals(fields.getType()) || !fields.hasNumericValue() || null == fields.getId())
+        {
+            return false;
+        }
+        final String id = fields.getId();
+        final KM200CommObject newObject = new KM200CommObject(id, fields.getType(), fields.getWriteable(), fields.getRecordable());
+        newObject.setFloatValue((float) fields.getNumericValue());
+        if (fields.hasRange())
+        {
+            newObject.setRange((float) fields.getMinValue(), (float) fields.getMaxValue());
+        }
+        logger.debug("initDevice: type float value: {}", id);
+        serviceMap.put(id, newObject);
+        return true;
     }
 
     public void connect(final KM200Device device)
@@ -438,4 +559,38 @@ public class KM200Comm
     {
         return _connected;
     }
+
+    /**
+     * @return the number of failed requests to the device (without timeouts), and of messages which could not be decoded
+     */
+    public long getErrorCount()
+    {
+        return _errorCount.sum();
+    }
+
+    /**
+     * @return the number of requests to the device which timed out
+     */
+    public long getTimeoutCount()
+    {
+        return _timeoutCount.sum();
+    }
+
+    public KM200Transport getTransport()
+    {
+        return _transport;
+    }
+
+    public KM200Limiter getLimiter()
+    {
+        return _limiter;
+    }
+
+    /**
+     * Closes all connections to the device. This instance cannot be used afterwards.
+     */
+    public void close()
+    {
+        _transport.close();
+    }
 }
\ No newline at end of file
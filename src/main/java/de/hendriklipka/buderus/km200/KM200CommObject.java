@@ -13,62 +13,103 @@ package de.hendriklipka.buderus.km200;
  * SPDX-License-Identifier: EPL-2.0
  */
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.JSONArray;
+
 /**
  * This class was taken from the OpenHAB 1.x Buderus / KM200 binding, and modified to run without the OpenHAB infrastructure.
+ * <p>
+ * One instance is kept per discovered service, so it is kept small: the flags are bits of one byte, a float value is
+ * a primitive, the service type and the allowed values are interned, and complex values (e.g. an errorList) are kept
+ * as their JSON text and only parsed when asked for.
  */
 public class KM200CommObject
 {
-    private Integer readable;
-    private Integer writeable;
-    private Integer recordable;
-    private String fullServiceName = "";
-    private String serviceType = "";
-    private Object value = null;
-    private Object valueParameter = null;
+    private static final int READABLE = 1;
+    private static final int WRITEABLE = 2;
+    private static final int RECORDABLE = 4;
+    /* the value is the float */
+    private static final int NUMBER = 8;
+    /* the value is the JSON text of an array */
+    private static final int ARRAY = 16;
 
-    public KM200CommObject(String serviceName, String type, Integer read, Integer write, Integer record)
+    private final String fullServiceName;
+    private final String serviceType;
+    private byte flags;
+    private float number = Float.NaN;
+    /* a string value, or the JSON text of a complex value */
+    private String text;
+    /* the allowed values (String[]) of a string value, or minimum and maximum (float[]) of a float value */
+    private Object parameters;
+
+    public KM200CommObject(String serviceName, String type, int read, int write, int record)
     {
         fullServiceName = serviceName;
-        serviceType = type;
-        readable = read;
-        writeable = write;
-        recordable = record;
+        serviceType = type.intern();
+        flags = (byte) ((read != 0 ? READABLE : 0) | (write != 0 ? WRITEABLE : 0) | (record != 0 ? RECORDABLE : 0));
     }
 
-    public KM200CommObject(String serviceName, String type, Integer write, Integer record)
+    public KM200CommObject(String serviceName, String type, int write, int record)
     {
-        fullServiceName = serviceName;
-        serviceType = type;
-        readable = 1;
-        writeable = write;
-        recordable = record;
+        this(serviceName, type, 1, write, record);
     }
 
     /* Sets */
+
+    /**
+     * @param val a number, a string, or a JSONArray (kept as its JSON text)
+     */
     public void setValue(Object val)
     {
-        value = val;
+        if (val instanceof Number)
+        {
+            setFloatValue(((Number) val).floatValue());
+            return;
+        }
+        number = Float.NaN;
+        text = null == val ? null : val.toString();
+        flags = (byte) ((flags & ~(NUMBER | ARRAY)) | (val instanceof JSONArray ? ARRAY : 0));
+    }
+
+    public void setFloatValue(float val)
+    {
+        number = val;
+        text = null;
+        flags = (byte) ((flags & ~ARRAY) | NUMBER);
+    }
+
+    public void setAllowedValues(List<String> values)
+    {
+        final String[] allowed = new String[values.size()];
+        for (int i = 0; i < allowed.length; i++)
+        {
+            allowed[i] = values.get(i).intern();
+        }
+        parameters = allowed;
     }
 
-    public void setValueParameter(Object val)
+    public void setRange(float min, float max)
     {
-        valueParameter = val;
+        parameters = new float[]{min, max};
     }
 
     /* gets */
-    public Integer getReadable()
+    public boolean isReadable()
     {
-        return readable;
+        return (flags & READABLE) != 0;
     }
 
-    public Integer getWriteable()
+    public boolean isWriteable()
     {
-        return writeable;
+        return (flags & WRITEABLE) != 0;
     }
 
-    public Integer getRecordable()
+    public boolean isRecordable()
     {
-        return recordable;
+        return (flags & RECORDABLE) != 0;
     }
 
     public String getServiceType()
@@ -81,13 +122,56 @@ public class KM200CommObject
         return fullServiceName;
     }
 
+    /**
+     * A complex value is parsed from its JSON text with each call, on purpose: only the service listing and the
+     * discovery cache ask for it, once per service, while keeping the parsed array would take several times the memory
+     * of its text for each such service, for as long as the bridge runs. Each caller gets its own array.
+     *
+     * @return a Float, a String, a JSONArray, or null when there is no value
+     */
     public Object getValue()
     {
-        return value;
+        if ((flags & NUMBER) != 0)
+        {
+            return number;
+        }
+        return (flags & ARRAY) != 0 ? new JSONArray(text) : text;
+    }
+
+    /**
+     * @return the float value, NaN when there is none
+     */
+    public float getFloatValue()
+    {
+        return number;
+    }
+
+    /**
+     * @return the allowed values of a string value, null when they are not known
+     */
+    public List<String> getAllowedValues()
+    {
+        return parameters instanceof String[] ? Collections.unmodifiableList(Arrays.asList((String[]) parameters)) : null;
+    }
+
+    public boolean hasRange()
+    {
+        return parameters instanceof float[];
+    }
+
+    /**
+     * @return the minimum of a float value, NaN when there is no range
+     */
+    public float getMinValue()
+    {
+        return hasRange() ? ((float[]) parameters)[0] : Float.NaN;
     }
 
-    public Object getValueParameter()
+    /**
+     * @return the maximum of a float value, NaN when there is no range
+     */
+    public float getMaxValue()
     {
-        return valueParameter;
+        return hasRange() ? ((float[]) parameters)[1] : Float.NaN;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,140 @@
+package de.hendriklipka.buderus.km200;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decodes messages from the KM200: Base64, then AES/ECB with zero padding.
+ * <p>
+ * One decoder belongs to one device key. The cipher is looked up and initialized once per thread (ciphers are not
+ * thread-safe), and decoding works on the buffers of a {@link KM200Message}, so that it does not allocate.
+ */
+public class KM200Decoder
+{
+    private static final Logger logger = LoggerFactory.getLogger(KM200Decoder.class);
+
+    private static final byte[] BASE64_VALUES = new byte[256];
+
+    static
+    {
+        Arrays.fill(BASE64_VALUES, (byte) -1);
+        final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++)
+        {
+            BASE64_VALUES[alphabet.charAt(i)] = (byte) i;
+        }
+        // also accept the URL-safe alphabet, like commons-codec does
+        BASE64_VALUES['-'] = 62;
+        BASE64_VALUES['_'] = 63;
+    }
+
+    private final SecretKeySpec _key;
+    private final ThreadLocal<Cipher> _ciphers = ThreadLocal.withInitial(this::createCipher);
+
+    public KM200Decoder(final byte[] cryptKey)
+    {
+        _key = new SecretKeySpec(cryptKey, "AES");
+    }
+
+    private Cipher createCipher()
+    {
+        try
+        {
+            final Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, _key);
+            return cipher;
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException("Cannot create AES cipher for the KM200 key", e);
+        }
+    }
+
+    /**
+     * Decodes the raw content of the message. The raw buffer is used as scratch space, and is not valid afterwards.
+     *
+     * @return false when the message could not be decrypted
+     */
+    public boolean decode(final KM200Message message, final Charset charset)
+    {
+        final byte[] raw = message.getRaw();
+        final int decodedLength = decodeBase64InPlace(raw, message.getRawLength());
+        final byte[] data = message.dataBuffer(decodedLength);
+        /* Check whether the length of the decryptData is NOT multiplies of 16 */
+        if ((decodedLength & 0xF) != 0)
+        {
+            /* Return the data */
+            System.arraycopy(raw, 0, data, 0, decodedLength);
+            message.setDecoded(data, decodedLength, charset);
+            return true;
+        }
+        try
+        {
+            final int length = _ciphers.get().doFinal(raw, 0, decodedLength, data, 0);
+            message.setDecoded(data, zeroPaddingStart(data, length), charset);
+            return true;
+        }
+        catch (GeneralSecurityException e)
+        {
+            // failure to authenticate
+            logger.error("Exception on encoding: ", e);
+            return false;
+        }
+    }
+
+    /**
+     * Decodes Base64 into the same buffer. Characters outside the Base64 alphabet are skipped, and decoding stops at
+     * the first padding character.
+     *
+     * @return the length of the decoded data
+     */
+    static int decodeBase64InPlace(final byte[] buffer, final int length)
+    {
+        int out = 0;
+        int bits = 0;
+        int bitCount = 0;
+        for (int i = 0; i < length; i++)
+        {
+            final byte c = buffer[i];
+            if (c == '=')
+            {
+                break;
+            }
+            final int value = BASE64_VALUES[c & 0xFF];
+            if (value < 0)
+            {
+                continue;
+            }
+            bits = (bits << 6) | value;
+            bitCount += 6;
+            if (bitCount >= 8)
+            {
+                bitCount -= 8;
+                // every output byte needs at least one more input byte, so this never overwrites unread input
+                buffer[out++] = (byte) (bits >> bitCount);
+                bits &= (1 << bitCount) - 1;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @return the length of the data without the trailing zero bytes
+     */
+    static int zeroPaddingStart(final byte[] bytes, final int length)
+    {
+        int i = length - 1;
+        while (i >= 0 && bytes[i] == 0)
+        {
+            --i;
+        }
+        return i + 1;
+    }
+}
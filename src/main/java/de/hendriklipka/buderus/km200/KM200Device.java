@@ -13,14 +13,15 @@ package de.hendriklipka.buderus.km200;
  * SPDX-License-Identifier: EPL-2.0
  */
 
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-
-import javax.xml.bind.DatatypeConverter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -51,27 +52,33 @@ public class KM200Device
 
     /* The returned device charset for communication */
     protected String charSet = null;
+    private volatile Charset deviceCharset = StandardCharsets.UTF_8;
 
     /* Needed keys for the communication */
     protected byte[] cryptKeyInit = null;
     protected byte[] cryptKeyPriv = null;
 
+    /* The decoder for the current private key, created when first needed */
+    private volatile KM200Decoder decoder = null;
+
     /* Buderus_MD5Salt */
     protected byte[] MD5Salt = null;
 
-    /* Device services */
-    HashMap<String, KM200CommObject> serviceMap;
-    /* Device services blacklist */
-    List<String> blacklistMap;
+    /* Device services, filled concurrently during discovery */
+    Map<String, KM200CommObject> serviceMap;
+    /* The same services by path, rebuilt with each discovery result */
+    private volatile KM200PathTrie<KM200CommObject> serviceIndex = new KM200PathTrie<>();
+    /* Device services blacklist, by prefix; replaced as a whole, so discovery threads can read it without locking */
+    private final List<String> blacklist = new ArrayList<>();
+    private volatile KM200PathTrie<String> blacklistIndex = new KM200PathTrie<>();
 
     /* Is the first INIT done */
     protected Boolean inited = false;
 
     public KM200Device()
     {
-        serviceMap = new HashMap<>();
-        blacklistMap = new ArrayList<>();
-        blacklistMap.add("/gateway/firmware");
+        serviceMap = new ConcurrentHashMap<>();
+        addToBlacklist("/gateway/firmware");
     }
 
     /**
@@ -126,6 +133,7 @@ public class KM200Device
             cryptKeyPriv = new byte[MD5_K1.length + MD5_K2_Private.length];
             System.arraycopy(MD5_K1, 0, cryptKeyPriv, 0, MD5_K1.length);
             System.arraycopy(MD5_K2_Private, 0, cryptKeyPriv, MD5_K1.length, MD5_K2_Private.length);
+            decoder = null;
 
         }
     }
@@ -146,6 +154,28 @@ public class KM200Device
         return charSet;
     }
 
+    /**
+     * @return the device charset, UTF-8 as long as the device did not announce one
+     */
+    public Charset getCharset()
+    {
+        return deviceCharset;
+    }
+
+    /**
+     * @return the decoder for the current private key
+     */
+    public KM200Decoder getDecoder()
+    {
+        KM200Decoder current = decoder;
+        if (null == current)
+        {
+            current = new KM200Decoder(cryptKeyPriv);
+            decoder = current;
+        }
+        return current;
+    }
+
     /**
      * This function outputs a ";" separated list of all on the device available services with its capabilities
      */
@@ -172,40 +202,18 @@ public class KM200Device
                     if (!type.equals("refEnum") && !type.equals("") && !type.equals("switchProgram")
                             && !type.equals("yRecording"))
                     {
-                        val = object.getValue().toString();
-                        if (object.getValueParameter() != null)
+                        val = String.valueOf(object.getValue());
+                        if (type.equals("stringValue") && object.getAllowedValues() != null)
                         {
-                            if (type.equals("stringValue"))
-                            {
-                                //noinspection unchecked
-                                List<String> valParas = (List<String>) object.getValueParameter();
-                                for (int i = 0; i < valParas.size(); i++)
-                                {
-                                    if (i > 0)
-                                    {
-                                        valPara.append("|");
-                                    }
-                                    valPara.append(valParas.get(i));
-                                }
-                                valPara.append(";;");
-                            }
-                            if (type.equals("floatValue"))
-                            {
-                                //noinspection unchecked
-                                List<Float> valParas = (List<Float>) object.getValueParameter();
-                                valPara.append(";");
-                                if (valParas.size() == 2)
-                                {
-                                    valPara.append(valParas.get(0));
-                                    valPara.append(";");
-                                    valPara.append(valParas.get(1));
-                                }
-                                else
-                                {
-                                    logger.debug("Value parameter for float != 2, this shouldn't happen");
-                                    valPara.append(";");
-                                }
-                            }
+                            valPara.append(String.join("|", object.getAllowedValues()));
+                            valPara.append(";;");
+                        }
+                        else if (type.equals("floatValue") && object.hasRange())
+                        {
+                            valPara.append(";");
+                            valPara.append(object.getMinValue());
+                            valPara.append(";");
+                            valPara.append(object.getMaxValue());
                         }
                         else
                         {
@@ -217,8 +225,8 @@ public class KM200Device
                         val = "";
                         valPara = new StringBuilder(";");
                     }
-                    logger.info("{};{};{};{};{};{};{}", object.getReadable().toString(),
-                            object.getWriteable().toString(), object.getRecordable().toString(), type,
+                    logger.info("{};{};{};{};{};{};{}", object.isReadable() ? 1 : 0,
+                            object.isWriteable() ? 1 : 0, object.isRecordable() ? 1 : 0, type,
                             object.getFullServiceName(), val, valPara.toString());
                 }
             }
@@ -226,6 +234,66 @@ public class KM200Device
         }
     }
 
+    /**
+     * @return the discovered services, by service name
+     */
+    public Map<String, KM200CommObject> getServices()
+    {
+        return serviceMap;
+    }
+
+    /**
+     * @return the discovered services, by path
+     */
+    public KM200PathTrie<KM200CommObject> getServiceIndex()
+    {
+        return serviceIndex;
+    }
+
+    /**
+     * Replaces all discovered services with a newer discovery result. Services missing in the new result are removed,
+     * as are blacklisted services (e.g. from a discovery cache written before they were blacklisted).
+     */
+    public void replaceServices(Map<String, KM200CommObject> services)
+    {
+        final KM200PathTrie<KM200CommObject> index = new KM200PathTrie<>();
+        final Map<String, KM200CommObject> retained = new HashMap<>();
+        for (Map.Entry<String, KM200CommObject> service : services.entrySet())
+        {
+            if (!isBlacklisted(service.getKey()))
+            {
+                index.put(service.getKey(), service.getValue());
+                retained.put(service.getKey(), service.getValue());
+            }
+        }
+        serviceMap.putAll(retained);
+        serviceMap.keySet().retainAll(retained.keySet());
+        serviceIndex = index;
+    }
+
+    /**
+     * Excludes the service and all services below it from the discovery. A '*' segment matches any segment, e.g.
+     * '/heatingCircuits/*&#47;switchPrograms'.
+     */
+    public synchronized void addToBlacklist(String prefix)
+    {
+        blacklist.add(prefix);
+        final KM200PathTrie<String> index = new KM200PathTrie<>();
+        for (String entry : blacklist)
+        {
+            index.put(entry, entry);
+        }
+        blacklistIndex = index;
+    }
+
+    /**
+     * @return whether the service, or one of its parents, is on the blacklist
+     */
+    public boolean isBlacklisted(String service)
+    {
+        return null != blacklistIndex.findPrefix(service);
+    }
+
     // setter
     public void setIP4Address(String ip)
     {
@@ -246,22 +314,51 @@ public class KM200Device
 
     public void setMD5Salt(String salt)
     {
-        MD5Salt = DatatypeConverter.parseHexBinary(salt);
+        MD5Salt = parseHex(salt);
         RecreateKeys();
     }
 
     public void setCryptKeyPriv(String key)
     {
-        cryptKeyPriv = DatatypeConverter.parseHexBinary(key);
+        cryptKeyPriv = parseHex(key);
+        decoder = null;
     }
 
     public void setCharSet(String charset)
     {
-        charSet = charset;
+        if (!StringUtils.equals(charSet, charset))
+        {
+            deviceCharset = Charset.forName(charset);
+            charSet = charset;
+        }
     }
 
     public void setInited(Boolean Init)
     {
         inited = Init;
     }
-}
\ No newline at end of file
+
+    /**
+     * @return the bytes of a hex string like '867845e9...'
+     * @throws IllegalArgumentException when the string has an odd length or contains other characters
+     */
+    static byte[] parseHex(String hex)
+    {
+        if (hex.length() % 2 != 0)
+        {
+            throw new IllegalArgumentException("hex string needs an even length: " + hex);
+        }
+        final byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            final int high = Character.digit(hex.charAt(2 * i), 16);
+            final int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0)
+            {
+                throw new IllegalArgumentException("not a hex string: " + hex);
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+}
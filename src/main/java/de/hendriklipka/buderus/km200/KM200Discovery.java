@@ -0,0 +1,197 @@
+package de.hendriklipka.buderus.km200;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Walks the service tree of the KM200, starting from a set of root services, with a bounded number of requests in
+ * flight. Every referenced service is checked as soon as its parent is known, independent of the other branches.
+ * <p>
+ * The walk can be limited to the services matching a set of patterns (like the configured mappings), so only the
+ * branches leading to them are requested.
+ */
+public class KM200Discovery
+{
+    private static final Logger logger = LoggerFactory.getLogger(KM200Discovery.class);
+
+    private final KM200Comm _comm;
+    private final int _parallelism;
+
+    /**
+     * @param parallelism the maximum number of requests to the device at the same time
+     */
+    public KM200Discovery(final KM200Comm comm, final int parallelism)
+    {
+        _comm = comm;
+        _parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Discovers all services below the given roots, and returns them. Blocks until the discovery is complete.
+     *
+     * @throws RuntimeException when the communication to the device failed
+     */
+    public Map<String, KM200CommObject> discover(final KM200Device device, final Collection<String> roots)
+    {
+        final Map<String, KM200CommObject> services = new ConcurrentHashMap<>();
+        final long start = System.nanoTime();
+        walk(device, roots, service -> true, services);
+        logger.info("Discovered {} services in {} ms.", services.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return services;
+    }
+
+    /**
+     * Discovers the services matching the patterns, and the services on the way to them. A pattern is a service
+     * path, where '*' matches one element (or part of it) and '**' any number of elements, see {@link KM200PathTrie}.
+     * Services which are not referenced by their parent (the KM200 does not list all of them) are requested
+     * directly, when their pattern has no wildcard.
+     *
+     * @throws RuntimeException when the communication to the device failed
+     */
+    public Map<String, KM200CommObject> discover(final KM200Device device, final Collection<String> roots, final Collection<String> patterns)
+    {
+        final Map<String, KM200CommObject> services = new ConcurrentHashMap<>();
+        final long start = System.nanoTime();
+        final List<List<String>> patternSegments = new ArrayList<>();
+        for (String pattern : patterns)
+        {
+            patternSegments.add(KM200PathTrie.segments(pattern));
+        }
+        final Predicate<String> wanted = service -> {
+            final List<String> segments = KM200PathTrie.segments(service);
+            for (List<String> pattern : patternSegments)
+            {
+                if (leadsTo(pattern, segments))
+                {
+                    return true;
+                }
+            }
+            return false;
+        };
+        final List<String> wantedRoots = new ArrayList<>();
+        for (String root : roots)
+        {
+            if (wanted.test(root))
+            {
+                wantedRoots.add(root);
+            }
+        }
+        walk(device, wantedRoots, wanted, services);
+
+        final List<String> unlisted = new ArrayList<>();
+        for (String pattern : patterns)
+        {
+            if (!pattern.contains(KM200PathTrie.WILDCARD) && !services.containsKey(pattern))
+            {
+                unlisted.add(pattern);
+            }
+        }
+        if (!unlisted.isEmpty())
+        {
+            logger.debug("Requesting unlisted services {}", unlisted);
+            walk(device, unlisted, wanted, services);
+        }
+        logger.info("Discovered {} services for {} configured patterns in {} ms.", services.size(), patterns.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return services;
+    }
+
+    /**
+     * @return whether the path matches the pattern, or may be the parent of a matching path
+     */
+    static boolean leadsTo(final List<String> pattern, final List<String> path)
+    {
+        for (int i = 0; i < path.size(); i++)
+        {
+            if (i == pattern.size())
+            {
+                return false;
+            }
+            if (KM200PathTrie.ANY_DEPTH.equals(pattern.get(i)))
+            {
+                return true;
+            }
+            if (!KM200PathTrie.globMatches(pattern.get(i), path.get(i)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Requests the roots, and (recursively) the referenced services which are wanted. Blocks until all are done.
+     */
+    private void walk(final KM200Device device, final Collection<String> roots, final Predicate<String> wanted,
+                      final Map<String, KM200CommObject> services)
+    {
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(_parallelism, r -> {
+            Thread t = new Thread(r, "km200-discovery-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        final Phaser pending = new Phaser(1);
+        final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        try
+        {
+            for (String root : roots)
+            {
+                submit(executor, pending, failure, device, root, wanted, services);
+            }
+            pending.arriveAndAwaitAdvance();
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        if (null != failure.get())
+        {
+            throw failure.get();
+        }
+    }
+
+    private void submit(final ExecutorService executor, final Phaser pending, final AtomicReference<RuntimeException> failure,
+                        final KM200Device device, final String service, final Predicate<String> wanted,
+                        final Map<String, KM200CommObject> services)
+    {
+        pending.register();
+        executor.execute(() -> {
+            try
+            {
+                if (null == failure.get())
+                {
+                    for (String child : _comm.initObject(device, service, services))
+                    {
+                        if (wanted.test(child))
+                        {
+                            submit(executor, pending, failure, device, child, wanted, services);
+                        }
+                    }
+                }
+            }
+            catch (RuntimeException e)
+            {
+                logger.error("Discovery of service {} failed: {}", service, e.getMessage());
+                failure.compareAndSet(null, e);
+            }
+            finally
+            {
+                pending.arriveAndDeregister();
+            }
+        });
+    }
+}
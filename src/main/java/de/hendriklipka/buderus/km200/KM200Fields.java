@@ -0,0 +1,728 @@
+package de.hendriklipka.buderus.km200;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Extracts the commonly needed fields from a decoded KM200 response in a single pass over the bytes, without
+ * building a JSON object tree: "id", "type", "value", "writeable", "recordable", "minValue", "maxValue" and "state".
+ * All other fields are skipped. Numbers are parsed directly from the bytes, strings are only created when asked for.
+ * <p>
+ * This covers the simple value types. Responses where the interesting data is in nested structures (e.g. switchProgram
+ * or errorList, see {@link #isSimpleType()}) still need to be parsed with a full JSON parser.
+ * <p>
+ * Instances are re-used for many messages, and are not thread-safe. Use {@link KM200Message#fields()}.
+ */
+public class KM200Fields
+{
+    private static final String[] KNOWN_TYPES = {"floatValue", "stringValue", "refEnum", "switchProgram", "errorList", "systeminfo",
+            "moduleList", "yRecording", "arrayData"};
+    private static final int MAX_STATES = 4;
+    /* the characters allowed after a backslash, besides 'u' */
+    private static final String ESCAPES = "\"\\/bfnrt";
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static
+    {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++)
+        {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private enum Field
+    {
+        ID, TYPE, VALUE, WRITEABLE, RECORDABLE, MIN_VALUE, MAX_VALUE, STATE, OTHER
+    }
+
+    private enum ValueKind
+    {
+        NONE, NUMBER, STRING, OTHER
+    }
+
+    private byte[] _data;
+    private Charset _charset;
+    private int _pos;
+    private int _end;
+
+    /* strings are kept as spans into the data: start, end, and whether they contain escapes */
+    private int _idStart = -1;
+    private int _idEnd;
+    private boolean _idEscaped;
+    private String _type;
+    private ValueKind _valueKind;
+    private double _value;
+    private int _valueStart;
+    private int _valueEnd;
+    private boolean _valueEscaped;
+    private int _writeable;
+    private int _recordable;
+    private double _minValue;
+    private double _maxValue;
+    private boolean _hasRange;
+    private int _stateCount;
+    private final int[] _stateNameStarts = new int[MAX_STATES];
+    private final int[] _stateNameEnds = new int[MAX_STATES];
+    private final double[] _stateValues = new double[MAX_STATES];
+
+    /* scratch space for parsing a number */
+    private double _number;
+
+    /**
+     * Parses a decoded message.
+     *
+     * @return false when the message is not a well-formed JSON object; the fields are undefined then
+     */
+    public boolean parse(final byte[] data, final int length, final Charset charset)
+    {
+        _data = data;
+        _charset = charset;
+        _pos = 0;
+        _end = length;
+        _idStart = -1;
+        _type = null;
+        _valueKind = ValueKind.NONE;
+        _writeable = 0;
+        _recordable = 0;
+        _hasRange = false;
+        boolean hasMin = false;
+        boolean hasMax = false;
+        _stateCount = 0;
+
+        skipWhitespace();
+        if (!consume('{'))
+        {
+            return false;
+        }
+        skipWhitespace();
+        if (consume('}'))
+        {
+            return true;
+        }
+        while (true)
+        {
+            skipWhitespace();
+            if (!consume('"'))
+            {
+                return false;
+            }
+            final int keyStart = _pos;
+            if (skipStringBody() < 0)
+            {
+                return false;
+            }
+            final Field field = field(keyStart, _pos - 1);
+            skipWhitespace();
+            if (!consume(':'))
+            {
+                return false;
+            }
+            skipWhitespace();
+            if (_pos >= _end)
+            {
+                return false;
+            }
+            final byte c = _data[_pos];
+            switch (field)
+            {
+                case ID:
+                    if (c != '"')
+                    {
+                        return false;
+                    }
+                    _pos++;
+                    _idStart = _pos;
+                    final int idEscapes = skipStringBody();
+                    if (idEscapes < 0)
+                    {
+                        return false;
+                    }
+                    _idEnd = _pos - 1;
+                    _idEscaped = idEscapes > 0;
+                    break;
+                case TYPE:
+                    if (c != '"')
+                    {
+                        return false;
+                    }
+                    _pos++;
+                    final int typeStart = _pos;
+                    final int typeEscapes = skipStringBody();
+                    if (typeEscapes < 0)
+                    {
+                        return false;
+                    }
+                    _type = typeEscapes > 0 ? unescape(typeStart, _pos - 1) : type(typeStart, _pos - 1);
+                    break;
+                case VALUE:
+                    if (c == '"')
+                    {
+                        _pos++;
+                        _valueStart = _pos;
+                        final int valueEscapes = skipStringBody();
+                        if (valueEscapes < 0)
+                        {
+                            return false;
+                        }
+                        _valueEnd = _pos - 1;
+                        _valueEscaped = valueEscapes > 0;
+                        _valueKind = ValueKind.STRING;
+                    }
+                    else if (parseNumber())
+                    {
+                        _value = _number;
+                        _valueKind = ValueKind.NUMBER;
+                    }
+                    else if (skipValue())
+                    {
+                        _valueKind = ValueKind.OTHER;
+                    }
+                    else
+                    {
+                        return false;
+                    }
+                    break;
+                case WRITEABLE:
+                case RECORDABLE:
+                case MIN_VALUE:
+                case MAX_VALUE:
+                    if (!parseNumber())
+                    {
+                        if (!skipValue())
+                        {
+                            return false;
+                        }
+                        break;
+                    }
+                    if (field == Field.WRITEABLE)
+                    {
+                        _writeable = (int) _number;
+                    }
+                    else if (field == Field.RECORDABLE)
+                    {
+                        _recordable = (int) _number;
+                    }
+                    else if (field == Field.MIN_VALUE)
+                    {
+                        _minValue = _number;
+                        hasMin = true;
+                    }
+                    else
+                    {
+                        _maxValue = _number;
+                        hasMax = true;
+                    }
+                    break;
+                case STATE:
+                    if (c == '[' ? !parseStates() : !skipValue())
+                    {
+                        return false;
+                    }
+                    break;
+                default:
+                    if (!skipValue())
+                    {
+                        return false;
+                    }
+                    break;
+            }
+            skipWhitespace();
+            if (consume(','))
+            {
+                continue;
+            }
+            if (consume('}'))
+            {
+                _hasRange = hasMin && hasMax;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return the service id, or null if the message has none
+     */
+    public String getId()
+    {
+        if (_idStart < 0)
+        {
+            return null;
+        }
+        return _idEscaped ? unescape(_idStart, _idEnd) : new String(_data, _idStart, _idEnd - _idStart, _charset);
+    }
+
+    /**
+     * @return the service type, or null if the message has none. Known types are returned as constants.
+     */
+    public String getType()
+    {
+        return _type;
+    }
+
+    /**
+     * @return whether all information of this type is in the extracted fields, so no full parse is needed
+     */
+    public boolean isSimpleType()
+    {
+        return "floatValue".equals(_type) || "stringValue".equals(_type);
+    }
+
+    public boolean hasNumericValue()
+    {
+        return _valueKind == ValueKind.NUMBER;
+    }
+
+    /**
+     * @return the numeric value; only valid when {@link #hasNumericValue()}
+     */
+    public double getNumericValue()
+    {
+        return _value;
+    }
+
+    public boolean hasStringValue()
+    {
+        return _valueKind == ValueKind.STRING;
+    }
+
+    /**
+     * @return the string value, or null if the value is not a string
+     */
+    public String getStringValue()
+    {
+        if (_valueKind != ValueKind.STRING)
+        {
+            return null;
+        }
+        return _valueEscaped ? unescape(_valueStart, _valueEnd) : new String(_data, _valueStart, _valueEnd - _valueStart, _charset);
+    }
+
+    public int getWriteable()
+    {
+        return _writeable;
+    }
+
+    public int getRecordable()
+    {
+        return _recordable;
+    }
+
+    /**
+     * @return whether the message contains both minValue and maxValue
+     */
+    public boolean hasRange()
+    {
+        return _hasRange;
+    }
+
+    public double getMinValue()
+    {
+        return _minValue;
+    }
+
+    public double getMaxValue()
+    {
+        return _maxValue;
+    }
+
+    /**
+     * The states of a float value are special values which signal a sensor problem, e.g. {"open":-3276.8}.
+     *
+     * @return the name of the state the numeric value stands for, or null when it is a regular value
+     */
+    public String getValueState()
+    {
+        if (_valueKind != ValueKind.NUMBER)
+        {
+            return null;
+        }
+        for (int i = 0; i < _stateCount; i++)
+        {
+            if (Double.compare(_stateValues[i], _value) == 0)
+            {
+                return new String(_data, _stateNameStarts[i], _stateNameEnds[i] - _stateNameStarts[i], _charset);
+            }
+        }
+        return null;
+    }
+
+    private Field field(final int start, final int end)
+    {
+        switch (end - start)
+        {
+            case 2:
+                return matches(start, end, "id") ? Field.ID : Field.OTHER;
+            case 4:
+                return matches(start, end, "type") ? Field.TYPE : Field.OTHER;
+            case 5:
+                if (matches(start, end, "value"))
+                {
+                    return Field.VALUE;
+                }
+                return matches(start, end, "state") ? Field.STATE : Field.OTHER;
+            case 8:
+                if (matches(start, end, "minValue"))
+                {
+                    return Field.MIN_VALUE;
+                }
+                return matches(start, end, "maxValue") ? Field.MAX_VALUE : Field.OTHER;
+            case 9:
+                return matches(start, end, "writeable") ? Field.WRITEABLE : Field.OTHER;
+            case 10:
+                return matches(start, end, "recordable") ? Field.RECORDABLE : Field.OTHER;
+            default:
+                return Field.OTHER;
+        }
+    }
+
+    private boolean matches(final int start, final int end, final String name)
+    {
+        for (int i = start; i < end; i++)
+        {
+            if (_data[i] != name.charAt(i - start))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String type(final int start, final int end)
+    {
+        for (String known : KNOWN_TYPES)
+        {
+            if (known.length() == end - start && matches(start, end, known))
+            {
+                return known;
+            }
+        }
+        return new String(_data, start, end - start, _charset);
+    }
+
+    /**
+     * Parses an array of single-entry objects, e.g. [{"open":-3276.8},{"short":3276.7}]. Other entries are skipped.
+     */
+    private boolean parseStates()
+    {
+        _pos++;
+        while (true)
+        {
+            skipWhitespace();
+            if (consume(']'))
+            {
+                return true;
+            }
+            if (!parseState() && !skipValue())
+            {
+                return false;
+            }
+            skipWhitespace();
+            if (!consume(',') && (_pos >= _end || _data[_pos] != ']'))
+            {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return false (with the position unchanged) if there is no single-entry object with a number at the current position
+     */
+    private boolean parseState()
+    {
+        final int start = _pos;
+        if (_stateCount < MAX_STATES && consume('{'))
+        {
+            skipWhitespace();
+            final int nameStart = _pos + 1;
+            if (consume('"') && skipStringBody() == 0)
+            {
+                final int nameEnd = _pos - 1;
+                skipWhitespace();
+                if (consume(':'))
+                {
+                    skipWhitespace();
+                    if (parseNumber())
+                    {
+                        skipWhitespace();
+                        if (consume('}'))
+                        {
+                            _stateNameStarts[_stateCount] = nameStart;
+                            _stateNameEnds[_stateCount] = nameEnd;
+                            _stateValues[_stateCount] = _number;
+                            _stateCount++;
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+        _pos = start;
+        return false;
+    }
+
+    /**
+     * Parses a JSON number at the current position into {@link #_number}. Short decimal numbers, as sent by the
+     * device, are parsed exactly without allocating; others are handed to {@link Double#parseDouble(String)}.
+     *
+     * @return false (with the position unchanged) if there is no number at the current position
+     */
+    private boolean parseNumber()
+    {
+        final int start = _pos;
+        int pos = _pos;
+        boolean negative = false;
+        if (pos < _end && _data[pos] == '-')
+        {
+            negative = true;
+            pos++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean exact = true;
+        while (pos < _end && _data[pos] >= '0' && _data[pos] <= '9')
+        {
+            mantissa = mantissa * 10 + (_data[pos++] - '0');
+            digits++;
+        }
+        if (0 == digits)
+        {
+            return false;
+        }
+        if (pos < _end && _data[pos] == '.')
+        {
+            pos++;
+            final int fractionStart = pos;
+            while (pos < _end && _data[pos] >= '0' && _data[pos] <= '9')
+            {
+                mantissa = mantissa * 10 + (_data[pos++] - '0');
+                digits++;
+            }
+            scale = pos - fractionStart;
+            if (0 == scale)
+            {
+                return false;
+            }
+        }
+        if (pos < _end && (_data[pos] == 'e' || _data[pos] == 'E'))
+        {
+            exact = false;
+            pos++;
+            if (pos < _end && (_data[pos] == '+' || _data[pos] == '-'))
+            {
+                pos++;
+            }
+            final int exponentStart = pos;
+            while (pos < _end && _data[pos] >= '0' && _data[pos] <= '9')
+            {
+                pos++;
+            }
+            if (pos == exponentStart)
+            {
+                return false;
+            }
+        }
+        if (exact && digits <= 15 && scale < POWERS_OF_TEN.length)
+        {
+            // both mantissa and power of ten are exact doubles, so the division is correctly rounded
+            final double value = mantissa / POWERS_OF_TEN[scale];
+            _number = negative ? -value : value;
+        }
+        else
+        {
+            _number = Double.parseDouble(new String(_data, start, pos - start, StandardCharsets.US_ASCII));
+        }
+        _pos = pos;
+        return true;
+    }
+
+    /**
+     * Skips the rest of a string, after the opening quote.
+     *
+     * @return the number of escapes in the string, or -1 if the string is not terminated or contains an invalid
+     * escape (so that the message is left to the full JSON parser)
+     */
+    private int skipStringBody()
+    {
+        final byte[] data = _data;
+        int pos = _pos;
+        int escapes = 0;
+        while (pos < _end)
+        {
+            final byte c = data[pos++];
+            if (c == '"')
+            {
+                _pos = pos;
+                return escapes;
+            }
+            if (c == '\\')
+            {
+                if (pos >= _end)
+                {
+                    break;
+                }
+                final byte escaped = data[pos++];
+                if (escaped == 'u')
+                {
+                    if (pos + 4 > _end || hexValue(data, pos) < 0)
+                    {
+                        break;
+                    }
+                    pos += 4;
+                }
+                else if (ESCAPES.indexOf(escaped) < 0)
+                {
+                    break;
+                }
+                escapes++;
+            }
+        }
+        _pos = pos;
+        return -1;
+    }
+
+    /**
+     * @return the value of the four hex digits at the position, or -1 if they are no hex digits
+     */
+    private static int hexValue(final byte[] data, final int pos)
+    {
+        int value = 0;
+        for (int i = pos; i < pos + 4; i++)
+        {
+            final int digit = Character.digit(data[i], 16);
+            if (digit < 0)
+            {
+                return -1;
+            }
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+
+    /**
+     * Skips any JSON value at the current position.
+     */
+    private boolean skipValue()
+    {
+        if (_pos >= _end)
+        {
+            return false;
+        }
+        final byte c = _data[_pos];
+        if (c == '"')
+        {
+            _pos++;
+            return skipStringBody() >= 0;
+        }
+        if (c == '{' || c == '[')
+        {
+            int depth = 0;
+            while (_pos < _end)
+            {
+                final byte b = _data[_pos++];
+                if (b == '"')
+                {
+                    if (skipStringBody() < 0)
+                    {
+                        return false;
+                    }
+                }
+                else if (b == '{' || b == '[')
+                {
+                    depth++;
+                }
+                else if (b == '}' || b == ']')
+                {
+                    if (--depth == 0)
+                    {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+        if (parseNumber())
+        {
+            return true;
+        }
+        // true, false or null
+        final int start = _pos;
+        while (_pos < _end && _data[_pos] >= 'a' && _data[_pos] <= 'z')
+        {
+            _pos++;
+        }
+        return _pos > start;
+    }
+
+    private void skipWhitespace()
+    {
+        final byte[] data = _data;
+        int pos = _pos;
+        while (pos < _end && (data[pos] == ' ' || data[pos] == '\n' || data[pos] == '\r' || data[pos] == '\t'))
+        {
+            pos++;
+        }
+        _pos = pos;
+    }
+
+    private boolean consume(final char c)
+    {
+        if (_pos < _end && _data[_pos] == c)
+        {
+            _pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private String unescape(final int start, final int end)
+    {
+        final String raw = new String(_data, start, end - start, _charset);
+        final StringBuilder result = new StringBuilder(raw.length());
+        for (int i = 0; i < raw.length(); i++)
+        {
+            char c = raw.charAt(i);
+            if (c != '\\' || i + 1 >= raw.length())
+            {
+                result.append(c);
+                continue;
+            }
+            c = raw.charAt(++i);
+            switch (c)
+            {
+                case 'b':
+                    result.append('\b');
+                    break;
+                case 'f':
+                    result.append('\f');
+                    break;
+                case 'n':
+                    result.append('\n');
+                    break;
+                case 'r':
+                    result.append('\r');
+                    break;
+                case 't':
+                    result.append('\t');
+                    break;
+                case 'u':
+                    final int code = i + 4 < raw.length() ? hexValue(raw.substring(i + 1, i + 5).getBytes(StandardCharsets.US_ASCII), 0) : -1;
+                    if (code < 0)
+                    {
+                        // not reached for parsed messages, skipStringBody() rejects such escapes
+                        result.append("\\u");
+                        break;
+                    }
+                    result.append((char) code);
+                    i += 4;
+                    break;
+                default:
+                    result.append(c);
+                    break;
+            }
+        }
+        return result.toString();
+    }
+}
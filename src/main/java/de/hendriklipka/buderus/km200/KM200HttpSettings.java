@@ -0,0 +1,132 @@
+package de.hendriklipka.buderus.km200;
+
+/**
+ * Settings for the HTTP connection(s) to the KM200 device.
+ */
+public class KM200HttpSettings
+{
+    private int _maxConnections = 1;
+    private int _keepAliveSeconds = 60;
+    private int _connectTimeoutSeconds = 30;
+    private int _socketTimeoutSeconds = 30;
+    private int _retries = 3;
+    private int _retryIntervalSeconds = 10;
+    private boolean _adaptiveLimit = true;
+    private int _initialConcurrency = 1;
+    private double _latencyTolerance = 3.0;
+    private int _maxRequestsPerSecond = 0;
+
+    public int getMaxConnections()
+    {
+        return _maxConnections;
+    }
+
+    public void setMaxConnections(final int maxConnections)
+    {
+        _maxConnections = maxConnections;
+    }
+
+    public int getKeepAliveSeconds()
+    {
+        return _keepAliveSeconds;
+    }
+
+    public void setKeepAliveSeconds(final int keepAliveSeconds)
+    {
+        _keepAliveSeconds = keepAliveSeconds;
+    }
+
+    public int getConnectTimeoutSeconds()
+    {
+        return _connectTimeoutSeconds;
+    }
+
+    public void setConnectTimeoutSeconds(final int connectTimeoutSeconds)
+    {
+        _connectTimeoutSeconds = connectTimeoutSeconds;
+    }
+
+    public int getSocketTimeoutSeconds()
+    {
+        return _socketTimeoutSeconds;
+    }
+
+    public void setSocketTimeoutSeconds(final int socketTimeoutSeconds)
+    {
+        _socketTimeoutSeconds = socketTimeoutSeconds;
+    }
+
+    public int getRetries()
+    {
+        return _retries;
+    }
+
+    public void setRetries(final int retries)
+    {
+        _retries = retries;
+    }
+
+    public int getRetryIntervalSeconds()
+    {
+        return _retryIntervalSeconds;
+    }
+
+    public void setRetryIntervalSeconds(final int retryIntervalSeconds)
+    {
+        _retryIntervalSeconds = retryIntervalSeconds;
+    }
+
+    /**
+     * @return whether the number of concurrent requests adapts to the health of the device; otherwise, it is fixed
+     * to the number of connections
+     */
+    public boolean isAdaptiveLimit()
+    {
+        return _adaptiveLimit;
+    }
+
+    public void setAdaptiveLimit(final boolean adaptiveLimit)
+    {
+        _adaptiveLimit = adaptiveLimit;
+    }
+
+    /**
+     * @return the number of concurrent requests to start with, when adapting
+     */
+    public int getInitialConcurrency()
+    {
+        return _initialConcurrency;
+    }
+
+    public void setInitialConcurrency(final int initialConcurrency)
+    {
+        _initialConcurrency = initialConcurrency;
+    }
+
+    /**
+     * @return how many times slower than the best recent request a request may be before the device counts as
+     * overloaded
+     */
+    public double getLatencyTolerance()
+    {
+        return _latencyTolerance;
+    }
+
+    public void setLatencyTolerance(final double latencyTolerance)
+    {
+        _latencyTolerance = latencyTolerance;
+    }
+
+    /**
+     * @return the maximum number of requests started per second, 0 for no limit
+     */
+    public int getMaxRequestsPerSecond()
+    {
+        return _maxRequestsPerSecond;
+    }
+
+    public void setMaxRequestsPerSecond(final int maxRequestsPerSecond)
+    {
+        _maxRequestsPerSecond = maxRequestsPerSecond;
+    }
+}
@@ -0,0 +1,251 @@
+package de.hendriklipka.buderus.km200;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the requests to the KM200, so the device is not overloaded. Every request (discovery, polling, and later
+ * writes) has to acquire a permit first.
+ * <p>
+ * The number of concurrent requests adapts with AIMD: each healthy request which ends while the limit is used up raises
+ * the limit by 1/limit (so about one per round of requests), up to the size of the connection pool. Requests ending
+ * below the limit do not raise it, since they show nothing about more concurrency; otherwise a sequential poller
+ * would drive the limit up, and the first burst after a quiet time would hit the device with all connections. A timeout, a 5xx answer, or a request taking much
+ * longer than the best latency seen recently halves the limit, down to one. Requests which were started before the
+ * last decrease do not decrease it again, so a single overload is only counted once. Optionally, the request rate is
+ * capped as well.
+ * <p>
+ * Writes are acquired with priority: while one of them waits, no other request gets a permit, so a command is sent
+ * as soon as a request ends instead of queueing behind the polling.
+ */
+public class KM200Limiter
+{
+    private static final Logger logger = LoggerFactory.getLogger(KM200Limiter.class);
+
+    /* the baseline latency is the minimum over the current and the last window of this many requests */
+    private static final int BASELINE_WINDOW = 100;
+    /* slower requests only count as a spike when they are at least this much slower than the baseline */
+    private static final long MIN_SPIKE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    /**
+     * How a request ended, as far as the load of the device is concerned.
+     */
+    public enum Outcome
+    {
+        /** answered; its latency decides whether the device is healthy */
+        SUCCESS,
+        /** timed out, or answered with a server error */
+        OVERLOAD,
+        /** failed for other reasons, does not change the limit */
+        IGNORE
+    }
+
+    private final boolean _adaptive;
+    private final int _maxLimit;
+    private final double _latencyTolerance;
+    private final long _minIntervalNanos;
+
+    private double _limit;
+    private int _inFlight = 0;
+    private int _waitingPriority = 0;
+    private long _nextStart = 0;
+    private long _lastDecrease = Long.MIN_VALUE;
+
+    private long _baselineNanos = Long.MAX_VALUE;
+    private long _windowMinNanos = Long.MAX_VALUE;
+    private int _windowCount = 0;
+
+    private final LongAdder _decreases = new LongAdder();
+    private final LongAdder _waits = new LongAdder();
+
+    public KM200Limiter(final KM200HttpSettings settings)
+    {
+        _adaptive = settings.isAdaptiveLimit();
+        _maxLimit = Math.max(1, settings.getMaxConnections());
+        _latencyTolerance = Math.max(1.0, settings.getLatencyTolerance());
+        _minIntervalNanos = settings.getMaxRequestsPerSecond() > 0 ? TimeUnit.SECONDS.toNanos(1) / settings.getMaxRequestsPerSecond() : 0;
+        _limit = _adaptive ? Math.min(_maxLimit, Math.max(1, settings.getInitialConcurrency())) : _maxLimit;
+    }
+
+    /**
+     * Waits until another request may be sent to the device.
+     *
+     * @return the start time of the request, to be passed to {@link #release(long, Outcome)}
+     */
+    public long acquire() throws InterruptedException
+    {
+        return acquire(false);
+    }
+
+    /**
+     * Waits until another request may be sent to the device.
+     *
+     * @param priority whether the request goes before all requests without priority
+     * @return the start time of the request, to be passed to {@link #release(long, Outcome)}
+     */
+    public synchronized long acquire(final boolean priority) throws InterruptedException
+    {
+        if (priority)
+        {
+            _waitingPriority++;
+            try
+            {
+                waitForPermit(true);
+            }
+            finally
+            {
+                _waitingPriority--;
+                // requests without priority may have been held back only by this one
+                notifyAll();
+            }
+        }
+        else
+        {
+            waitForPermit(false);
+        }
+        _inFlight++;
+        if (_minIntervalNanos > 0)
+        {
+            long now = System.nanoTime();
+            final long start = Math.max(now, _nextStart);
+            _nextStart = start + _minIntervalNanos;
+            // the start time is reserved, so other requests can go on meanwhile
+            try
+            {
+                while (start > now)
+                {
+                    TimeUnit.NANOSECONDS.timedWait(this, start - now);
+                    now = System.nanoTime();
+                }
+            }
+            catch (InterruptedException e)
+            {
+                // the caller gets no permit, so it will not release it
+                _inFlight--;
+                notifyAll();
+                throw e;
+            }
+        }
+        return System.nanoTime();
+    }
+
+    private void waitForPermit(final boolean priority) throws InterruptedException
+    {
+        if (isBlocked(priority))
+        {
+            _waits.increment();
+            while (isBlocked(priority))
+            {
+                wait();
+            }
+        }
+    }
+
+    private boolean isBlocked(final boolean priority)
+    {
+        return _inFlight >= (int) _limit || (!priority && _waitingPriority > 0);
+    }
+
+    /**
+     * Returns the permit, and adapts the limit to the outcome of the request.
+     */
+    public synchronized void release(final long start, final Outcome outcome)
+    {
+        _inFlight--;
+        if (_adaptive)
+        {
+            final long latency = System.nanoTime() - start;
+            switch (outcome)
+            {
+                case SUCCESS:
+                    if (isSpike(latency))
+                    {
+                        decrease(start, "latency " + TimeUnit.NANOSECONDS.toMillis(latency) + " ms");
+                    }
+                    else if ((int) _limit < _maxLimit && _inFlight + 1 >= (int) _limit)
+                    {
+                        _limit = Math.min(_maxLimit, _limit + 1.0 / _limit);
+                    }
+                    updateBaseline(latency);
+                    break;
+                case OVERLOAD:
+                    decrease(start, "timeout or server error");
+                    break;
+                default:
+                    break;
+            }
+        }
+        notifyAll();
+    }
+
+    private boolean isSpike(final long latency)
+    {
+        return _baselineNanos != Long.MAX_VALUE && latency > _baselineNanos * _latencyTolerance && latency - _baselineNanos > MIN_SPIKE_NANOS;
+    }
+
+    private void decrease(final long start, final String reason)
+    {
+        if (start < _lastDecrease)
+        {
+            return;
+        }
+        _lastDecrease = System.nanoTime();
+        _decreases.increment();
+        final double old = _limit;
+        _limit = Math.max(1, _limit / 2);
+        logger.debug("KM200 overloaded ({}), reducing concurrency from {} to {}.", reason, (int) old, (int) _limit);
+    }
+
+    private void updateBaseline(final long latency)
+    {
+        _windowMinNanos = Math.min(_windowMinNanos, latency);
+        _baselineNanos = Math.min(_baselineNanos, latency);
+        if (++_windowCount >= BASELINE_WINDOW)
+        {
+            // forget older minimums, so the baseline follows slow changes of the device or network
+            _baselineNanos = _windowMinNanos;
+            _windowMinNanos = Long.MAX_VALUE;
+            _windowCount = 0;
+        }
+    }
+
+    /**
+     * @return the current number of requests allowed at the same time
+     */
+    public synchronized int getLimit()
+    {
+        return (int) _limit;
+    }
+
+    public synchronized int getInFlight()
+    {
+        return _inFlight;
+    }
+
+    /**
+     * @return the lowest recent latency in microseconds, -1 before the first request
+     */
+    public synchronized long getBaselineMicros()
+    {
+        return _baselineNanos == Long.MAX_VALUE ? -1 : TimeUnit.NANOSECONDS.toMicros(_baselineNanos);
+    }
+
+    /**
+     * @return how often the limit was reduced
+     */
+    public long getDecreaseCount()
+    {
+        return _decreases.sum();
+    }
+
+    /**
+     * @return how often a request had to wait for a permit
+     */
+    public long getWaitCount()
+    {
+        return _waits.sum();
+    }
+}
@@ -0,0 +1,256 @@
+package de.hendriklipka.buderus.km200;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A reusable buffer for a single message from the KM200. It holds the raw (Base64 encoded, encrypted) response
+ * and, after {@link KM200Decoder#decode(KM200Message, Charset)}, the decoded JSON bytes.
+ * <p>
+ * Instances are not thread-safe, and are meant to be re-used for many messages, so that decoding a message does not
+ * allocate once the buffers have grown to the message size. Use {@link KM200Comm#fetchMessage(KM200Device, String)}
+ * to get the message for the current thread.
+ */
+public class KM200Message
+{
+    private static final int INITIAL_SIZE = 1024;
+
+    private byte[] _raw = new byte[INITIAL_SIZE];
+    private int _rawLength;
+    private byte[] _data = new byte[INITIAL_SIZE];
+    private int _length;
+    private Charset _charset = StandardCharsets.UTF_8;
+    private long _fetchNanos;
+    private long _decodeNanos;
+
+    private CharsetDecoder _charDecoder;
+    private CharBuffer _chars;
+    private final CharsReader _reader = new CharsReader();
+    private final KM200Fields _fields = new KM200Fields();
+    private boolean _fieldsParsed;
+    private boolean _fieldsValid;
+
+    /**
+     * Reads the raw message, replacing the current content.
+     */
+    void readFrom(final InputStream in) throws IOException
+    {
+        _rawLength = 0;
+        _length = 0;
+        _fieldsParsed = false;
+        int read;
+        while (true)
+        {
+            if (_rawLength == _raw.length)
+            {
+                _raw = Arrays.copyOf(_raw, _raw.length * 2);
+            }
+            read = in.read(_raw, _rawLength, _raw.length - _rawLength);
+            if (read < 0)
+            {
+                break;
+            }
+            _rawLength += read;
+        }
+    }
+
+    /**
+     * Sets the raw message, replacing the current content.
+     */
+    void setRaw(final byte[] raw)
+    {
+        if (raw.length > _raw.length)
+        {
+            _raw = new byte[raw.length];
+        }
+        System.arraycopy(raw, 0, _raw, 0, raw.length);
+        _rawLength = raw.length;
+        _length = 0;
+        _fieldsParsed = false;
+    }
+
+    byte[] getRaw()
+    {
+        return _raw;
+    }
+
+    int getRawLength()
+    {
+        return _rawLength;
+    }
+
+    /**
+     * @return a buffer for the decoded message with at least the given capacity; its previous content is lost
+     */
+    byte[] dataBuffer(final int capacity)
+    {
+        if (capacity > _data.length)
+        {
+            _data = new byte[Math.max(capacity, _data.length * 2)];
+        }
+        return _data;
+    }
+
+    void setDecoded(final byte[] data, final int length, final Charset charset)
+    {
+        _data = data;
+        _length = length;
+        _charset = charset;
+        _fieldsParsed = false;
+    }
+
+    /**
+     * @return the decoded message; only the first {@link #getLength()} bytes are valid
+     */
+    public byte[] getData()
+    {
+        return _data;
+    }
+
+    public int getLength()
+    {
+        return _length;
+    }
+
+    public Charset getCharset()
+    {
+        return _charset;
+    }
+
+    void setTimings(final long fetchNanos, final long decodeNanos)
+    {
+        _fetchNanos = fetchNanos;
+        _decodeNanos = decodeNanos;
+    }
+
+    /**
+     * @return how long retrieving the raw message from the device took
+     */
+    public long getFetchNanos()
+    {
+        return _fetchNanos;
+    }
+
+    /**
+     * @return how long decrypting and decoding the raw message took
+     */
+    public long getDecodeNanos()
+    {
+        return _decodeNanos;
+    }
+
+    /**
+     * @return the fields of the decoded message, extracted without a full JSON parse, or null if the message is
+     * not a JSON object. The fields are re-used, and only valid until the next message.
+     */
+    public KM200Fields fields()
+    {
+        if (!_fieldsParsed)
+        {
+            _fieldsValid = _fields.parse(_data, _length, _charset);
+            _fieldsParsed = true;
+        }
+        return _fieldsValid ? _fields : null;
+    }
+
+    /**
+     * @return a reader over the decoded message. The reader is re-used, and only valid until the next call.
+     */
+    public Reader reader()
+    {
+        if (null == _charDecoder || !_charDecoder.charset().equals(_charset))
+        {
+            _charDecoder = _charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        final int maxChars = (int) Math.ceil(_length * (double) _charDecoder.maxCharsPerByte());
+        if (null == _chars || _chars.capacity() < maxChars)
+        {
+            _chars = CharBuffer.allocate(Math.max(maxChars, INITIAL_SIZE));
+        }
+        _chars.clear();
+        _charDecoder.reset();
+        _charDecoder.decode(ByteBuffer.wrap(_data, 0, _length), _chars, true);
+        _charDecoder.flush(_chars);
+        _chars.flip();
+        _reader.reset(_chars.array(), _chars.limit());
+        return _reader;
+    }
+
+    @Override
+    public String toString()
+    {
+        return new String(_data, 0, _length, _charset);
+    }
+
+    /**
+     * A resettable reader over a char array. It supports marks, so parsers can use it without wrapping it into a
+     * buffered reader.
+     */
+    private static class CharsReader extends Reader
+    {
+        private char[] _buffer;
+        private int _limit;
+        private int _pos;
+        private int _mark;
+
+        void reset(final char[] buffer, final int limit)
+        {
+            _buffer = buffer;
+            _limit = limit;
+            _pos = 0;
+            _mark = 0;
+        }
+
+        @Override
+        public int read()
+        {
+            return _pos < _limit ? _buffer[_pos++] : -1;
+        }
+
+        @Override
+        public int read(final char[] cbuf, final int off, final int len)
+        {
+            if (_pos >= _limit)
+            {
+                return -1;
+            }
+            final int count = Math.min(len, _limit - _pos);
+            System.arraycopy(_buffer, _pos, cbuf, off, count);
+            _pos += count;
+            return count;
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            return true;
+        }
+
+        @Override
+        public void mark(final int readAheadLimit)
+        {
+            _mark = _pos;
+        }
+
+        @Override
+        public void reset()
+        {
+            _pos = _mark;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+}
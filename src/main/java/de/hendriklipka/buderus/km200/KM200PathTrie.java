@@ -0,0 +1,318 @@
+package de.hendriklipka.buderus.km200;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Maps service paths like '/system/sensors/temperatures/outdoor_t1' to values, one node per path segment. Besides
+ * exact lookups, the trie finds the entries below a path, the first entry on the way to a path (for prefix
+ * blacklists), and the entries matching a pattern:
+ * <ul>
+ * <li>'*' matches exactly one segment, '*' within a segment (e.g. 'hc*') any part of it</li>
+ * <li>'**' matches any number of segments, including none</li>
+ * </ul>
+ * Children are kept sorted, so all results are in path order. Not thread-safe; build it completely before sharing it.
+ * <p>
+ * A node keeps its children in two sorted arrays (no map, and nothing at all for leaves), and the segments are
+ * interned, since the same names (e.g. 'temperatureLevels') appear below each heating circuit.
+ */
+public class KM200PathTrie<V>
+{
+    public static final String WILDCARD = "*";
+    public static final String ANY_DEPTH = "**";
+
+    private static final class Node<V>
+    {
+        private static final String[] NO_SEGMENTS = new String[0];
+
+        /* the segments of the children in sorted order, and the children in the same order */
+        private String[] _segments = NO_SEGMENTS;
+        private Node<V>[] _children;
+        private V _value;
+
+        Node<V> child(final String segment)
+        {
+            final int index = Arrays.binarySearch(_segments, segment);
+            return index < 0 ? null : _children[index];
+        }
+
+        @SuppressWarnings("unchecked")
+        Node<V> addChild(final String segment)
+        {
+            int index = Arrays.binarySearch(_segments, segment);
+            if (index >= 0)
+            {
+                return _children[index];
+            }
+            index = -index - 1;
+            final String[] segments = new String[_segments.length + 1];
+            final Node<V>[] children = (Node<V>[]) new Node<?>[segments.length];
+            System.arraycopy(_segments, 0, segments, 0, index);
+            System.arraycopy(_segments, index, segments, index + 1, _segments.length - index);
+            if (null != _children)
+            {
+                System.arraycopy(_children, 0, children, 0, index);
+                System.arraycopy(_children, index, children, index + 1, _children.length - index);
+            }
+            segments[index] = segment.intern();
+            children[index] = new Node<>();
+            _segments = segments;
+            _children = children;
+            return children[index];
+        }
+    }
+
+    private final Node<V> _root = new Node<>();
+    private int _size = 0;
+
+    /**
+     * @return a trie with the entries of the map
+     */
+    public static <V> KM200PathTrie<V> of(final Map<String, V> map)
+    {
+        final KM200PathTrie<V> trie = new KM200PathTrie<>();
+        for (Map.Entry<String, V> entry : map.entrySet())
+        {
+            trie.put(entry.getKey(), entry.getValue());
+        }
+        return trie;
+    }
+
+    public void put(final String path, final V value)
+    {
+        Node<V> node = _root;
+        for (String segment : segments(path))
+        {
+            node = node.addChild(segment);
+        }
+        if (null == node._value)
+        {
+            _size++;
+        }
+        node._value = value;
+    }
+
+    public V get(final String path)
+    {
+        final Node<V> node = find(path);
+        return null == node ? null : node._value;
+    }
+
+    public int size()
+    {
+        return _size;
+    }
+
+    /**
+     * Walks from the root towards the path, where a '*' segment of the trie matches any segment of the path.
+     *
+     * @return the value of the first node on the way which has one (the path itself included), null if there is none
+     */
+    public V findPrefix(final String path)
+    {
+        return findPrefix(_root, segments(path), 0);
+    }
+
+    private V findPrefix(final Node<V> node, final List<String> segments, final int depth)
+    {
+        if (null != node._value)
+        {
+            return node._value;
+        }
+        if (depth == segments.size())
+        {
+            return null;
+        }
+        final Node<V> exact = node.child(segments.get(depth));
+        final V found = null == exact ? null : findPrefix(exact, segments, depth + 1);
+        if (null != found)
+        {
+            return found;
+        }
+        final Node<V> any = node.child(WILDCARD);
+        return null == any ? null : findPrefix(any, segments, depth + 1);
+    }
+
+    /**
+     * Passes the entry of the path and all entries below it to the consumer.
+     */
+    public void subtree(final String path, final BiConsumer<String, V> consumer)
+    {
+        final Node<V> node = find(path);
+        if (null != node)
+        {
+            final List<String> segments = segments(path);
+            collect(node, segments.isEmpty() ? "" : "/" + String.join("/", segments), consumer);
+        }
+    }
+
+    /**
+     * Passes the entries matching the pattern to the consumer, in path order and each once. Only the branches which
+     * can match are visited.
+     */
+    public void match(final String pattern, final BiConsumer<String, V> consumer)
+    {
+        final List<String> segments = segments(pattern);
+        final BitSet positions = new BitSet();
+        positions.set(0);
+        match(_root, "", segments, closure(segments, positions), consumer);
+    }
+
+    /**
+     * @return the paths matching the pattern, in path order
+     */
+    public List<String> match(final String pattern)
+    {
+        final List<String> paths = new ArrayList<>();
+        match(pattern, (path, value) -> paths.add(path));
+        return paths;
+    }
+
+    /**
+     * Walks the trie once, in path order, with the positions in the pattern each node can be at. Several positions
+     * come up with '**' (e.g. '/**&#47;b/**' at '/b/b'), and since a node is visited once no matter how many of them
+     * match it, no path is reported twice.
+     */
+    private void match(final Node<V> node, final String path, final List<String> pattern, final BitSet positions,
+                       final BiConsumer<String, V> consumer)
+    {
+        final int last = pattern.size() - 1;
+        if (last >= 0 && positions.get(last) && ANY_DEPTH.equals(pattern.get(last)))
+        {
+            // a trailing '**' matches the whole subtree
+            collect(node, path, consumer);
+            return;
+        }
+        if (positions.get(pattern.size()) && null != node._value)
+        {
+            consumer.accept(path, node._value);
+        }
+        final int single = positions.nextSetBit(0);
+        if (single < pattern.size() && positions.nextSetBit(single + 1) < 0 && !pattern.get(single).contains(WILDCARD))
+        {
+            // just one plain segment to look for
+            final Node<V> child = node.child(pattern.get(single));
+            if (null != child)
+            {
+                final BitSet next = new BitSet();
+                next.set(single + 1);
+                match(child, path + "/" + pattern.get(single), pattern, closure(pattern, next), consumer);
+            }
+            return;
+        }
+        for (int i = 0; i < node._segments.length; i++)
+        {
+            final BitSet next = new BitSet();
+            for (int p = positions.nextSetBit(0); p >= 0 && p < pattern.size(); p = positions.nextSetBit(p + 1))
+            {
+                final String segment = pattern.get(p);
+                if (ANY_DEPTH.equals(segment))
+                {
+                    // '**' takes this segment and maybe more below
+                    next.set(p);
+                }
+                else if (WILDCARD.equals(segment) || globMatches(segment, node._segments[i]))
+                {
+                    next.set(p + 1);
+                }
+            }
+            if (!next.isEmpty())
+            {
+                match(node._children[i], path + "/" + node._segments[i], pattern, closure(pattern, next), consumer);
+            }
+        }
+    }
+
+    /**
+     * Adds the positions after each '**', since it also matches no segment at all.
+     */
+    private static BitSet closure(final List<String> pattern, final BitSet positions)
+    {
+        for (int p = positions.nextSetBit(0); p >= 0 && p < pattern.size(); p = positions.nextSetBit(p + 1))
+        {
+            if (ANY_DEPTH.equals(pattern.get(p)))
+            {
+                positions.set(p + 1);
+            }
+        }
+        return positions;
+    }
+
+    private void collect(final Node<V> node, final String path, final BiConsumer<String, V> consumer)
+    {
+        if (null != node._value)
+        {
+            consumer.accept(path, node._value);
+        }
+        for (int i = 0; i < node._segments.length; i++)
+        {
+            collect(node._children[i], path + "/" + node._segments[i], consumer);
+        }
+    }
+
+    private Node<V> find(final String path)
+    {
+        Node<V> node = _root;
+        for (String segment : segments(path))
+        {
+            node = node.child(segment);
+            if (null == node)
+            {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * @return whether the text matches the glob, where '*' matches any (possibly empty) part of the text
+     */
+    static boolean globMatches(final String glob, final String text)
+    {
+        final int star = glob.indexOf('*');
+        if (star < 0)
+        {
+            return glob.equals(text);
+        }
+        if (!text.startsWith(glob.substring(0, star)))
+        {
+            return false;
+        }
+        final String rest = glob.substring(star + 1);
+        for (int start = star; start <= text.length(); start++)
+        {
+            if (globMatches(rest, text.substring(start)))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the non-empty segments of the path
+     */
+    static List<String> segments(final String path)
+    {
+        final List<String> segments = new ArrayList<>();
+        int start = 0;
+        while (start < path.length())
+        {
+            int end = path.indexOf('/', start);
+            if (end < 0)
+            {
+                end = path.length();
+            }
+            if (end > start)
+            {
+                segments.add(path.substring(start, end));
+            }
+            start = end + 1;
+        }
+        return segments;
+    }
+}
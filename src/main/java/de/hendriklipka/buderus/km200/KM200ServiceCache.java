@@ -0,0 +1,256 @@
+package de.hendriklipka.buderus.km200;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persists the discovered service tree of a KM200 to disk, so a restart does not need to walk the whole tree again.
+ * <p>
+ * There is one cache file per gateway (identified by its UUID). The cache is only used when the gateway still runs
+ * the firmware it was written for.
+ */
+public class KM200ServiceCache
+{
+    private static final Logger logger = LoggerFactory.getLogger(KM200ServiceCache.class);
+
+    private static final int FORMAT_VERSION = 1;
+
+    private final File _directory;
+
+    public KM200ServiceCache(final File directory)
+    {
+        _directory = directory;
+    }
+
+    /**
+     * The identity of a gateway: its UUID and firmware version, as reported by the device.
+     */
+    public static class GatewayIdentity
+    {
+        private final String _uuid;
+        private final String _firmware;
+
+        public GatewayIdentity(final String uuid, final String firmware)
+        {
+            _uuid = uuid;
+            _firmware = firmware;
+        }
+
+        public String getUuid()
+        {
+            return _uuid;
+        }
+
+        public String getFirmware()
+        {
+            return _firmware;
+        }
+
+        @Override
+        public String toString()
+        {
+            return _uuid + " (firmware " + _firmware + ")";
+        }
+    }
+
+    /**
+     * Asks the device for its identity.
+     *
+     * @return the identity, or null if the device does not report it
+     */
+    public static GatewayIdentity readIdentity(final KM200Comm comm, final KM200Device device)
+    {
+        final String uuid = readStringValue(comm, device, "/gateway/uuid");
+        final String firmware = readStringValue(comm, device, "/gateway/versionFirmware");
+        if (StringUtils.isBlank(uuid) || StringUtils.isBlank(firmware))
+        {
+            return null;
+        }
+        return new GatewayIdentity(uuid, firmware);
+    }
+
+    private static String readStringValue(final KM200Comm comm, final KM200Device device, final String service)
+    {
+        final KM200Message message = comm.fetchMessage(device, service);
+        if (null == message)
+        {
+            return null;
+        }
+        try
+        {
+            return new JSONObject(message.toString()).optString("value", null);
+        }
+        catch (JSONException e)
+        {
+            logger.warn("Cannot read {} from the KM200: {}", service, e.getMessage());
+            return null;
+        }
+    }
+
+    private File cacheFile(final GatewayIdentity identity)
+    {
+        return new File(_directory, "km200-" + identity.getUuid().replaceAll("[^A-Za-z0-9._-]", "_") + ".json");
+    }
+
+    /**
+     * @return the cached services, or null when there is no usable cache for this gateway
+     */
+    public Map<String, KM200CommObject> load(final GatewayIdentity identity)
+    {
+        final File file = cacheFile(identity);
+        if (!file.isFile())
+        {
+            logger.info("No discovery cache for gateway {}.", identity);
+            return null;
+        }
+        try
+        {
+            final JSONObject root = new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            if (root.optInt("version") != FORMAT_VERSION || !identity.getUuid().equals(root.optString("uuid"))
+                    || !identity.getFirmware().equals(root.optString("firmware")))
+            {
+                logger.info("Discovery cache {} is outdated, ignoring it.", file.getAbsolutePath());
+                return null;
+            }
+            final Map<String, KM200CommObject> services = new HashMap<>();
+            final JSONArray entries = root.getJSONArray("services");
+            for (int i = 0; i < entries.length(); i++)
+            {
+                final KM200CommObject object = fromJson(entries.getJSONObject(i));
+                services.put(object.getFullServiceName(), object);
+            }
+            logger.info("Loaded {} services from discovery cache {}.", services.size(), file.getAbsolutePath());
+            return services;
+        }
+        catch (IOException | JSONException e)
+        {
+            logger.warn("Cannot read discovery cache {}, ignoring it: {}", file.getAbsolutePath(), e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes the services to the cache file of the gateway. The cache is optional, so a failure is only logged.
+     */
+    public void save(final GatewayIdentity identity, final Map<String, KM200CommObject> services)
+    {
+        final File file = cacheFile(identity);
+        final File temp = new File(_directory, file.getName() + ".tmp");
+        try
+        {
+            final JSONObject root = new JSONObject();
+            root.put("version", FORMAT_VERSION);
+            root.put("uuid", identity.getUuid());
+            root.put("firmware", identity.getFirmware());
+            final JSONArray entries = new JSONArray();
+            for (KM200CommObject object : services.values())
+            {
+                entries.put(toJson(object));
+            }
+            root.put("services", entries);
+
+            Files.createDirectories(_directory.toPath());
+            Files.write(temp.toPath(), root.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("Wrote {} services to discovery cache {}.", services.size(), file.getAbsolutePath());
+        }
+        catch (IOException | RuntimeException e)
+        {
+            logger.warn("Cannot write discovery cache {}: {}", file.getAbsolutePath(), e.getMessage());
+        }
+    }
+
+    /**
+     * @return the service with its meta data, its last known value and its allowed values or range
+     */
+    public static JSONObject toJson(final KM200CommObject object)
+    {
+        final JSONObject entry = new JSONObject();
+        entry.put("id", object.getFullServiceName());
+        entry.put("type", object.getServiceType());
+        entry.put("readable", object.isReadable() ? 1 : 0);
+        entry.put("writeable", object.isWriteable() ? 1 : 0);
+        entry.put("recordable", object.isRecordable() ? 1 : 0);
+        // JSON has no NaN, the device reports it for sensors which are not connected
+        final Object value = object.getValue();
+        if (null != value && !(value instanceof Number && !Double.isFinite(((Number) value).doubleValue())))
+        {
+            entry.put("value", value);
+        }
+        if (object.hasRange())
+        {
+            // a bound beyond the float range is infinite, written as null like a missing bound
+            entry.put("parameters", new JSONArray().put(finiteOrNull(object.getMinValue())).put(finiteOrNull(object.getMaxValue())));
+        }
+        else if (null != object.getAllowedValues())
+        {
+            entry.put("parameters", new JSONArray(object.getAllowedValues()));
+        }
+        return entry;
+    }
+
+    private static Object finiteOrNull(final float value)
+    {
+        return Float.isFinite(value) ? (Object) (double) value : JSONObject.NULL;
+    }
+
+    private static KM200CommObject fromJson(final JSONObject entry)
+    {
+        final String type = entry.getString("type");
+        final KM200CommObject object = new KM200CommObject(entry.getString("id"), type, entry.getInt("readable"),
+                entry.getInt("writeable"), entry.getInt("recordable"));
+        final JSONArray parameters = entry.optJSONArray("parameters");
+        switch (type)
+        {
+            case "floatValue":
+            {
+                if (entry.has("value"))
+                {
+                    object.setFloatValue((float) entry.getDouble("value"));
+                }
+                if (null != parameters && parameters.length() == 2)
+                {
+                    object.setRange((float) parameters.optDouble(0, Double.NEGATIVE_INFINITY),
+                            (float) parameters.optDouble(1, Double.POSITIVE_INFINITY));
+                }
+                break;
+            }
+            case "stringValue":
+            {
+                object.setValue(entry.optString("value", null));
+                if (null != parameters)
+                {
+                    List<String> valParas = new ArrayList<>();
+                    for (int i = 0; i < parameters.length(); i++)
+                    {
+                        valParas.add(parameters.getString(i));
+                    }
+                    object.setAllowedValues(valParas);
+                }
+                break;
+            }
+            case "errorList":
+            case "systeminfo":
+                object.setValue(entry.optJSONArray("value"));
+                break;
+            default:
+                object.setValue(entry.opt("value"));
+                break;
+        }
+        return object;
+    }
+}
@@ -0,0 +1,186 @@
+package de.hendriklipka.buderus.km200;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.impl.DefaultConnectionKeepAliveStrategy;
+import org.apache.hc.client5.http.impl.DefaultHttpRequestRetryStrategy;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.protocol.HttpClientContext;
+import org.apache.hc.client5.http.socket.ConnectionSocketFactory;
+import org.apache.hc.client5.http.socket.PlainConnectionSocketFactory;
+import org.apache.hc.core5.http.ClassicHttpRequest;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.config.Registry;
+import org.apache.hc.core5.http.config.RegistryBuilder;
+import org.apache.hc.core5.http.io.HttpClientResponseHandler;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.hendriklipka.buderus.metrics.LatencyHistogram;
+
+/**
+ * The HTTP transport to the KM200 device. It keeps one HTTP client and its connection pool for its whole lifetime,
+ * so connections to the device are kept alive and re-used between requests.
+ * <p>
+ * Every request is timed, split into
+ * <ul>
+ *     <li>connect: establishing a new TCP connection (zero when a pooled connection is re-used)</li>
+ *     <li>wait: from sending the request until the response headers arrived, without the connect time</li>
+ *     <li>read: reading the response body</li>
+ * </ul>
+ */
+public class KM200Transport implements Closeable
+{
+    private static final Logger logger = LoggerFactory.getLogger(KM200Transport.class);
+
+    private static final String CONNECT_NANOS_ATTRIBUTE = "km200.connectNanos";
+
+    private final PoolingHttpClientConnectionManager _connectionManager;
+    private final CloseableHttpClient _client;
+
+    private final LatencyHistogram _connectLatency = new LatencyHistogram();
+    private final LatencyHistogram _waitLatency = new LatencyHistogram();
+    private final LatencyHistogram _readLatency = new LatencyHistogram();
+
+    public KM200Transport(final KM200HttpSettings settings)
+    {
+        this(settings, settings.getMaxConnections());
+    }
+
+    /**
+     * Creates a transport shared by several gateways. Each gateway (route) gets at most the configured number of
+     * connections, so a hanging gateway cannot take the connections of the others.
+     *
+     * @param maxTotal the size of the whole connection pool
+     */
+    public KM200Transport(final KM200HttpSettings settings, final int maxTotal)
+    {
+        final Registry<ConnectionSocketFactory> socketFactories = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", new TimedSocketFactory())
+                .build();
+        _connectionManager = new PoolingHttpClientConnectionManager(socketFactories);
+        final int maxConnections = Math.max(1, settings.getMaxConnections());
+        _connectionManager.setMaxTotal(Math.max(maxConnections, maxTotal));
+        _connectionManager.setDefaultMaxPerRoute(maxConnections);
+        _connectionManager.setDefaultConnectionConfig(ConnectionConfig.custom()
+                .setConnectTimeout(Timeout.ofSeconds(settings.getConnectTimeoutSeconds()))
+                .setSocketTimeout(Timeout.ofSeconds(settings.getSocketTimeoutSeconds()))
+                .setValidateAfterInactivity(TimeValue.ofSeconds(15))
+                .build());
+
+        // never keep a connection longer than the device itself allows, or longer than configured
+        final TimeValue keepAlive = TimeValue.ofSeconds(settings.getKeepAliveSeconds());
+        _client = HttpClients.custom()
+                .setConnectionManager(_connectionManager)
+                .setRetryStrategy(new DefaultHttpRequestRetryStrategy(settings.getRetries(), TimeValue.ofSeconds(settings.getRetryIntervalSeconds())))
+                .setKeepAliveStrategy((response, context) -> keepAlive.min(DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context)))
+                .evictExpiredConnections()
+                .evictIdleConnections(keepAlive)
+                .build();
+    }
+
+    /**
+     * Executes the request, and times its phases. The connection is released back to the pool after the handler returns.
+     */
+    public <T> T execute(final ClassicHttpRequest request, final HttpClientResponseHandler<T> handler) throws IOException
+    {
+        final HttpClientContext context = HttpClientContext.create();
+        final long start = System.nanoTime();
+        return _client.execute(request, context, response -> {
+            final long headersReceived = System.nanoTime();
+            final long connectNanos = getConnectNanos(context);
+            try
+            {
+                return handler.handleResponse(response);
+            }
+            finally
+            {
+                _connectLatency.recordNanos(connectNanos);
+                _waitLatency.recordNanos(headersReceived - start - connectNanos);
+                _readLatency.recordNanos(System.nanoTime() - headersReceived);
+            }
+        });
+    }
+
+    private static long getConnectNanos(final HttpContext context)
+    {
+        final Object nanos = context.getAttribute(CONNECT_NANOS_ATTRIBUTE);
+        return nanos instanceof Long ? (Long) nanos : 0L;
+    }
+
+    public LatencyHistogram getConnectLatency()
+    {
+        return _connectLatency;
+    }
+
+    public LatencyHistogram getWaitLatency()
+    {
+        return _waitLatency;
+    }
+
+    public LatencyHistogram getReadLatency()
+    {
+        return _readLatency;
+    }
+
+    /**
+     * @return the number of pooled connections currently used for a request
+     */
+    public int getLeasedConnections()
+    {
+        return _connectionManager.getTotalStats().getLeased();
+    }
+
+    /**
+     * @return the number of pooled connections which are open, but idle
+     */
+    public int getAvailableConnections()
+    {
+        return _connectionManager.getTotalStats().getAvailable();
+    }
+
+    public void logStatistics()
+    {
+        logger.debug("KM200 request latency - connect: {}", _connectLatency);
+        logger.debug("KM200 request latency - wait: {}", _waitLatency);
+        logger.debug("KM200 request latency - read: {}", _readLatency);
+        logger.debug("KM200 connection pool: {}", _connectionManager.getTotalStats());
+    }
+
+    @Override
+    public void close()
+    {
+        _client.close(CloseMode.GRACEFUL);
+    }
+
+    /**
+     * Remembers how long connecting took in the request context, so it can be separated from the waiting time.
+     */
+    private static class TimedSocketFactory extends PlainConnectionSocketFactory
+    {
+        @Override
+        public Socket connectSocket(final TimeValue connectTimeout, final Socket socket, final HttpHost host, final InetSocketAddress remoteAddress,
+                                    final InetSocketAddress localAddress, final HttpContext context) throws IOException
+        {
+            final long start = System.nanoTime();
+            try
+            {
+                return super.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+            }
+            finally
+            {
+                context.setAttribute(CONNECT_NANOS_ATTRIBUTE, getConnectNanos(context) + System.nanoTime() - start);
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package de.hendriklipka.buderus.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram with microsecond resolution.
+ * <p>
+ * Buckets grow exponentially, with four linear sub-buckets per power of two, so every recorded value is
+ * accurate to within 25%. Recording is a handful of atomic increments and never allocates.
+ * <p>
+ * When returned from an MXBean, a histogram shows up as composite data with its count, mean, max and percentiles,
+ * all in microseconds.
+ */
+public class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder _count = new LongAdder();
+    private final LongAdder _sum = new LongAdder();
+    private final LongAccumulator _max = new LongAccumulator(Math::max, 0);
+
+    public void recordNanos(final long nanos)
+    {
+        record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /**
+     * @param micros the latency in microseconds; negative values are counted as zero
+     */
+    public void record(final long micros)
+    {
+        final long value = Math.max(0, micros);
+        _counts.incrementAndGet(bucketIndex(value));
+        _count.increment();
+        _sum.add(value);
+        _max.accumulate(value);
+    }
+
+    public long getCount()
+    {
+        return _count.sum();
+    }
+
+    /**
+     * @return the mean latency in microseconds
+     */
+    public double getMean()
+    {
+        final long count = _count.sum();
+        return 0 == count ? 0 : (double) _sum.sum() / count;
+    }
+
+    /**
+     * @return the maximum latency in microseconds
+     */
+    public long getMax()
+    {
+        return _max.get();
+    }
+
+    /**
+     * @param percentile the percentile, between 0 and 100
+     * @return the upper bound (in microseconds) of the bucket containing the given percentile
+     */
+    public long getPercentile(final double percentile)
+    {
+        final long count = _count.sum();
+        if (0 == count)
+        {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += _counts.get(i);
+            if (seen >= rank)
+            {
+                return Math.min(bucketUpperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public long getP50()
+    {
+        return getPercentile(50);
+    }
+
+    public long getP90()
+    {
+        return getPercentile(90);
+    }
+
+    public long getP99()
+    {
+        return getPercentile(99);
+    }
+
+    public void reset()
+    {
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            _counts.set(i, 0);
+        }
+        _count.reset();
+        _sum.reset();
+        _max.reset();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("n=%d mean=%.2fms p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms", getCount(), getMean() / 1000.0,
+                getPercentile(50) / 1000.0, getPercentile(90) / 1000.0, getPercentile(99) / 1000.0, getMax() / 1000.0);
+    }
+
+    static int bucketIndex(final long value)
+    {
+        if (value < SUB_BUCKETS)
+        {
+            return (int) value;
+        }
+        final int msb = 63 - Long.numberOfLeadingZeros(value);
+        final int sub = (int) ((value >>> (msb - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return (msb - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long bucketUpperBound(final int index)
+    {
+        if (index < SUB_BUCKETS)
+        {
+            return index;
+        }
+        final int shift = index / SUB_BUCKETS - 1;
+        final long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,69 @@
+package de.hendriklipka.buderus.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registers the MBeans of the bridge with the platform MBean server, below the domain {@value #DOMAIN}. They can
+ * be read via JMX, or via the Jolokia agent.
+ */
+public final class MBeans
+{
+    private static final Logger logger = LoggerFactory.getLogger(MBeans.class);
+
+    public static final String DOMAIN = "de.hendriklipka.buderus";
+
+    private MBeans()
+    {
+    }
+
+    /**
+     * Registers the MBean, replacing an MBean with the same name. A failure is only logged, since metrics are not
+     * essential for running the bridge.
+     *
+     * @param type the type of the MBean
+     * @param name the name of the MBean, or null for a singleton type
+     * @return the name of the registered MBean, or null when it could not be registered
+     */
+    public static ObjectName register(final String type, final String name, final Object mbean)
+    {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try
+        {
+            final ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + (null == name ? "" : ",name=" + ObjectName.quote(name)));
+            if (server.isRegistered(objectName))
+            {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(mbean, objectName);
+            return objectName;
+        }
+        catch (JMException e)
+        {
+            logger.warn("Cannot register MBean {} {}: {}", type, name, e.getMessage());
+            return null;
+        }
+    }
+
+    public static void unregister(final ObjectName objectName)
+    {
+        if (null == objectName)
+        {
+            return;
+        }
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        }
+        catch (JMException e)
+        {
+            logger.warn("Cannot unregister MBean {}: {}", objectName, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package de.hendriklipka.buderus.km200.simulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import de.hendriklipka.buderus.km200.KM200Device;
+
+/**
+ * A simulated KM200 gateway, serving a {@link SimulatedServiceTree} via HTTP on the loopback interface. Responses are
+ * encrypted like the device does it: zero padded to the AES block size, AES/ECB with the private key, then Base64.
+ * <p>
+ * For load tests and for reproducing problems, the simulator can add latency to each request, answer some services
+ * with 403 (forbidden), and fail a share of the requests with 500. Like the device, it only handles a few requests
+ * at the same time.
+ * <p>
+ * Configure the simulator before calling {@link #start()}, then point a {@link KM200Device}
+ * with the same private key at {@link #getAddress()}.
+ */
+public class KM200Simulator implements Closeable
+{
+    private static final Logger logger = LoggerFactory.getLogger(KM200Simulator.class);
+
+    static
+    {
+        // the server writes headers and body separately; without this, Nagle's algorithm and delayed ACKs add ~40 ms
+        // to each response. Only has an effect when no HTTP server was created before.
+        if (null == System.getProperty("sun.net.httpserver.nodelay"))
+        {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final SimulatedServiceTree _tree;
+    private final SecretKeySpec _key;
+    private final ThreadLocal<Cipher> _ciphers;
+    private final ThreadLocal<Cipher> _decryptors;
+
+    private int _port = 0;
+    private int _maxConcurrentRequests = 2;
+    private volatile int _minLatencyMillis = 0;
+    private volatile int _maxLatencyMillis = 0;
+    private volatile double _failureRate = 0;
+    private final Set<String> _forbidden = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder _requests = new LongAdder();
+    private final LongAdder _forbiddenCount = new LongAdder();
+    private final LongAdder _failures = new LongAdder();
+    private final LongAdder _writes = new LongAdder();
+
+    private HttpServer _server;
+    private ExecutorService _executor;
+
+    /**
+     * @param cryptKeyPriv the private key, as used by the device
+     */
+    public KM200Simulator(final SimulatedServiceTree tree, final byte[] cryptKeyPriv)
+    {
+        _tree = tree;
+        _key = new SecretKeySpec(cryptKeyPriv, "AES");
+        _ciphers = ThreadLocal.withInitial(() -> createCipher(Cipher.ENCRYPT_MODE));
+        _decryptors = ThreadLocal.withInitial(() -> createCipher(Cipher.DECRYPT_MODE));
+    }
+
+    private Cipher createCipher(final int mode)
+    {
+        try
+        {
+            final Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+            cipher.init(mode, _key);
+            return cipher;
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException("Cannot create AES cipher", e);
+        }
+    }
+
+    /**
+     * @param port the port to listen on; 0 (the default) picks a free port
+     */
+    public void setPort(final int port)
+    {
+        _port = port;
+    }
+
+    /**
+     * @param maxConcurrentRequests the number of requests handled at the same time, further requests have to wait
+     */
+    public void setMaxConcurrentRequests(final int maxConcurrentRequests)
+    {
+        _maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    /**
+     * Sets the time needed to answer a request, picked uniformly between min and max for each request. Can be
+     * changed while the simulator is running.
+     */
+    public void setLatency(final int minMillis, final int maxMillis)
+    {
+        _minLatencyMillis = minMillis;
+        _maxLatencyMillis = Math.max(minMillis, maxMillis);
+    }
+
+    /**
+     * @param failureRate the share of requests answered with 500, between 0 and 1. Can be changed while the
+     *                    simulator is running.
+     */
+    public void setFailureRate(final double failureRate)
+    {
+        _failureRate = failureRate;
+    }
+
+    /**
+     * Answers these services with 403, like the device does for services the user may not read.
+     */
+    public void setForbiddenServices(final Collection<String> services)
+    {
+        _forbidden.clear();
+        _forbidden.addAll(services);
+    }
+
+    public void start() throws IOException
+    {
+        final AtomicInteger threadCount = new AtomicInteger();
+        _executor = Executors.newFixedThreadPool(Math.max(1, _maxConcurrentRequests), r -> {
+            Thread t = new Thread(r, "km200-simulator-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        _server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), _port), 50);
+        _server.setExecutor(_executor);
+        _server.createContext("/", this::handle);
+        _server.start();
+        logger.info("KM200 simulator with {} services listening on {}.", _tree.size(), getAddress());
+    }
+
+    /**
+     * @return host and port of the simulator, as used for {@link KM200Device#setIP4Address(String)}
+     */
+    public String getAddress()
+    {
+        final InetSocketAddress address = _server.getAddress();
+        return address.getAddress().getHostAddress() + ":" + address.getPort();
+    }
+
+    public SimulatedServiceTree getTree()
+    {
+        return _tree;
+    }
+
+    public long getRequestCount()
+    {
+        return _requests.sum();
+    }
+
+    public long getForbiddenCount()
+    {
+        return _forbiddenCount.sum();
+    }
+
+    public long getFailureCount()
+    {
+        return _failures.sum();
+    }
+
+    /**
+     * @return the number of values changed by POST requests
+     */
+    public long getWriteCount()
+    {
+        return _writes.sum();
+    }
+
+    @Override
+    public void close()
+    {
+        if (null != _server)
+        {
+            _server.stop(0);
+            _executor.shutdownNow();
+        }
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException
+    {
+        try
+        {
+            _requests.increment();
+            final String path = exchange.getRequestURI().getPath();
+            delay();
+            final boolean write = "POST".equals(exchange.getRequestMethod());
+            if (!write && !"GET".equals(exchange.getRequestMethod()))
+            {
+                sendEmpty(exchange, 405);
+                return;
+            }
+            if (_failureRate > 0 && ThreadLocalRandom.current().nextDouble() < _failureRate)
+            {
+                _failures.increment();
+                sendEmpty(exchange, 500);
+                return;
+            }
+            if (_forbidden.contains(path))
+            {
+                _forbiddenCount.increment();
+                sendEmpty(exchange, 403);
+                return;
+            }
+            final SimulatedService service = _tree.get(path);
+            if (null == service)
+            {
+                sendEmpty(exchange, 404);
+                return;
+            }
+            if (write)
+            {
+                sendEmpty(exchange, write(service, exchange));
+                return;
+            }
+            final String host = exchange.getRequestHeaders().getFirst("Host");
+            final byte[] body = encrypt(service.toJson(null == host ? getAddress() : host, _tree.getChildren(path), exchange.getRequestURI().getRawQuery()).toString());
+            exchange.getResponseHeaders().add("Content-type", "application/json; charset=UTF-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody())
+            {
+                out.write(body);
+            }
+        }
+        catch (RuntimeException e)
+        {
+            logger.error("Simulator failed to answer {}: ", exchange.getRequestURI(), e);
+            sendEmpty(exchange, 500);
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Changes the value of a writeable service, like the device does for a POST with an encrypted {"value":...}.
+     *
+     * @return the HTTP status: 204 when the value was changed, 403 for services which are not writeable, 400 for
+     * values which are not allowed
+     */
+    private int write(final SimulatedService service, final HttpExchange exchange) throws IOException
+    {
+        final byte[] body;
+        try (InputStream in = exchange.getRequestBody())
+        {
+            body = readAll(in);
+        }
+        if (!service.isWriteable())
+        {
+            return 403;
+        }
+        final Object value;
+        try
+        {
+            final byte[] plain = _decryptors.get().doFinal(Base64.getDecoder().decode(body));
+            int end = plain.length;
+            while (end > 0 && plain[end - 1] == 0)
+            {
+                end--;
+            }
+            value = new JSONObject(new String(plain, 0, end, StandardCharsets.UTF_8)).get("value");
+        }
+        catch (GeneralSecurityException | IllegalArgumentException | JSONException e)
+        {
+            logger.debug("Simulator cannot decode the value for {}: {}", service.getId(), e.getMessage());
+            return 400;
+        }
+        if (!service.accepts(value))
+        {
+            return 400;
+        }
+        service.setValue(value);
+        _writes.increment();
+        return 204;
+    }
+
+    private static byte[] readAll(final InputStream in) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        int count;
+        while ((count = in.read(buffer)) > 0)
+        {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    private static void sendEmpty(final HttpExchange exchange, final int status) throws IOException
+    {
+        // the server only keeps the connection open when the request has been read completely
+        exchange.getRequestBody().close();
+        exchange.sendResponseHeaders(status, -1);
+    }
+
+    private void delay()
+    {
+        final int min = _minLatencyMillis;
+        final int max = _maxLatencyMillis;
+        if (max <= 0)
+        {
+            return;
+        }
+        try
+        {
+            TimeUnit.MILLISECONDS.sleep(min == max ? min : ThreadLocalRandom.current().nextInt(min, max + 1));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Encrypts a message the way the device does it.
+     */
+    public byte[] encrypt(final String json)
+    {
+        final byte[] plain = json.getBytes(StandardCharsets.UTF_8);
+        final byte[] padded = Arrays.copyOf(plain, (plain.length + 15) / 16 * 16);
+        try
+        {
+            return Base64.getEncoder().encode(_ciphers.get().doFinal(padded));
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException("Cannot encrypt message", e);
+        }
+    }
+
+    /**
+     * Runs a simulator with a synthetic service tree until the process is stopped.
+     * <p>
+     * Arguments: port, private key (hex), [heating circuits, [extra sensors, [min latency ms, [max latency ms]]]]
+     */
+    public static void main(final String[] args) throws IOException
+    {
+        if (args.length < 2)
+        {
+            System.err.println("usage: KM200Simulator PORT PRIVATE_KEY_HEX [HEATING_CIRCUITS [EXTRA_SENSORS [MIN_LATENCY_MS [MAX_LATENCY_MS]]]]");
+            System.exit(1);
+        }
+        final int circuits = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        final int sensors = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+        final KM200Device keys = new KM200Device();
+        keys.setCryptKeyPriv(args[1]);
+        final KM200Simulator simulator = new KM200Simulator(SimulatedServiceTree.synthetic(circuits, sensors), keys.getCryptKeyPriv());
+        simulator.setPort(Integer.parseInt(args[0]));
+        if (args.length > 4)
+        {
+            simulator.setLatency(Integer.parseInt(args[4]), args.length > 5 ? Integer.parseInt(args[5]) : Integer.parseInt(args[4]));
+        }
+        simulator.start();
+    }
+}
@@ -0,0 +1,177 @@
+package de.hendriklipka.buderus.km200.simulator;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A minimal MQTT 3.1.1 server on the loopback interface, as the counterpart of the {@link KM200Simulator} in
+ * benchmarks: it accepts every client, acknowledges connects, subscriptions and publishes (with any QoS), and
+ * remembers the topics published to. Messages are not forwarded to anyone.
+ */
+public class SimulatedBroker implements Closeable
+{
+    private static final int CONNECT = 1;
+    private static final int PUBLISH = 3;
+    private static final int PUBREL = 6;
+    private static final int SUBSCRIBE = 8;
+    private static final int UNSUBSCRIBE = 10;
+    private static final int PINGREQ = 12;
+    private static final int DISCONNECT = 14;
+
+    private final Set<String> _topics = ConcurrentHashMap.newKeySet();
+    private final LongAdder _publishes = new LongAdder();
+    private ServerSocket _server;
+
+    public void start() throws IOException
+    {
+        _server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final Thread acceptor = new Thread(this::accept, "mqtt-simulator");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort()
+    {
+        return _server.getLocalPort();
+    }
+
+    /**
+     * @return the topics published to so far
+     */
+    public Set<String> getTopics()
+    {
+        return _topics;
+    }
+
+    public long getPublishCount()
+    {
+        return _publishes.sum();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (null != _server)
+        {
+            _server.close();
+        }
+    }
+
+    private void accept()
+    {
+        try
+        {
+            while (true)
+            {
+                final Socket client = _server.accept();
+                final Thread thread = new Thread(() -> serve(client), "mqtt-simulator-client");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+        catch (IOException e)
+        {
+            // closed
+        }
+    }
+
+    private void serve(final Socket client)
+    {
+        try (Socket socket = client;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream())))
+        {
+            final OutputStream out = socket.getOutputStream();
+            while (true)
+            {
+                final int header = in.readUnsignedByte();
+                int length = 0;
+                int multiplier = 1;
+                int digit;
+                do
+                {
+                    digit = in.readUnsignedByte();
+                    length += (digit & 0x7f) * multiplier;
+                    multiplier *= 128;
+                }
+                while ((digit & 0x80) != 0);
+                final byte[] body = new byte[length];
+                in.readFully(body);
+
+                final byte[] reply = answer(header, body);
+                if (null == reply)
+                {
+                    return;
+                }
+                if (reply.length > 0)
+                {
+                    out.write(reply);
+                    out.flush();
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            // client is gone
+        }
+    }
+
+    /**
+     * @return the packet to send back, an empty array for none, or null to close the connection
+     */
+    private byte[] answer(final int header, final byte[] body)
+    {
+        switch (header >> 4)
+        {
+            case CONNECT:
+                return new byte[]{0x20, 2, 0, 0};
+            case PUBLISH:
+                final int topicLength = (body[0] & 0xff) << 8 | (body[1] & 0xff);
+                _topics.add(new String(body, 2, topicLength, StandardCharsets.UTF_8));
+                _publishes.increment();
+                final int qos = (header >> 1) & 3;
+                if (0 == qos)
+                {
+                    return new byte[0];
+                }
+                // PUBACK for QoS 1, PUBREC for QoS 2, with the message id following the topic
+                return new byte[]{(byte) (1 == qos ? 0x40 : 0x50), 2, body[2 + topicLength], body[3 + topicLength]};
+            case PUBREL:
+                return new byte[]{0x70, 2, body[0], body[1]};
+            case SUBSCRIBE:
+                // grant the requested QoS of each topic filter
+                final ByteArrayOutputStream suback = new ByteArrayOutputStream();
+                suback.write(0x90);
+                suback.write(0);
+                suback.write(body[0]);
+                suback.write(body[1]);
+                for (int pos = 2; pos < body.length; )
+                {
+                    pos += 2 + ((body[pos] & 0xff) << 8 | (body[pos + 1] & 0xff));
+                    suback.write(body[pos++]);
+                }
+                final byte[] packet = suback.toByteArray();
+                // fits into one length byte for less than 126 topic filters
+                packet[1] = (byte) (packet.length - 2);
+                return packet;
+            case UNSUBSCRIBE:
+                return new byte[]{(byte) 0xb0, 2, body[0], body[1]};
+            case PINGREQ:
+                return new byte[]{(byte) 0xd0, 0};
+            case DISCONNECT:
+                return null;
+            default:
+                return new byte[0];
+        }
+    }
+}
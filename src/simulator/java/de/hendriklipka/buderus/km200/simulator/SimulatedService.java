@@ -0,0 +1,304 @@
+package de.hendriklipka.buderus.km200.simulator;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.DoubleSupplier;
+import java.util.function.ToDoubleFunction;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * A single service of the {@link KM200Simulator}, answered with the same JSON structure as a real KM200 uses for
+ * its type. The references of a refEnum are not stored here, they are taken from the {@link SimulatedServiceTree}.
+ */
+public class SimulatedService
+{
+    private final String _id;
+    private final String _type;
+    private final boolean _writeable;
+    private final JSONObject _template;
+    private final DoubleSupplier _source;
+    private final ToDoubleFunction<LocalDateTime> _history;
+    private volatile Object _value;
+
+    private SimulatedService(final String id, final String type, final boolean writeable, final JSONObject template, final DoubleSupplier source,
+                             final Object value)
+    {
+        this(id, type, writeable, template, source, null, value);
+    }
+
+    private SimulatedService(final String id, final String type, final boolean writeable, final JSONObject template, final DoubleSupplier source,
+                             final ToDoubleFunction<LocalDateTime> history, final Object value)
+    {
+        _id = id;
+        _type = type;
+        _writeable = writeable;
+        _template = template;
+        _source = source;
+        _history = history;
+        _value = value;
+    }
+
+    public static SimulatedService refEnum(final String id)
+    {
+        return new SimulatedService(id, "refEnum", false, new JSONObject(), null, null);
+    }
+
+    /**
+     * A float value which is read from the source on every request, e.g. {@link #wave(double, double, int)}.
+     */
+    public static SimulatedService floatValue(final String id, final String unit, final DoubleSupplier source)
+    {
+        final JSONObject template = new JSONObject();
+        template.put("unitOfMeasure", unit);
+        template.put("state", new JSONArray().put(new JSONObject().put("open", -3276.8)).put(new JSONObject().put("short", 3276.7)));
+        return new SimulatedService(id, "floatValue", false, template, source, null);
+    }
+
+    /**
+     * A writeable float value, starting with the given value.
+     */
+    public static SimulatedService floatSetting(final String id, final String unit, final double value, final double min, final double max)
+    {
+        final JSONObject template = new JSONObject();
+        template.put("unitOfMeasure", unit);
+        template.put("minValue", min);
+        template.put("maxValue", max);
+        return new SimulatedService(id, "floatValue", true, template, null, value);
+    }
+
+    /**
+     * @param allowedValues the allowed values; when given, the service is writeable
+     */
+    public static SimulatedService stringValue(final String id, final String value, final String... allowedValues)
+    {
+        final JSONObject template = new JSONObject();
+        if (allowedValues.length > 0)
+        {
+            template.put("allowedValues", new JSONArray(Arrays.asList(allowedValues)));
+        }
+        return new SimulatedService(id, "stringValue", allowedValues.length > 0, template, null, value);
+    }
+
+    /**
+     * A weekly switch program, switching between two setpoints at the given minutes of each day.
+     */
+    public static SimulatedService switchProgram(final String id, final String setpointProperty, final int... switchMinutes)
+    {
+        final JSONObject template = new JSONObject();
+        template.put("setpointProperty", new JSONObject().put("id", setpointProperty));
+        template.put("maxNbOfSwitchPoints", 42);
+        template.put("maxNbOfSwitchPointsPerDay", 6);
+        template.put("switchPointTimeRaster", 15);
+        final JSONArray switchPoints = new JSONArray();
+        for (String day : new String[]{"Mo", "Tu", "We", "Th", "Fr", "Sa", "Su"})
+        {
+            for (int i = 0; i < switchMinutes.length; i++)
+            {
+                switchPoints.put(new JSONObject().put("dayOfWeek", day).put("setpoint", i % 2 == 0 ? "comfort2" : "eco").put("time", switchMinutes[i]));
+            }
+        }
+        return new SimulatedService(id, "switchProgram", true, template, null, switchPoints);
+    }
+
+    /**
+     * @param errors the active errors, e.g. {"dcd":"A11","ccd":1010,"act":"H","fc":0,"t":"2023-01-01T10:00:00"}
+     */
+    public static SimulatedService errorList(final String id, final List<JSONObject> errors)
+    {
+        return new SimulatedService(id, "errorList", false, new JSONObject(), null, new JSONArray(errors));
+    }
+
+    /**
+     * A recording of a value, answered for the interval given as query parameter like the device does: a day
+     * ('interval=2023-05-17') gives hourly entries, a month ('2023-05') daily entries, and a year ('2023') monthly
+     * entries. Each entry has the sum of the per-minute values ('y') and the number of minutes ('c'); entries which
+     * are not complete yet are returned with c = 0.
+     *
+     * @param history the value at the given minute
+     */
+    public static SimulatedService recording(final String id, final String unit, final ToDoubleFunction<LocalDateTime> history)
+    {
+        final JSONObject template = new JSONObject();
+        template.put("unitOfMeasure", unit);
+        return new SimulatedService(id, "yRecording", false, template, null, history, null);
+    }
+
+    /**
+     * @return a slowly changing value, oscillating around the base value
+     */
+    public static DoubleSupplier wave(final double base, final double amplitude, final int periodSeconds)
+    {
+        return () -> {
+            final double phase = 2 * Math.PI * (System.currentTimeMillis() % (periodSeconds * 1000L)) / (periodSeconds * 1000.0);
+            return Math.round((base + amplitude * Math.sin(phase)) * 10) / 10.0;
+        };
+    }
+
+    private void recordingJson(final JSONObject json, final String query)
+    {
+        String interval = null;
+        for (String parameter : null == query ? new String[0] : query.split("&"))
+        {
+            if (parameter.startsWith("interval="))
+            {
+                interval = parameter.substring("interval=".length());
+            }
+        }
+        LocalDateTime start;
+        String sampleRate;
+        int count;
+        try
+        {
+            if (null != interval && interval.length() == 10)
+            {
+                start = LocalDate.parse(interval).atStartOfDay();
+                sampleRate = "P1H";
+                count = 24;
+            }
+            else if (null != interval && interval.length() == 7)
+            {
+                start = YearMonth.parse(interval).atDay(1).atStartOfDay();
+                sampleRate = "P1D";
+                count = YearMonth.parse(interval).lengthOfMonth();
+            }
+            else
+            {
+                start = LocalDate.of(null == interval ? LocalDate.now().getYear() : Integer.parseInt(interval), 1, 1).atStartOfDay();
+                sampleRate = "P1M";
+                count = 12;
+            }
+        }
+        catch (DateTimeParseException | NumberFormatException e)
+        {
+            json.put("recording", new JSONArray());
+            return;
+        }
+        final LocalDateTime now = LocalDateTime.now();
+        final JSONArray entries = new JSONArray();
+        for (int i = 0; i < count; i++)
+        {
+            final LocalDateTime from = "P1H".equals(sampleRate) ? start.plusHours(i) : "P1D".equals(sampleRate) ? start.plusDays(i) : start.plusMonths(i);
+            final LocalDateTime to = "P1H".equals(sampleRate) ? from.plusHours(1) : "P1D".equals(sampleRate) ? from.plusDays(1) : from.plusMonths(1);
+            if (to.isAfter(now))
+            {
+                entries.put(new JSONObject().put("y", 0).put("c", 0));
+                continue;
+            }
+            // one sample per hour is enough for a smooth simulated value
+            double sum = 0;
+            int minutes = 0;
+            for (LocalDateTime t = from; t.isBefore(to); t = t.plusHours(1))
+            {
+                sum += _history.applyAsDouble(t) * 60;
+                minutes += 60;
+            }
+            entries.put(new JSONObject().put("y", Math.round(sum * 10) / 10.0).put("c", minutes));
+        }
+        json.put("interval", interval);
+        json.put("sampleRate", sampleRate);
+        json.put("recording-type", "single");
+        json.put("recording", entries);
+    }
+
+    public String getId()
+    {
+        return _id;
+    }
+
+    public String getType()
+    {
+        return _type;
+    }
+
+    public boolean isWriteable()
+    {
+        return _writeable;
+    }
+
+    public Object getValue()
+    {
+        return null != _source ? (Object) _source.getAsDouble() : _value;
+    }
+
+    public void setValue(final Object value)
+    {
+        _value = value;
+    }
+
+    /**
+     * @return whether the value may be written to this service: a number within the range of a float value, or one
+     * of the allowed values of a string value
+     */
+    boolean accepts(final Object value)
+    {
+        switch (_type)
+        {
+            case "floatValue":
+                return value instanceof Number
+                        && (!_template.has("minValue") || ((Number) value).doubleValue() >= _template.getDouble("minValue"))
+                        && (!_template.has("maxValue") || ((Number) value).doubleValue() <= _template.getDouble("maxValue"));
+            case "stringValue":
+                return value instanceof String
+                        && (!_template.has("allowedValues") || _template.getJSONArray("allowedValues").toList().contains(value));
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param host       the host name used in the URIs of references
+     * @param references the ids of the services below a refEnum, ignored for other types
+     */
+    JSONObject toJson(final String host, final List<String> references)
+    {
+        return toJson(host, references, null);
+    }
+
+    /**
+     * @param query the query of the request, for recordings
+     */
+    JSONObject toJson(final String host, final List<String> references, final String query)
+    {
+        final JSONObject json = new JSONObject();
+        json.put("id", _id);
+        json.put("type", _type);
+        switch (_type)
+        {
+            case "refEnum":
+            {
+                final JSONArray refs = new JSONArray();
+                for (String ref : references)
+                {
+                    refs.put(new JSONObject().put("id", ref).put("uri", "http://" + host + ref));
+                }
+                json.put("references", refs);
+                return json;
+            }
+            case "switchProgram":
+                json.put("switchPoints", getValue());
+                break;
+            case "errorList":
+                json.put("values", getValue());
+                break;
+            case "yRecording":
+                recordingJson(json, query);
+                break;
+            default:
+                json.put("value", getValue());
+                json.put("recordable", 0);
+                break;
+        }
+        json.put("writeable", _writeable ? 1 : 0);
+        for (String key : _template.keySet())
+        {
+            json.put(key, _template.get(key));
+        }
+        return json;
+    }
+}
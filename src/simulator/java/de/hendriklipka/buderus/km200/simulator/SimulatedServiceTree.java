@@ -0,0 +1,126 @@
+package de.hendriklipka.buderus.km200.simulator;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.json.JSONObject;
+
+import de.hendriklipka.buderus.km200.KM200ServiceTypes;
+
+/**
+ * The services served by a {@link KM200Simulator}. Adding a service also adds refEnum services for all its parents
+ * which do not exist yet, so the tree can be discovered from the roots like the tree of a real device.
+ */
+public class SimulatedServiceTree
+{
+    private final Map<String, SimulatedService> _services = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> _children = new ConcurrentHashMap<>();
+
+    public SimulatedServiceTree add(final SimulatedService service)
+    {
+        final String id = service.getId();
+        _services.put(id, service);
+        final int slash = id.lastIndexOf('/');
+        if (slash > 0)
+        {
+            final String parent = id.substring(0, slash);
+            _children.computeIfAbsent(parent, p -> new ConcurrentSkipListSet<>()).add(id);
+            if (!_services.containsKey(parent))
+            {
+                add(SimulatedService.refEnum(parent));
+            }
+        }
+        return this;
+    }
+
+    public SimulatedService get(final String id)
+    {
+        return _services.get(id);
+    }
+
+    /**
+     * @return the ids of the services directly below the given one
+     */
+    public List<String> getChildren(final String id)
+    {
+        final Set<String> children = _children.get(id);
+        return null == children ? Collections.emptyList() : new ArrayList<>(children);
+    }
+
+    public int size()
+    {
+        return _services.size();
+    }
+
+    /**
+     * Creates a tree resembling a real installation: gateway information, system sensors, heating circuits with
+     * their settings and switch programs, a hot water circuit, the heat source and the notifications.
+     *
+     * @param heatingCircuits the number of heating circuits
+     * @param extraSensors    the number of additional temperature sensors, to get larger trees for load tests
+     */
+    public static SimulatedServiceTree synthetic(final int heatingCircuits, final int extraSensors)
+    {
+        final SimulatedServiceTree tree = new SimulatedServiceTree();
+        for (KM200ServiceTypes root : KM200ServiceTypes.values())
+        {
+            tree.add(SimulatedService.refEnum(root.getDescription()));
+        }
+
+        tree.add(SimulatedService.stringValue("/gateway/DateTime", LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME)));
+        tree.add(SimulatedService.stringValue("/gateway/uuid", "7736605112"));
+        tree.add(SimulatedService.stringValue("/gateway/versionFirmware", "04.07.01"));
+        tree.add(SimulatedService.stringValue("/gateway/versionHardware", "iCom_Low_v1"));
+        tree.add(SimulatedService.stringValue("/gateway/firmware", "hidden"));
+
+        tree.add(SimulatedService.stringValue("/system/brand", "Buderus"));
+        tree.add(SimulatedService.stringValue("/system/healthStatus", "ok"));
+        tree.add(SimulatedService.floatValue("/system/sensors/temperatures/outdoor_t1", "C", SimulatedService.wave(7, 5, 3600)));
+        tree.add(SimulatedService.floatValue("/system/sensors/temperatures/supply_t1", "C", SimulatedService.wave(45, 8, 600)));
+        tree.add(SimulatedService.floatValue("/system/sensors/temperatures/supply_t1_setpoint", "C", () -> 47.0));
+        tree.add(SimulatedService.floatValue("/system/sensors/temperatures/hotWater_t2", "C", SimulatedService.wave(52, 4, 1800)));
+        tree.add(SimulatedService.floatValue("/system/sensors/temperatures/return", "C", SimulatedService.wave(38, 6, 600)));
+        for (int i = 1; i <= extraSensors; i++)
+        {
+            tree.add(SimulatedService.floatValue("/system/sensors/temperatures/sensor_" + i, "C", SimulatedService.wave(20 + i % 30, 2, 300 + i)));
+        }
+
+        for (int hc = 1; hc <= heatingCircuits; hc++)
+        {
+            final String prefix = "/heatingCircuits/hc" + hc;
+            tree.add(SimulatedService.stringValue(prefix + "/operationMode", "auto", "manual", "auto"));
+            tree.add(SimulatedService.floatValue(prefix + "/roomtemperature", "C", SimulatedService.wave(21, 1, 900)));
+            tree.add(SimulatedService.floatValue(prefix + "/currentRoomSetpoint", "C", () -> 21.0));
+            tree.add(SimulatedService.floatSetting(prefix + "/temperatureRoomSetpoint", "C", 21, 5, 30));
+            tree.add(SimulatedService.floatSetting(prefix + "/temperatureLevels/comfort2", "C", 21, 5, 30));
+            tree.add(SimulatedService.floatSetting(prefix + "/temperatureLevels/eco", "C", 17, 5, 30));
+            tree.add(SimulatedService.switchProgram(prefix + "/switchPrograms/A", prefix + "/temperatureLevels", 360, 1320));
+        }
+
+        tree.add(SimulatedService.stringValue("/dhwCircuits/dhw1/operationMode", "ownprogram", "off", "high", "ownprogram"));
+        tree.add(SimulatedService.floatValue("/dhwCircuits/dhw1/actualTemp", "C", SimulatedService.wave(52, 4, 1800)));
+        tree.add(SimulatedService.floatSetting("/dhwCircuits/dhw1/setTemperature", "C", 55, 30, 80));
+
+        tree.add(SimulatedService.floatValue("/heatSources/actualSupplyTemperature", "C", SimulatedService.wave(45, 8, 600)));
+        tree.add(SimulatedService.floatValue("/heatSources/actualModulation", "%", SimulatedService.wave(50, 50, 900)));
+        tree.add(SimulatedService.floatValue("/heatSources/numberOfStarts", "", () -> 12345.0));
+        tree.add(SimulatedService.floatValue("/heatSources/workingTime/totalSystem", "mins", () -> (double) (System.currentTimeMillis() / 60000 % 1000000)));
+        tree.add(SimulatedService.stringValue("/heatSources/flameStatus", "on"));
+
+        tree.add(SimulatedService.recording("/recordings/heatSources/actualPower", "kW",
+                t -> 2 + Math.cos(2 * Math.PI * (t.getDayOfYear() - 15) / 365.0) + Math.sin(2 * Math.PI * t.getHour() / 24.0) * 0.5));
+        tree.add(SimulatedService.recording("/recordings/system/sensors/temperatures/outdoor_t1", "C",
+                t -> 10 - 10 * Math.cos(2 * Math.PI * (t.getDayOfYear() - 15) / 365.0) + 3 * Math.sin(2 * Math.PI * (t.getHour() - 9) / 24.0)));
+
+        tree.add(SimulatedService.errorList("/notifications", Collections.singletonList(
+                new JSONObject().put("dcd", "A11").put("ccd", 1010).put("act", "H").put("fc", 0).put("t", "2023-01-01T10:00:00"))));
+        return tree;
+    }
+}
@@ -0,0 +1,162 @@
+package de.hendriklipka.buderus.km200.simulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import de.hendriklipka.buderus.km200.KM200Device;
+
+/**
+ * Measures the startup of the bridge: how long it takes from starting the process until the first value of each
+ * configured service was published, and how much resident memory the process uses a few seconds later. Each run
+ * starts a new process with the given command (e.g. 'bin/buderus2mqtt') plus the path of a generated configuration
+ * file, which points it to a {@link KM200Simulator} and a {@link SimulatedBroker} in this JVM. The process is stopped
+ * with SIGTERM after each run, like a service manager does it.
+ * <p>
+ * Needs Linux, since the memory is read from /proc. Arguments: RUNS COMMAND...
+ */
+public class StartupBenchmark
+{
+    private static final String PRIVATE_KEY = "8a1d5ba5d7c1e29f3b65d0e4a7c89b1f0e2d4c6b8a9f1e3d5c7b9a0f2e4d6c8b";
+    private static final List<String> SERVICES = Arrays.asList(
+            "/system/sensors/temperatures/outdoor_t1",
+            "/system/sensors/temperatures/supply_t1",
+            "/system/sensors/temperatures/return",
+            "/heatingCircuits/hc1/roomtemperature",
+            "/dhwCircuits/dhw1/actualTemp");
+    private static final long TIMEOUT_SECONDS = 120;
+    /* time for the memory use to settle after startup; covers the next polling cycle */
+    private static final long SETTLE_MILLIS = 12000;
+
+    public static void main(final String[] args) throws IOException, InterruptedException
+    {
+        if (args.length < 2)
+        {
+            System.err.println("usage: StartupBenchmark RUNS COMMAND...");
+            System.exit(1);
+        }
+        final int runs = Integer.parseInt(args[0]);
+        final List<String> command = Arrays.asList(args).subList(1, args.length);
+
+        final KM200Device keys = new KM200Device();
+        keys.setCryptKeyPriv(PRIVATE_KEY);
+        final KM200Simulator simulator = new KM200Simulator(SimulatedServiceTree.synthetic(1, 0), keys.getCryptKeyPriv());
+        final SimulatedBroker broker = new SimulatedBroker();
+        final Path dir = Files.createTempDirectory("buderus2mqtt-startup");
+        try
+        {
+            simulator.start();
+            broker.start();
+            final Path config = dir.resolve("config.yml");
+            Files.write(config, config(simulator.getAddress(), broker.getPort()).getBytes(StandardCharsets.UTF_8));
+
+            final List<String> topics = topics();
+            final long[] startupMillis = new long[runs];
+            final long[] rssKb = new long[runs];
+            for (int run = 0; run < runs; run++)
+            {
+                broker.getTopics().clear();
+                final Path pidFile = dir.resolve("pid");
+                Files.deleteIfExists(pidFile);
+                // the shell writes its process id (which is the id of the JVM after the exec) for reading the memory
+                final List<String> shell = new ArrayList<>(Arrays.asList("sh", "-c", "echo $$ > \"$0\"; exec \"$@\"", pidFile.toString()));
+                shell.addAll(command);
+                shell.add(config.toString());
+                final File output = dir.resolve("output.log").toFile();
+                final long start = System.nanoTime();
+                final Process process = new ProcessBuilder(shell).redirectErrorStream(true).redirectOutput(output).start();
+                while (!broker.getTopics().containsAll(topics))
+                {
+                    if (!process.isAlive() || System.nanoTime() - start > TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS))
+                    {
+                        process.destroyForcibly();
+                        System.err.println("The bridge did not publish all values, its output was:");
+                        System.err.println(new String(Files.readAllBytes(output.toPath()), StandardCharsets.UTF_8));
+                        System.exit(2);
+                    }
+                    TimeUnit.MILLISECONDS.sleep(5);
+                }
+                startupMillis[run] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                TimeUnit.MILLISECONDS.sleep(SETTLE_MILLIS);
+                rssKb[run] = rss(new String(Files.readAllBytes(pidFile), StandardCharsets.UTF_8).trim());
+                process.destroy();
+                if (!process.waitFor(60, TimeUnit.SECONDS))
+                {
+                    process.destroyForcibly();
+                }
+                System.out.printf("run %d: all %d values published after %d ms, RSS %.1f MB%n",
+                        run + 1, SERVICES.size(), startupMillis[run], rssKb[run] / 1024.0);
+            }
+            Arrays.sort(startupMillis);
+            Arrays.sort(rssKb);
+            System.out.printf("median of %d runs: %d ms (%d..%d), RSS %.1f MB (%.1f..%.1f)%n", runs,
+                    startupMillis[runs / 2], startupMillis[0], startupMillis[runs - 1],
+                    rssKb[runs / 2] / 1024.0, rssKb[0] / 1024.0, rssKb[runs - 1] / 1024.0);
+        }
+        finally
+        {
+            simulator.close();
+            broker.close();
+            try (Stream<Path> files = Files.list(dir))
+            {
+                files.map(Path::toFile).forEach(File::delete);
+            }
+            Files.delete(dir);
+        }
+        System.exit(0);
+    }
+
+    private static String config(final String km200, final int mqttPort)
+    {
+        final StringBuilder config = new StringBuilder()
+                .append("buderusServer: '").append(km200).append("'\n")
+                .append("privateKey: '").append(PRIVATE_KEY).append("'\n")
+                .append("intervalSeconds: 10\n")
+                .append("spreadPolls: false\n")
+                .append("mqttServers:\n")
+                .append("  - server: '127.0.0.1'\n")
+                .append("    port: '").append(mqttPort).append("'\n")
+                .append("    clientId: 'startup-benchmark'\n")
+                .append("services:\n");
+        for (String service : SERVICES)
+        {
+            config.append("  - serviceName: '").append(service).append("'\n")
+                    .append("    mqttTopic: 'buderus").append(service).append("'\n")
+                    .append("    mqttMessage: '{value_d}'\n")
+                    .append("    type: 'float'\n");
+        }
+        return config.toString();
+    }
+
+    private static List<String> topics()
+    {
+        final List<String> topics = new ArrayList<>();
+        for (String service : SERVICES)
+        {
+            topics.add("buderus" + service);
+        }
+        return topics;
+    }
+
+    /**
+     * @return the resident memory of the process in kB
+     */
+    private static long rss(final String pid) throws IOException
+    {
+        for (String line : Files.readAllLines(new File("/proc/" + pid + "/status").toPath()))
+        {
+            if (line.startsWith("VmRSS:"))
+            {
+                return Long.parseLong(line.replaceAll("[^0-9]", ""));
+            }
+        }
+        throw new IOException("no VmRSS for process " + pid);
+    }
+}
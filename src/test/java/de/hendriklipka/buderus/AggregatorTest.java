@@ -0,0 +1,221 @@
+package de.hendriklipka.buderus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class AggregatorTest
+{
+    private static final long MILLIS = 1700000000000L;
+
+    /**
+     * Records the messages instead of sending them; it is never connected.
+     */
+    private static class RecordingBroker extends BrokerConnection
+    {
+        private final List<String> _messages = new ArrayList<>();
+
+        RecordingBroker() throws MqttException, IOException
+        {
+            super(serverConfig());
+        }
+
+        private static MqttServerConfig serverConfig()
+        {
+            final MqttServerConfig config = new MqttServerConfig();
+            config.setServer("localhost");
+            config.setPort(1883);
+            config.setClientId("aggregator-test");
+            return config;
+        }
+
+        @Override
+        public boolean publish(final String topic, final MqttMessage message)
+        {
+            _messages.add(topic + " " + new String(message.getPayload(), StandardCharsets.UTF_8) + " " + message.getQos() + " "
+                    + message.isRetained());
+            return true;
+        }
+    }
+
+    private static ServiceMapping mapping(final String service)
+    {
+        final ServiceMapping mapping = new ServiceMapping();
+        mapping.setServiceName(service);
+        mapping.setType("float");
+        return mapping;
+    }
+
+    private static List<ServiceMapping> sensors()
+    {
+        return Arrays.asList(
+                mapping("/system/sensors/temperatures/outdoor_t1"),
+                mapping("/system/sensors/temperatures/return"),
+                mapping("/heatingCircuits/hc1/roomtemperature"),
+                mapping("/dhwCircuits/dhw1/actualTemp"));
+    }
+
+    private static List<String> cycle(final Aggregator aggregator, final double... values) throws MqttException, IOException
+    {
+        final RecordingBroker broker = new RecordingBroker();
+        aggregator.begin(MILLIS);
+        for (int i = 0; i < values.length; i++)
+        {
+            if (aggregator.isAggregated(i))
+            {
+                aggregator.add(i, values[i]);
+            }
+        }
+        aggregator.publish(Collections.singletonList(broker), (index, value, nanos, accepted) -> {
+        });
+        return broker._messages;
+    }
+
+    @Test
+    public void groupsBySubtreeIntoJsonDocuments() throws Exception
+    {
+        final AggregationConfig config = new AggregationConfig();
+        config.setTopic("buderus{group}");
+        final Aggregator aggregator = new Aggregator(config, sensors(), null);
+        assertEquals(3, aggregator.getGroupCount());
+        assertEquals(aggregator.getGroup(0), aggregator.getGroup(1));
+
+        final List<String> messages = cycle(aggregator, 7.4, 30, 21.5, 48.25);
+        assertEquals(Arrays.asList(
+                "buderus/system/sensors {\"timestamp\":1700000000000,\"temperatures.outdoor_t1\":7.4,\"temperatures.return\":30.0} 0 false",
+                "buderus/heatingCircuits/hc1 {\"timestamp\":1700000000000,\"roomtemperature\":21.5} 0 false",
+                "buderus/dhwCircuits/dhw1 {\"timestamp\":1700000000000,\"actualTemp\":48.25} 0 false"), messages);
+        // the documents are valid JSON
+        for (String message : messages)
+        {
+            new JSONObject(message.split(" ")[1]);
+        }
+    }
+
+    @Test
+    public void jsonWithoutTimestampsAndWithGateway() throws Exception
+    {
+        final AggregationConfig config = new AggregationConfig();
+        config.setTopic("{gateway}/values{group}");
+        config.setTimestamps(false);
+        config.setQos(1);
+        config.setRetained(true);
+        final List<ServiceMapping> mappings = sensors().subList(0, 2);
+        final Aggregator aggregator = new Aggregator(config, mappings, "house \"2\"");
+        final List<String> messages = cycle(aggregator, -3.5, 0.125);
+        assertEquals(1, messages.size());
+        assertEquals("house \"2\"/values/system/sensors {\"gateway\":\"house \\\"2\\\"\",\"temperatures.outdoor_t1\":-3.5,"
+                + "\"temperatures.return\":0.125} 1 true", messages.get(0));
+        final String document = messages.get(0).substring(messages.get(0).indexOf('{'), messages.get(0).lastIndexOf('}') + 1);
+        assertEquals("house \"2\"", new JSONObject(document).getString("gateway"));
+    }
+
+    @Test
+    public void lineProtocolWithEscaping() throws Exception
+    {
+        final AggregationConfig config = new AggregationConfig();
+        config.setFormat("lineProtocol");
+        config.setMeasurement("heat pump,1");
+        config.setTopic("influx");
+        final List<ServiceMapping> mappings = sensors().subList(0, 2);
+        mappings.get(1).setField("return temp=t,2");
+        final Aggregator aggregator = new Aggregator(config, mappings, "a b");
+        assertEquals(Collections.singletonList(
+                "influx heat\\ pump\\,1,gateway=a\\ b,group=/system/sensors temperatures.outdoor_t1=7.4,return\\ temp\\=t\\,2=8.0 "
+                        + MILLIS * 1_000_000L + " 0 false"), cycle(aggregator, 7.4, 8));
+
+        config.setTimestamps(false);
+        assertEquals(Collections.singletonList("influx heat\\ pump\\,1,group=/system/sensors temperatures.outdoor_t1=1.0 0 false"),
+                cycle(new Aggregator(config, sensors().subList(0, 1), null), 1));
+    }
+
+    @Test
+    public void explicitGroupsFieldsAndMappingsOnTheirOwn() throws Exception
+    {
+        final AggregationConfig config = new AggregationConfig();
+        config.setTimestamps(false);
+        config.setTopic("t/{group}");
+        final List<ServiceMapping> mappings = sensors();
+        mappings.get(0).setGroup("temps");
+        mappings.get(2).setGroup("temps");
+        mappings.get(2).setField("room\\\"");
+        mappings.get(3).setAggregate(false);
+        final Aggregator aggregator = new Aggregator(config, mappings, null);
+        assertEquals(2, aggregator.getGroupCount());
+        assertEquals(-1, aggregator.getGroup(3));
+        assertFalse(aggregator.isAggregated(3));
+        // explicit groups use the whole service path as the field
+        assertEquals(Arrays.asList(
+                "t/temps {\"system.sensors.temperatures.outdoor_t1\":1.0,\"room\\\\\\\"\":3.0} 0 false",
+                "t//system/sensors {\"temperatures.return\":2.0} 0 false"), cycle(aggregator, 1, 2, 3, 4));
+    }
+
+    @Test
+    public void rejectsValuesWhichCannotBeRepresented() throws Exception
+    {
+        final AggregationConfig config = new AggregationConfig();
+        config.setTimestamps(false);
+        final Aggregator aggregator = new Aggregator(config, sensors(), null);
+        aggregator.begin(MILLIS);
+        assertFalse(aggregator.add(0, Double.NaN));
+        assertFalse(aggregator.add(1, Double.POSITIVE_INFINITY));
+        assertFalse(aggregator.add(2, Double.NEGATIVE_INFINITY));
+        assertTrue(aggregator.add(3, 1e-7));
+        final RecordingBroker broker = new RecordingBroker();
+        final List<Integer> published = new ArrayList<>();
+        // a group without any valid value is not published at all
+        assertEquals(1, aggregator.publish(Collections.singletonList(broker), (index, value, nanos, accepted) -> {
+            assertTrue(accepted);
+            published.add(index);
+        }));
+        assertEquals(Collections.singletonList("buderus/dhwCircuits/dhw1 {\"actualTemp\":1.0E-7} 0 false"), broker._messages);
+        assertEquals(Collections.singletonList(3), published);
+    }
+
+    @Test
+    public void eachCycleStartsWithEmptyDocuments() throws Exception
+    {
+        final AggregationConfig config = new AggregationConfig();
+        config.setTimestamps(false);
+        final Aggregator aggregator = new Aggregator(config, sensors().subList(0, 2), null);
+        assertEquals(Collections.singletonList("buderus/system/sensors {\"temperatures.outdoor_t1\":1.0,\"temperatures.return\":2.0} 0 false"),
+                cycle(aggregator, 1, 2));
+        assertEquals(Collections.singletonList("buderus/system/sensors {\"temperatures.return\":4.0} 0 false"),
+                cycle(aggregator, Double.NaN, 4));
+        assertEquals(Collections.emptyList(), cycle(aggregator, Double.NaN, Double.NaN));
+
+        // a cycle which was never published does not leak into the next one
+        aggregator.begin(MILLIS);
+        aggregator.add(0, 9);
+        assertEquals(Collections.singletonList("buderus/system/sensors {\"temperatures.return\":5.0} 0 false"),
+                cycle(aggregator, Double.NaN, 5));
+    }
+
+    @Test
+    public void subtrees()
+    {
+        assertEquals("/system/sensors", Aggregator.subtree("/system/sensors/temperatures/outdoor_t1", 2));
+        assertEquals("/system", Aggregator.subtree("/system/sensors/temperatures/outdoor_t1", 1));
+        assertEquals("/system", Aggregator.subtree("/system/sensors/temperatures/outdoor_t1", 0));
+        assertEquals("/heatingCircuits", Aggregator.subtree("/heatingCircuits/hc1", 2));
+        assertEquals("/system", Aggregator.subtree("/system", 3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnUnknownFormat()
+    {
+        Aggregator.Format.parse("xml");
+    }
+}
@@ -0,0 +1,73 @@
+package de.hendriklipka.buderus;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class Buderus2MqttTest
+{
+    private static Map<String, Object> server(final String host)
+    {
+        final Map<String, Object> server = new LinkedHashMap<>();
+        server.put("server", host);
+        server.put("port", 1883);
+        return server;
+    }
+
+    /**
+     * Does what a reload does with the connections: keeps the matching ones, and creates the missing ones.
+     */
+    private static Map<String, Object> reload(final Map<String, Object> current, final List<?> rawServers)
+    {
+        final List<String> kept = Buderus2Mqtt.keptConnections(current, rawServers, rawServers.size());
+        final Map<String, Object> connections = new LinkedHashMap<>();
+        for (int i = 0; i < rawServers.size(); i++)
+        {
+            final String connection = null != kept.get(i) ? kept.get(i) : "new " + ((Map<?, ?>) rawServers.get(i)).get("server");
+            connections.put(connection, rawServers.get(i));
+        }
+        return connections;
+    }
+
+    @Test
+    public void keepsConnectionsOverReorderedReloads()
+    {
+        Map<String, Object> connections = new LinkedHashMap<>();
+        connections.put("a", server("a"));
+        connections.put("b", server("b"));
+
+        connections = reload(connections, Arrays.asList(server("b"), server("a"), server("c")));
+        assertEquals(Arrays.asList("b", "a", "new c"), Arrays.asList(connections.keySet().toArray()));
+
+        // again, so the pairs from the first reload are used
+        connections = reload(connections, Arrays.asList(server("c"), server("a"), server("b")));
+        assertEquals(Arrays.asList("new c", "a", "b"), Arrays.asList(connections.keySet().toArray()));
+        for (Map.Entry<String, Object> connection : connections.entrySet())
+        {
+            assertEquals(connection.getKey().replace("new ", ""), ((Map<?, ?>) connection.getValue()).get("server"));
+        }
+
+        final Map<String, Object> changed = server("a");
+        changed.put("port", 1884);
+        connections = reload(connections, Arrays.asList(changed, server("b")));
+        assertEquals(Arrays.asList("new a", "b"), Arrays.asList(connections.keySet().toArray()));
+    }
+
+    @Test
+    public void keepsOneConnectionPerServerWithTheSameConfiguration()
+    {
+        final Map<String, Object> current = new LinkedHashMap<>();
+        current.put("first", server("a"));
+        current.put("second", server("a"));
+        assertEquals(Arrays.asList("first", "second", null),
+                Buderus2Mqtt.keptConnections(current, Arrays.asList(server("a"), server("a"), server("a")), 3));
+        assertEquals(Collections.singletonList("first"), Buderus2Mqtt.keptConnections(current, Collections.singletonList(server("a")), 1));
+        assertEquals(Collections.emptyList(), Buderus2Mqtt.keptConnections(current, Collections.emptyList(), 0));
+    }
+}
@@ -0,0 +1,87 @@
+package de.hendriklipka.buderus;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MessageTemplateTest
+{
+    private static final String SERVICE = "/system/sensors/temperatures/outdoor_t1";
+
+    private static final List<String> TEMPLATES = Arrays.asList(
+            "",
+            "plain text",
+            "buderus{service}",
+            "{value_d}",
+            "{\"value\":{value_d},\"int\":{value_i},\"on\":{value_b},\"text\":\"{value_s}\"}",
+            "{service}={value_s} ({value_i}/{value_d}/{value_b}) {service}",
+            "{value_d}{value_d}{value_i}",
+            "{unknown} {value_x} {value_d {{value_i}} }",
+            "Au\u00dfentemperatur: {value_d} \u00b0C");
+
+    @Test
+    public void rendersLikeReplaceForFloatValues()
+    {
+        for (Object value : Arrays.asList(7.4f, -3276.8, 0.0, 21, "12.5", "not a number"))
+        {
+            assertSameAsReplace(new MessageParameters(SERVICE, ServiceType.FLOAT, value));
+        }
+    }
+
+    @Test
+    public void rendersLikeReplaceForStringValues()
+    {
+        for (String value : Arrays.asList("auto", "true", "42", "1.5", "", "Stra\u00dfe \u2600"))
+        {
+            assertSameAsReplace(new MessageParameters(SERVICE, ServiceType.STRING, value));
+        }
+    }
+
+    private static void assertSameAsReplace(final MessageParameters params)
+    {
+        final MessageBuffer buffer = new MessageBuffer(4);
+        for (String template : TEMPLATES)
+        {
+            final String expected = params.replace(template);
+            final MessageTemplate compiled = MessageTemplate.compile(template, SERVICE);
+            compiled.render(params, buffer);
+            assertArrayEquals(template, expected.getBytes(StandardCharsets.UTF_8), buffer.toByteArray());
+            assertEquals(template, expected, compiled.renderToString(params, buffer));
+        }
+    }
+
+    @Test
+    public void templateWithoutValuesIsStatic()
+    {
+        final MessageTemplate template = MessageTemplate.compile("buderus{service}/state", SERVICE);
+        assertTrue(template.isStatic());
+        assertEquals("buderus" + SERVICE + "/state", template.getStaticText());
+        assertEquals("buderus{service}/state", template.getTemplate());
+    }
+
+    @Test
+    public void templateWithValuesIsNotStatic()
+    {
+        final MessageTemplate template = MessageTemplate.compile("{service}: {value_s}", SERVICE);
+        assertFalse(template.isStatic());
+        assertNull(template.getStaticText());
+    }
+
+    @Test
+    public void renderReplacesThePreviousContent()
+    {
+        final MessageBuffer buffer = new MessageBuffer();
+        final MessageTemplate template = MessageTemplate.compile("{value_i}", SERVICE);
+        template.render(new MessageParameters(SERVICE, ServiceType.FLOAT, 12345.0), buffer);
+        template.render(new MessageParameters(SERVICE, ServiceType.FLOAT, 7.0), buffer);
+        assertEquals("7", buffer.toString());
+    }
+}
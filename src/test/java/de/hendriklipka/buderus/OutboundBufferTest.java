@@ -0,0 +1,257 @@
+package de.hendriklipka.buderus;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OutboundBufferTest
+{
+    private static final int HEADER_SIZE = 64;
+
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder();
+
+    /**
+     * A message as sent, for comparing.
+     */
+    private static String describe(final String topic, final MqttMessage message)
+    {
+        return topic + '|' + new String(message.getPayload(), StandardCharsets.UTF_8) + '|' + message.getQos() + '|' + message.isRetained();
+    }
+
+    private static MqttMessage message(final String payload, final int qos, final boolean retained)
+    {
+        final MqttMessage message = new MqttMessage(payload.getBytes(StandardCharsets.UTF_8));
+        message.setQos(qos);
+        message.setRetained(retained);
+        return message;
+    }
+
+    private static String sendOldest(final OutboundBuffer buffer)
+    {
+        final List<String> sent = new ArrayList<>();
+        assertTrue(buffer.sendOldest((topic, message) -> sent.add(describe(topic, message))));
+        return sent.get(0);
+    }
+
+    private File file()
+    {
+        return new File(_folder.getRoot(), "buffer/mqtt.buf");
+    }
+
+    @Test
+    public void sendsMessagesInOrderWithTheirSettings() throws IOException
+    {
+        final OutboundBuffer buffer = new OutboundBuffer(file(), 4096);
+        assertTrue(buffer.isEmpty());
+        assertTrue(buffer.add("buderus/a", message("7.4", 0, false)));
+        assertTrue(buffer.add("buderus/\u00e4", message("", 1, true)));
+        assertTrue(buffer.add("buderus/c", message("{\"value\":\"\u20ac\"}", 2, false)));
+        assertEquals(3, buffer.size());
+        assertEquals("buderus/a|7.4|0|false", sendOldest(buffer));
+        assertEquals("buderus/\u00e4||1|true", sendOldest(buffer));
+        assertEquals("buderus/c|{\"value\":\"\u20ac\"}|2|false", sendOldest(buffer));
+        assertTrue(buffer.isEmpty());
+        assertFalse(buffer.sendOldest((topic, message) -> true));
+    }
+
+    @Test
+    public void keepsTheMessageWhenTheSenderDoesNotAcceptIt() throws IOException
+    {
+        final OutboundBuffer buffer = new OutboundBuffer(file(), 4096);
+        buffer.add("a", message("1", 0, false));
+        assertFalse(buffer.sendOldest((topic, message) -> false));
+        assertEquals(1, buffer.size());
+        assertEquals("a|1|0|false", sendOldest(buffer));
+    }
+
+    @Test
+    public void rejectsMessagesLargerThanHalfTheBuffer() throws IOException
+    {
+        final OutboundBuffer buffer = new OutboundBuffer(file(), 256);
+        assertFalse(buffer.add("a", message(new String(new char[200]), 0, false)));
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsATooSmallCapacity() throws IOException
+    {
+        new OutboundBuffer(file(), 8);
+    }
+
+    @Test
+    public void dropsTheOldestMessagesWhenFull() throws IOException
+    {
+        final OutboundBuffer buffer = new OutboundBuffer(file(), 256);
+        for (int i = 0; i < 100; i++)
+        {
+            assertTrue(buffer.add("topic", message(Integer.toString(i), 0, false)));
+        }
+        final long dropped = buffer.getDroppedCount();
+        assertEquals(100, dropped + buffer.size());
+        for (long i = dropped; i < 100; i++)
+        {
+            assertEquals("topic|" + i + "|0|false", sendOldest(buffer));
+        }
+        assertTrue(buffer.isEmpty());
+    }
+
+    /**
+     * Random adds and sends of messages of random size on a small ring, so records wrap around its end in every
+     * possible way, compared against a plain queue; the file is reopened now and then.
+     */
+    @Test
+    public void wrapsAroundLikeAQueue() throws IOException
+    {
+        final Random random = new Random(42);
+        final Deque<String> expected = new ArrayDeque<>();
+        OutboundBuffer buffer = new OutboundBuffer(file(), 512);
+        long counter = 0;
+        for (int op = 0; op < 200000; op++)
+        {
+            if (random.nextInt(100) < 55)
+            {
+                final String topic = "t" + random.nextInt(1000);
+                final StringBuilder payload = new StringBuilder(Long.toString(counter++));
+                for (int n = random.nextInt(random.nextBoolean() ? 8 : 200); n > 0; n--)
+                {
+                    payload.append('x');
+                }
+                final MqttMessage message = message(payload.toString(), random.nextInt(3), random.nextBoolean());
+                final long dropped = buffer.getDroppedCount();
+                assertTrue(buffer.add(topic, message));
+                for (long n = buffer.getDroppedCount() - dropped; n > 0; n--)
+                {
+                    expected.removeFirst();
+                }
+                expected.addLast(describe(topic, message));
+            }
+            else if (!expected.isEmpty())
+            {
+                assertEquals(expected.removeFirst(), sendOldest(buffer));
+            }
+            else
+            {
+                assertTrue(buffer.isEmpty());
+            }
+            assertEquals(expected.size(), buffer.size());
+            if (0 == random.nextInt(5000))
+            {
+                buffer.flush();
+                buffer = new OutboundBuffer(file(), 512);
+                assertEquals(expected.size(), buffer.size());
+            }
+        }
+        while (!expected.isEmpty())
+        {
+            assertEquals(expected.removeFirst(), sendOldest(buffer));
+        }
+    }
+
+    @Test
+    public void continuesWithTheMessagesAfterReopening() throws IOException
+    {
+        final OutboundBuffer first = new OutboundBuffer(file(), 256);
+        // move the ring through the end of the data area first; it starts over at 0 whenever it is empty
+        first.add("topic", message("message 0", 1, false));
+        for (int i = 1; i <= 20; i++)
+        {
+            first.add("topic", message("message " + i, 1, false));
+            sendOldest(first);
+        }
+        first.add("a", message("1", 1, false));
+        first.add("b", message("2", 0, true));
+        first.flush();
+
+        final OutboundBuffer second = new OutboundBuffer(file(), 256);
+        assertEquals(3, second.size());
+        assertEquals("topic|message 20|1|false", sendOldest(second));
+        assertEquals("a|1|1|false", sendOldest(second));
+        assertEquals("b|2|0|true", sendOldest(second));
+        assertTrue(second.isEmpty());
+    }
+
+    @Test
+    public void startsOverWithADifferentCapacity() throws IOException
+    {
+        final OutboundBuffer first = new OutboundBuffer(file(), 256);
+        first.add("a", message("1", 0, false));
+        first.flush();
+        assertTrue(new OutboundBuffer(file(), 512).isEmpty());
+    }
+
+    @Test
+    public void startsOverWithACorruptHeader() throws IOException
+    {
+        // head, tail, used and count out of range, or not matching each other
+        final int[][] corruptions = {{12, 300}, {16, -1}, {20, 1000}, {24, -5}, {20, 0}, {24, 0}, {24, 100}, {0, 0}};
+        for (int[] corruption : corruptions)
+        {
+            final OutboundBuffer buffer = new OutboundBuffer(file(), 256);
+            buffer.add("a", message("1", 0, false));
+            buffer.flush();
+            try (RandomAccessFile raf = new RandomAccessFile(file(), "rw"))
+            {
+                raf.seek(corruption[0]);
+                raf.writeInt(corruption[1]);
+            }
+            final OutboundBuffer reopened = new OutboundBuffer(file(), 256);
+            assertTrue(corruption[0] + "=" + corruption[1], reopened.isEmpty());
+            assertTrue(reopened.add("b", message("2", 0, false)));
+            assertEquals("b|2|0|false", sendOldest(reopened));
+            assertTrue(file().delete());
+        }
+    }
+
+    @Test
+    public void startsOverWithACorruptRecord() throws IOException
+    {
+        for (int size : new int[]{0, 3, -7, 100000, 6})
+        {
+            final OutboundBuffer buffer = new OutboundBuffer(file(), 256);
+            buffer.add("a", message("1", 0, false));
+            buffer.add("b", message("2", 0, false));
+            buffer.flush();
+            try (RandomAccessFile raf = new RandomAccessFile(file(), "rw"))
+            {
+                raf.seek(HEADER_SIZE);
+                raf.writeInt(size);
+            }
+            final OutboundBuffer reopened = new OutboundBuffer(file(), 256);
+            assertEquals(2, reopened.size());
+            assertFalse(Integer.toString(size), reopened.sendOldest((topic, message) -> true));
+            assertTrue(reopened.isEmpty());
+            assertTrue(reopened.add("c", message("3", 0, false)));
+            assertEquals("c|3|0|false", sendOldest(reopened));
+            assertTrue(file().delete());
+        }
+    }
+
+    @Test
+    public void keepsThePayloadBytes() throws IOException
+    {
+        final byte[] payload = new byte[100];
+        new Random(1).nextBytes(payload);
+        final OutboundBuffer buffer = new OutboundBuffer(file(), 1024);
+        buffer.add("binary", new MqttMessage(payload));
+        final List<byte[]> sent = new ArrayList<>();
+        assertTrue(buffer.sendOldest((topic, message) -> sent.add(message.getPayload())));
+        assertArrayEquals(payload, sent.get(0));
+    }
+}
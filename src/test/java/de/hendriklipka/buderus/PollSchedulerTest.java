@@ -0,0 +1,125 @@
+package de.hendriklipka.buderus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class PollSchedulerTest
+{
+    @Test
+    public void pollsEachMappingOnItsOwnInterval()
+    {
+        // intervals below, at and well above the size of the wheel
+        final List<ServiceMapping> mappings = mappings(0, 5, 64, 100, 300);
+        final List<List<Integer>> ticks = run(new PollScheduler(null, mappings, 10, false, null), mappings.size(), 1000);
+        assertEquals(ticksFrom(1, 10, 1000), ticks.get(0));
+        assertEquals(ticksFrom(1, 5, 1000), ticks.get(1));
+        assertEquals(ticksFrom(1, 64, 1000), ticks.get(2));
+        assertEquals(ticksFrom(1, 100, 1000), ticks.get(3));
+        assertEquals(ticksFrom(1, 300, 1000), ticks.get(4));
+    }
+
+    @Test
+    public void spreadsMappingsWithTheSameIntervalEvenly()
+    {
+        final List<ServiceMapping> mappings = mappings(10, 10, 10, 10, 10, 90, 90, 90);
+        final List<List<Integer>> ticks = run(new PollScheduler(null, mappings, 10, true, null), mappings.size(), 500);
+        for (int i = 0; i < 5; i++)
+        {
+            assertEquals(ticksFrom(1 + 2 * i, 10, 500), ticks.get(i));
+        }
+        for (int i = 0; i < 3; i++)
+        {
+            assertEquals(ticksFrom(1 + 30 * i, 90, 500), ticks.get(5 + i));
+        }
+    }
+
+    @Test
+    public void reportsDueMappingsInAscendingOrder()
+    {
+        final List<ServiceMapping> mappings = mappings(3, 1, 3, 1, 2);
+        final PollScheduler scheduler = new PollScheduler(null, mappings, 10, false, null);
+        for (int tick = 1; tick <= 20; tick++)
+        {
+            final int count = scheduler.advance();
+            final int[] due = Arrays.copyOf(scheduler.getDue(), count);
+            final int[] sorted = due.clone();
+            Arrays.sort(sorted);
+            assertTrue(Arrays.equals(sorted, due));
+        }
+    }
+
+    @Test
+    public void pollsTheMappingsOfAnAggregationGroupTogether()
+    {
+        final List<ServiceMapping> mappings = new ArrayList<>();
+        mappings.add(mapping("/system/sensors/temperatures/outdoor_t1", 10));
+        mappings.add(mapping("/heatingCircuits/hc1/roomtemperature", 10));
+        mappings.add(mapping("/system/sensors/temperatures/supply_t1", 10));
+        mappings.add(mapping("/heatingCircuits/hc1/actualSupplyTemperature", 10));
+        mappings.add(mapping("/dhwCircuits/dhw1/actualTemp", 10));
+        final Aggregator aggregator = new Aggregator(new AggregationConfig(), mappings, null);
+        final List<List<Integer>> ticks = run(new PollScheduler(null, mappings, 10, true, aggregator), mappings.size(), 100);
+        assertEquals(ticks.get(0), ticks.get(2));
+        assertEquals(ticks.get(1), ticks.get(3));
+        // three groups spread over the interval
+        assertEquals(ticksFrom(1, 10, 100), ticks.get(0));
+        assertEquals(ticksFrom(4, 10, 100), ticks.get(1));
+        assertEquals(ticksFrom(7, 10, 100), ticks.get(4));
+    }
+
+    /**
+     * @return for each mapping the ticks in which it was due
+     */
+    private static List<List<Integer>> run(final PollScheduler scheduler, final int mappings, final int ticks)
+    {
+        final List<List<Integer>> result = new ArrayList<>();
+        for (int i = 0; i < mappings; i++)
+        {
+            result.add(new ArrayList<>());
+        }
+        for (int tick = 1; tick <= ticks; tick++)
+        {
+            final int count = scheduler.advance();
+            for (int n = 0; n < count; n++)
+            {
+                result.get(scheduler.getDue()[n]).add(tick);
+            }
+        }
+        return result;
+    }
+
+    private static List<Integer> ticksFrom(final int first, final int interval, final int last)
+    {
+        final List<Integer> ticks = new ArrayList<>();
+        for (int tick = first; tick <= last; tick += interval)
+        {
+            ticks.add(tick);
+        }
+        return ticks;
+    }
+
+    private static List<ServiceMapping> mappings(final int... intervals)
+    {
+        final List<ServiceMapping> mappings = new ArrayList<>();
+        for (int i = 0; i < intervals.length; i++)
+        {
+            mappings.add(mapping("/system/sensors/temperatures/t" + i, intervals[i]));
+        }
+        return mappings;
+    }
+
+    private static ServiceMapping mapping(final String service, final int interval)
+    {
+        final ServiceMapping mapping = new ServiceMapping();
+        mapping.setServiceName(service);
+        mapping.setType("float");
+        mapping.setIntervalSeconds(interval);
+        return mapping;
+    }
+}
@@ -0,0 +1,154 @@
+package de.hendriklipka.buderus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import de.hendriklipka.buderus.km200.KM200CommObject;
+import de.hendriklipka.buderus.km200.KM200Device;
+
+public class ValueCacheTest
+{
+    private static final String SERVICE = "/system/sensors/temperatures/outdoor_t1";
+
+    private final ExecutorService _executor = Executors.newCachedThreadPool();
+
+    @After
+    public void shutdown()
+    {
+        _executor.shutdownNow();
+    }
+
+    private static KM200Device device()
+    {
+        final KM200Device device = new KM200Device();
+        final Map<String, KM200CommObject> services = new HashMap<>();
+        services.put(SERVICE, new KM200CommObject(SERVICE, "floatValue", 1, 0));
+        device.replaceServices(services);
+        return device;
+    }
+
+    private static ValueCache cache(final KM200Device device)
+    {
+        return new ValueCache(device, Collections.singletonMap("floatValue", 60));
+    }
+
+    @Test
+    public void servesFreshValuesFromTheCache()
+    {
+        final KM200Device device = device();
+        final ValueCache cache = cache(device);
+        final AtomicInteger loads = new AtomicInteger();
+        assertEquals(7.5, cache.get(SERVICE, () -> 7.5 + loads.getAndIncrement()), 0);
+        assertEquals(7.5, cache.get(SERVICE, () -> 7.5 + loads.getAndIncrement()), 0);
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(7.5f, device.getServices().get(SERVICE).getFloatValue(), 0);
+
+        cache.invalidate(SERVICE);
+        assertEquals(8.5, cache.get(SERVICE, () -> 7.5 + loads.getAndIncrement()), 0);
+        assertEquals(2, cache.getLoadCount());
+    }
+
+    @Test
+    public void failedLoadsAreNotCached()
+    {
+        final ValueCache cache = cache(device());
+        assertNull(cache.get(SERVICE, () -> null));
+        assertEquals(3.0, cache.get(SERVICE, () -> 3.0), 0);
+        assertEquals(2, cache.getLoadCount());
+    }
+
+    @Test
+    public void withoutATtlEachRequestLoads()
+    {
+        final ValueCache cache = new ValueCache(device(), null);
+        cache.get(SERVICE, () -> 1.0);
+        cache.get(SERVICE, () -> 2.0);
+        assertEquals(2, cache.getLoadCount());
+        assertEquals(0, cache.getHitCount());
+    }
+
+    @Test(timeout = 10000)
+    public void concurrentRequestsShareOneLoad() throws Exception
+    {
+        final ValueCache cache = cache(device());
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Future<Double> first = _executor.submit(() -> cache.get(SERVICE, () -> {
+            loading.countDown();
+            await(release);
+            return 4.0;
+        }));
+        loading.await();
+        final Future<Double> second = _executor.submit(() -> cache.get(SERVICE, () -> 99.0));
+        while (0 == cache.getCoalescedCount())
+        {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        assertEquals(4.0, first.get(), 0);
+        assertEquals(4.0, second.get(), 0);
+        assertEquals(1, cache.getLoadCount());
+    }
+
+    /**
+     * A poll reads the old value, a command writes a new one and invalidates the service, then the poll completes: its
+     * value must neither be cached nor overwrite the written value.
+     */
+    @Test(timeout = 10000)
+    public void loadStartedBeforeAnInvalidationIsNotStored() throws Exception
+    {
+        final KM200Device device = device();
+        final ValueCache cache = cache(device);
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Future<Double> poll = _executor.submit(() -> cache.get(SERVICE, () -> {
+            loading.countDown();
+            await(release);
+            return 20.0;
+        }));
+        loading.await();
+
+        // the write, like CommandHandler does it
+        device.getServices().get(SERVICE).setValue(22.0);
+        cache.invalidate(SERVICE);
+        release.countDown();
+
+        // the poll itself gets what it read
+        assertEquals(20.0, poll.get(), 0);
+        assertEquals(22.0f, device.getServices().get(SERVICE).getFloatValue(), 0);
+        // the next request asks the device again
+        assertEquals(22.0, cache.get(SERVICE, () -> 22.0), 0);
+        assertEquals(2, cache.getLoadCount());
+        assertEquals(22.0, cache.get(SERVICE, () -> 99.0), 0);
+        assertEquals(1, cache.getHitCount());
+        final double[] visited = new double[1];
+        cache.forEach((service, value, epochMillis) -> visited[0] = value);
+        assertEquals(22.0, visited[0], 0);
+    }
+
+    private static void await(final CountDownLatch latch)
+    {
+        try
+        {
+            latch.await(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
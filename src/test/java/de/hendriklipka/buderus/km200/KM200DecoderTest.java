@@ -0,0 +1,128 @@
+package de.hendriklipka.buderus.km200;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Test;
+
+public class KM200DecoderTest
+{
+    private static final byte[] KEY = new byte[32];
+
+    static
+    {
+        for (int i = 0; i < KEY.length; i++)
+        {
+            KEY[i] = (byte) (i * 7 + 3);
+        }
+    }
+
+    @Test
+    public void zeroPaddingStartStripsTrailingZeros()
+    {
+        assertEquals(3, KM200Decoder.zeroPaddingStart(new byte[]{1, 2, 3, 0, 0}, 5));
+        assertEquals(3, KM200Decoder.zeroPaddingStart(new byte[]{1, 2, 3}, 3));
+        assertEquals(0, KM200Decoder.zeroPaddingStart(new byte[]{0, 0, 0}, 3));
+        assertEquals(0, KM200Decoder.zeroPaddingStart(new byte[0], 0));
+    }
+
+    @Test
+    public void zeroPaddingStartKeepsInnerZerosAndIgnoresBytesBeyondLength()
+    {
+        assertEquals(3, KM200Decoder.zeroPaddingStart(new byte[]{1, 0, 2, 0, 5}, 4));
+    }
+
+    @Test
+    public void decodesBase64InPlace()
+    {
+        for (String text : Arrays.asList("", "a", "ab", "abc", "abcd", "{\"value\":7.4}"))
+        {
+            final byte[] plain = text.getBytes(StandardCharsets.UTF_8);
+            final byte[] buffer = Base64.getEncoder().encode(plain);
+            final int length = KM200Decoder.decodeBase64InPlace(buffer, buffer.length);
+            assertArrayEquals(text, plain, Arrays.copyOf(buffer, length));
+        }
+    }
+
+    @Test
+    public void base64SkipsLineBreaksAndAcceptsUrlSafeAlphabet()
+    {
+        final byte[] plain = new byte[]{(byte) 0xfb, (byte) 0xff, 0x10, 0x20, 0x30, 0x40};
+        final String encoded = Base64.getUrlEncoder().encodeToString(plain);
+        final byte[] buffer = (encoded.substring(0, 4) + "\r\n" + encoded.substring(4)).getBytes(StandardCharsets.US_ASCII);
+        final int length = KM200Decoder.decodeBase64InPlace(buffer, buffer.length);
+        assertArrayEquals(plain, Arrays.copyOf(buffer, length));
+    }
+
+    @Test
+    public void decodesAndStripsZeroPadding() throws Exception
+    {
+        for (String json : Arrays.asList("{}", "{\"value\":7.4}", "{\"id\":\"/system\",\"type\":\"refEnum\"}xx", "0123456789abcdef"))
+        {
+            final KM200Message message = new KM200Message();
+            message.setRaw(encrypt(json));
+            assertTrue(new KM200Decoder(KEY).decode(message, StandardCharsets.UTF_8));
+            assertEquals(json, new String(message.getData(), 0, message.getLength(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void passesUnencryptedDataThrough()
+    {
+        // a decoded length which is no multiple of the block size is not encrypted
+        final KM200Message message = new KM200Message();
+        message.setRaw(Base64.getEncoder().encode("plain".getBytes(StandardCharsets.UTF_8)));
+        assertTrue(new KM200Decoder(KEY).decode(message, StandardCharsets.UTF_8));
+        assertEquals("plain", new String(message.getData(), 0, message.getLength(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void decoderIsReusableForMessagesOfDifferentSize() throws Exception
+    {
+        final KM200Decoder decoder = new KM200Decoder(KEY);
+        final KM200Message message = new KM200Message();
+        final StringBuilder longJson = new StringBuilder("{\"values\":[");
+        for (int i = 0; i < 500; i++)
+        {
+            longJson.append(i).append(',');
+        }
+        longJson.append("0]}");
+        for (String json : Arrays.asList(longJson.toString(), "{\"value\":1}", longJson.toString()))
+        {
+            message.setRaw(encrypt(json));
+            assertTrue(decoder.decode(message, StandardCharsets.UTF_8));
+            assertEquals(json, new String(message.getData(), 0, message.getLength(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void wrongKeyDoesNotGiveThePlainText() throws Exception
+    {
+        final KM200Message message = new KM200Message();
+        message.setRaw(encrypt("{\"value\":7.4}"));
+        final byte[] otherKey = KEY.clone();
+        otherKey[0]++;
+        new KM200Decoder(otherKey).decode(message, StandardCharsets.UTF_8);
+        assertFalse("{\"value\":7.4}".equals(new String(message.getData(), 0, message.getLength(), StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Encrypts like the device: zero padded to the AES block size, AES/ECB, then Base64.
+     */
+    private static byte[] encrypt(final String json) throws Exception
+    {
+        final byte[] plain = json.getBytes(StandardCharsets.UTF_8);
+        final Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(KEY, "AES"));
+        return Base64.getEncoder().encode(cipher.doFinal(Arrays.copyOf(plain, (plain.length + 15) / 16 * 16)));
+    }
+}
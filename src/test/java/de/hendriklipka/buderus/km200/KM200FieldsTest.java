@@ -0,0 +1,215 @@
+package de.hendriklipka.buderus.km200;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class KM200FieldsTest
+{
+    private final KM200Fields _fields = new KM200Fields();
+
+    private boolean parse(final String json)
+    {
+        // a larger buffer, like the pooled message buffers, with garbage after the message
+        final byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        final byte[] buffer = Arrays.copyOf(bytes, bytes.length + 16);
+        Arrays.fill(buffer, bytes.length, buffer.length, (byte) '}');
+        return _fields.parse(buffer, bytes.length, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void floatValue()
+    {
+        assertTrue(parse("{\"id\":\"/system/sensors/temperatures/outdoor_t1\",\"type\":\"floatValue\",\"writeable\":1,"
+                + "\"recordable\":0,\"value\":7.4,\"unitOfMeasure\":\"C\",\"minValue\":-20,\"maxValue\":30.5,"
+                + "\"state\":[{\"open\":-3276.8},{\"short\":3276.7}]}"));
+        assertEquals("/system/sensors/temperatures/outdoor_t1", _fields.getId());
+        assertSame("floatValue", _fields.getType());
+        assertTrue(_fields.isSimpleType());
+        assertTrue(_fields.hasNumericValue());
+        assertFalse(_fields.hasStringValue());
+        assertEquals(7.4, _fields.getNumericValue(), 0);
+        assertEquals(1, _fields.getWriteable());
+        assertEquals(0, _fields.getRecordable());
+        assertTrue(_fields.hasRange());
+        assertEquals(-20, _fields.getMinValue(), 0);
+        assertEquals(30.5, _fields.getMaxValue(), 0);
+        assertNull(_fields.getValueState());
+    }
+
+    @Test
+    public void stateOfASensorFault()
+    {
+        assertTrue(parse("{ \"id\" : \"/system/sensors/temperatures/return\" , \"value\" : -3276.8 ,\n"
+                + "  \"state\" : [ {\"open\" : -3276.8} , {\"short\":3276.7}, \"other\" ] }"));
+        assertEquals("open", _fields.getValueState());
+        assertFalse(_fields.hasRange());
+    }
+
+    @Test
+    public void stringValue()
+    {
+        assertTrue(parse("{\"id\":\"/heatingCircuits/hc1/operationMode\",\"type\":\"stringValue\",\"writeable\":1,"
+                + "\"value\":\"auto\",\"allowedValues\":[\"manual\",\"auto\"]}"));
+        assertTrue(_fields.hasStringValue());
+        assertFalse(_fields.hasNumericValue());
+        assertEquals("auto", _fields.getStringValue());
+        assertNull(_fields.getValueState());
+    }
+
+    @Test
+    public void complexTypesAreSkipped()
+    {
+        assertTrue(parse("{\"id\":\"/system/appliance/errorList\",\"type\":\"errorList\",\"values\":[{\"dcd\":\"A11\","
+                + "\"ccd\":1010,\"t\":\"2020-06-22T22:12:00\"},[[],{}],null,true,false,-1.5e-3],\"value\":{\"a\":[1,\"]\"]}}"));
+        assertSame("errorList", _fields.getType());
+        assertFalse(_fields.isSimpleType());
+        assertFalse(_fields.hasNumericValue());
+        assertFalse(_fields.hasStringValue());
+        assertNull(_fields.getStringValue());
+    }
+
+    @Test
+    public void emptyObjectAndUnknownType()
+    {
+        assertTrue(parse("{}"));
+        assertNull(_fields.getId());
+        assertNull(_fields.getType());
+        assertTrue(parse("{\"type\":\"someNewType\"}"));
+        assertEquals("someNewType", _fields.getType());
+        assertFalse(_fields.isSimpleType());
+    }
+
+    @Test
+    public void escapesAreResolvedLikeOrgJson()
+    {
+        for (String json : Arrays.asList(
+                "{\"id\":\"/a\\/b\",\"value\":\"x\\\"y\\\\z\"}",
+                "{\"id\":\"tab\\there\",\"value\":\"\\b\\f\\n\\r\\t\"}",
+                "{\"id\":\"\\u00e4\\u00F6\\u00fc \\u20ac\",\"value\":\"\\ud83d\\ude00\"}",
+                "{\"id\":\"\\u0041\",\"value\":\"end\\u0021\"}",
+                "{\"id\":\"\u00e4\u00f6\u00fc\",\"value\":\"unescaped \u20ac\",\"type\":\"float\\u0056alue\"}"))
+        {
+            assertTrue(json, parse(json));
+            final JSONObject expected = new JSONObject(json);
+            assertEquals(json, expected.getString("id"), _fields.getId());
+            assertEquals(json, expected.getString("value"), _fields.getStringValue());
+            assertEquals(json, expected.optString("type", null), _fields.getType());
+        }
+    }
+
+    @Test
+    public void numbersAreParsedLikeDoubleParseDouble()
+    {
+        for (String number : Arrays.asList("0", "-0", "7", "-7.4", "3276.7", "0.1", "0.30000000000000004", "1e3", "1E+3",
+                "-2.5e-3", "123456789012345", "1234567890123456", "12345678901234567890", "0.000000000000000000000001",
+                "1.7976931348623157e308", "4.9e-324", "99999999999999999999.99999", "9007199254740993"))
+        {
+            assertNumber(number);
+        }
+    }
+
+    @Test
+    public void randomNumbersAreParsedLikeDoubleParseDouble()
+    {
+        final Random random = new Random(42);
+        for (int i = 0; i < 200000; i++)
+        {
+            final StringBuilder number = new StringBuilder();
+            if (random.nextBoolean())
+            {
+                number.append('-');
+            }
+            number.append(random.nextInt(100000));
+            if (random.nextInt(4) > 0)
+            {
+                number.append('.');
+                final int scale = 1 + random.nextInt(random.nextBoolean() ? 4 : 20);
+                for (int d = 0; d < scale; d++)
+                {
+                    number.append((char) ('0' + random.nextInt(10)));
+                }
+            }
+            if (0 == random.nextInt(10))
+            {
+                number.append('e').append(random.nextInt(40) - 20);
+            }
+            assertNumber(number.toString());
+        }
+    }
+
+    private void assertNumber(final String number)
+    {
+        assertTrue(number, parse("{\"value\":" + number + ",\"minValue\":" + number + ",\"maxValue\":1}"));
+        assertTrue(number, _fields.hasNumericValue());
+        assertEquals(number, Double.doubleToLongBits(Double.parseDouble(number)), Double.doubleToLongBits(_fields.getNumericValue()));
+        assertEquals(number, Double.doubleToLongBits(Double.parseDouble(number)), Double.doubleToLongBits(_fields.getMinValue()));
+    }
+
+    @Test
+    public void malformedInputIsRejected()
+    {
+        for (String json : Arrays.asList(
+                "",
+                "[]",
+                "{",
+                "{\"id\"",
+                "{\"id\":",
+                "{\"id\" \"x\"}",
+                "{\"id\":\"x\"",
+                "{\"id\":\"x\",}",
+                "{\"id\":\"x\" \"type\":\"y\"}",
+                "{\"id\":\"unterminated}",
+                "{\"id\":5}",
+                "{\"type\":true}",
+                "{id:\"x\"}",
+                "{\"value\":-}",
+                "{\"value\":1.}",
+                "{\"value\":1e}",
+                "{\"value\":.5}",
+                "{\"value\":[1,2}",
+                "{\"other\":{\"a\":1}",
+                "{\"value\":\"\\u12\"}",
+                "{\"value\":\"\\u12",
+                "{\"value\":\"\\uzzzz\"}",
+                "{\"id\":\"\\u00g0\"}",
+                "{\"type\":\"\\x\"}",
+                "{\"other\":\"\\q\"}",
+                "{\"value\":\"trailing backslash\\"))
+        {
+            assertFalse(json, parse(json));
+        }
+    }
+
+    @Test
+    public void malformedEscapeFallsBackToTheFullParser()
+    {
+        final KM200Message message = new KM200Message();
+        final byte[] data = "{\"id\":\"/bad\\u12\",\"value\":1.5}".getBytes(StandardCharsets.UTF_8);
+        message.setDecoded(data, data.length, StandardCharsets.UTF_8);
+        assertNull(message.fields());
+    }
+
+    @Test
+    public void instanceIsReusable()
+    {
+        assertTrue(parse("{\"id\":\"/a\",\"type\":\"floatValue\",\"value\":1,\"writeable\":1,\"minValue\":0,\"maxValue\":2,"
+                + "\"state\":[{\"open\":1}]}"));
+        assertTrue(parse("{\"id\":\"/b\",\"value\":\"x\"}"));
+        assertEquals("/b", _fields.getId());
+        assertNull(_fields.getType());
+        assertEquals(0, _fields.getWriteable());
+        assertFalse(_fields.hasRange());
+        assertNull(_fields.getValueState());
+        assertEquals("x", _fields.getStringValue());
+    }
+}
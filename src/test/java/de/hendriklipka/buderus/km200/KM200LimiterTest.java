@@ -0,0 +1,180 @@
+package de.hendriklipka.buderus.km200;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class KM200LimiterTest
+{
+    private static KM200HttpSettings settings(final int maxConnections, final boolean adaptive, final int maxRequestsPerSecond)
+    {
+        final KM200HttpSettings settings = new KM200HttpSettings();
+        settings.setMaxConnections(maxConnections);
+        settings.setAdaptiveLimit(adaptive);
+        settings.setInitialConcurrency(maxConnections);
+        settings.setMaxRequestsPerSecond(maxRequestsPerSecond);
+        return settings;
+    }
+
+    /* a lost permit would block the last acquire for good */
+    @Test(timeout = 10000)
+    public void interruptWhileWaitingForTheRateReturnsThePermit() throws Exception
+    {
+        final KM200Limiter limiter = new KM200Limiter(settings(1, false, 2));
+        limiter.release(limiter.acquire(), KM200Limiter.Outcome.SUCCESS);
+
+        // the next start is half a second away, interrupt the request while it waits for it
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        final Thread waiting = new Thread(() -> {
+            try
+            {
+                limiter.acquire();
+            }
+            catch (InterruptedException e)
+            {
+                interrupted.set(true);
+            }
+        });
+        waiting.start();
+        while (limiter.getInFlight() == 0)
+        {
+            Thread.sleep(1);
+        }
+        waiting.interrupt();
+        waiting.join(5000);
+        assertTrue(interrupted.get());
+        assertEquals(0, limiter.getInFlight());
+
+        final long start = limiter.acquire();
+        assertEquals(1, limiter.getInFlight());
+        limiter.release(start, KM200Limiter.Outcome.SUCCESS);
+    }
+
+    @Test(timeout = 10000)
+    public void interruptWhileWaitingForAPermitTakesNone() throws Exception
+    {
+        final KM200Limiter limiter = new KM200Limiter(settings(1, false, 0));
+        final long first = limiter.acquire();
+        final CountDownLatch started = new CountDownLatch(1);
+        final Thread waiting = new Thread(() -> {
+            started.countDown();
+            try
+            {
+                limiter.acquire(true);
+            }
+            catch (InterruptedException e)
+            {
+                // expected
+            }
+        });
+        waiting.start();
+        started.await();
+        waiting.interrupt();
+        waiting.join(5000);
+        limiter.release(first, KM200Limiter.Outcome.SUCCESS);
+        assertEquals(0, limiter.getInFlight());
+        limiter.release(limiter.acquire(), KM200Limiter.Outcome.SUCCESS);
+    }
+
+    /**
+     * Fills the limiter up to its limit, then ends the oldest request successfully.
+     */
+    private static void saturatedRelease(final KM200Limiter limiter, final Deque<Long> started) throws InterruptedException
+    {
+        while (limiter.getInFlight() < limiter.getLimit())
+        {
+            started.addLast(limiter.acquire());
+        }
+        limiter.release(started.removeFirst(), KM200Limiter.Outcome.SUCCESS);
+    }
+
+    @Test
+    public void adaptsTheLimitWithAimd() throws Exception
+    {
+        final KM200HttpSettings settings = settings(8, true, 0);
+        settings.setInitialConcurrency(2);
+        final KM200Limiter limiter = new KM200Limiter(settings);
+        final Deque<Long> started = new ArrayDeque<>();
+        assertEquals(2, limiter.getLimit());
+        // about one more per round of requests
+        for (int i = 0; i < 2 + 3 + 1; i++)
+        {
+            saturatedRelease(limiter, started);
+        }
+        assertEquals(4, limiter.getLimit());
+        limiter.release(started.removeFirst(), KM200Limiter.Outcome.OVERLOAD);
+        assertEquals(2, limiter.getLimit());
+        limiter.release(started.removeFirst(), KM200Limiter.Outcome.IGNORE);
+        assertEquals(2, limiter.getLimit());
+        assertEquals(1, limiter.getDecreaseCount());
+        for (int i = 0; i < 1000; i++)
+        {
+            saturatedRelease(limiter, started);
+        }
+        assertEquals(8, limiter.getLimit());
+    }
+
+    @Test
+    public void requestsBelowTheLimitDoNotRaiseIt() throws Exception
+    {
+        final KM200HttpSettings settings = settings(8, true, 0);
+        settings.setInitialConcurrency(2);
+        final KM200Limiter limiter = new KM200Limiter(settings);
+        // a sequential poller
+        for (int i = 0; i < 1000; i++)
+        {
+            limiter.release(limiter.acquire(), KM200Limiter.Outcome.SUCCESS);
+        }
+        assertEquals(2, limiter.getLimit());
+        // one request in flight besides the one ending is still below a limit of 3 and more
+        final Deque<Long> started = new ArrayDeque<>();
+        for (int i = 0; i < 3; i++)
+        {
+            saturatedRelease(limiter, started);
+        }
+        assertEquals(3, limiter.getLimit());
+        while (!started.isEmpty())
+        {
+            limiter.release(started.removeFirst(), KM200Limiter.Outcome.IGNORE);
+        }
+        for (int i = 0; i < 1000; i++)
+        {
+            final long first = limiter.acquire();
+            limiter.release(limiter.acquire(), KM200Limiter.Outcome.SUCCESS);
+            limiter.release(first, KM200Limiter.Outcome.SUCCESS);
+        }
+        assertEquals(3, limiter.getLimit());
+    }
+
+    @Test
+    public void requestsStartedBeforeADecreaseDoNotDecreaseAgain() throws Exception
+    {
+        final KM200Limiter limiter = new KM200Limiter(settings(8, true, 0));
+        final long first = limiter.acquire();
+        final long second = limiter.acquire();
+        limiter.release(first, KM200Limiter.Outcome.OVERLOAD);
+        limiter.release(second, KM200Limiter.Outcome.OVERLOAD);
+        assertEquals(4, limiter.getLimit());
+        assertEquals(1, limiter.getDecreaseCount());
+    }
+
+    @Test
+    public void capsTheRequestRate() throws Exception
+    {
+        final KM200Limiter limiter = new KM200Limiter(settings(4, false, 20));
+        final long start = System.nanoTime();
+        for (int i = 0; i < 5; i++)
+        {
+            limiter.release(limiter.acquire(), KM200Limiter.Outcome.SUCCESS);
+        }
+        // the first request starts at once, each further one 50 ms later
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(195));
+    }
+}
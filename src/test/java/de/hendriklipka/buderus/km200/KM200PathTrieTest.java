@@ -0,0 +1,222 @@
+package de.hendriklipka.buderus.km200;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class KM200PathTrieTest
+{
+    private static final List<String> PATHS = Arrays.asList(
+            "/system",
+            "/system/sensors",
+            "/system/sensors/temperatures",
+            "/system/sensors/temperatures/outdoor_t1",
+            "/system/sensors/temperatures/supply_t1",
+            "/system/sensors/temperatures/supply_t1_setpoint",
+            "/system/sensors/temperatures/return",
+            "/heatingCircuits",
+            "/heatingCircuits/hc1",
+            "/heatingCircuits/hc1/roomtemperature",
+            "/heatingCircuits/hc1/supplyTemperatureSetpoint",
+            "/heatingCircuits/hc1/temperatureLevels/comfort2",
+            "/heatingCircuits/hc2/roomtemperature",
+            "/heatingCircuits/hc2/temperatureLevels/comfort2",
+            "/heatingCircuits/hc10/roomtemperature",
+            "/dhwCircuits/dhw1/actualTemp",
+            "/recordings/system/sensors/temperatures/outdoor_t1");
+
+    private static KM200PathTrie<String> trie()
+    {
+        final KM200PathTrie<String> trie = new KM200PathTrie<>();
+        // not in path order, the trie sorts them
+        final List<String> shuffled = new ArrayList<>(PATHS);
+        Collections.reverse(shuffled);
+        for (String path : shuffled)
+        {
+            trie.put(path, "value of " + path);
+        }
+        return trie;
+    }
+
+    @Test
+    public void exactLookups()
+    {
+        final KM200PathTrie<String> trie = trie();
+        assertEquals(PATHS.size(), trie.size());
+        for (String path : PATHS)
+        {
+            assertEquals("value of " + path, trie.get(path));
+        }
+        assertEquals("value of /system/sensors", trie.get("system/sensors/"));
+        assertNull(trie.get("/heatingCircuits/hc1/temperatureLevels"));
+        assertNull(trie.get("/heatingCircuits/hc3"));
+        assertNull(trie.get("/"));
+        trie.put("/system", "replaced");
+        assertEquals("replaced", trie.get("/system"));
+        assertEquals(PATHS.size(), trie.size());
+    }
+
+    @Test
+    public void subtreeInPathOrder()
+    {
+        final List<String> paths = new ArrayList<>();
+        trie().subtree("/heatingCircuits/hc1", (path, value) -> paths.add(path));
+        assertEquals(Arrays.asList("/heatingCircuits/hc1", "/heatingCircuits/hc1/roomtemperature",
+                "/heatingCircuits/hc1/supplyTemperatureSetpoint", "/heatingCircuits/hc1/temperatureLevels/comfort2"), paths);
+
+        final List<String> all = new ArrayList<>();
+        trie().subtree("/", (path, value) -> all.add(path));
+        final List<String> sorted = new ArrayList<>(PATHS);
+        Collections.sort(sorted);
+        assertEquals(sorted, all);
+    }
+
+    @Test
+    public void findPrefixForBlacklists()
+    {
+        final KM200PathTrie<Boolean> blacklist = new KM200PathTrie<>();
+        blacklist.put("/recordings", true);
+        blacklist.put("/heatingCircuits/*/temperatureLevels", true);
+        assertTrue(blacklist.findPrefix("/recordings"));
+        assertTrue(blacklist.findPrefix("/recordings/system/sensors"));
+        assertTrue(blacklist.findPrefix("/heatingCircuits/hc2/temperatureLevels/comfort2"));
+        assertNull(blacklist.findPrefix("/heatingCircuits/hc2/roomtemperature"));
+        assertNull(blacklist.findPrefix("/heatingCircuits"));
+        assertNull(blacklist.findPrefix("/recordingsX"));
+    }
+
+    @Test
+    public void wildcardSegments()
+    {
+        final KM200PathTrie<String> trie = trie();
+        assertEquals(Arrays.asList("/heatingCircuits/hc1/roomtemperature", "/heatingCircuits/hc10/roomtemperature",
+                "/heatingCircuits/hc2/roomtemperature"), trie.match("/heatingCircuits/*/roomtemperature"));
+        assertEquals(Arrays.asList("/heatingCircuits/hc1/roomtemperature", "/heatingCircuits/hc10/roomtemperature"),
+                trie.match("/heatingCircuits/hc1*/roomtemperature"));
+        assertEquals(Arrays.asList("/system/sensors/temperatures/supply_t1", "/system/sensors/temperatures/supply_t1_setpoint"),
+                trie.match("/system/sensors/temperatures/supply*"));
+        assertEquals(Arrays.asList("/system/sensors/temperatures/outdoor_t1", "/system/sensors/temperatures/supply_t1"),
+                trie.match("/system/sensors/temperatures/*_t1"));
+        assertEquals(Arrays.asList("/heatingCircuits", "/system"), trie.match("/*"));
+        assertEquals(Collections.singletonList("/system/sensors"), trie.match("/system/sensors"));
+        assertTrue(trie.match("/heatingCircuits/*/temperatureLevels").isEmpty());
+    }
+
+    @Test
+    public void anyDepth()
+    {
+        final KM200PathTrie<String> trie = trie();
+        assertEquals(Arrays.asList("/recordings/system/sensors/temperatures/outdoor_t1", "/system/sensors/temperatures/outdoor_t1"),
+                trie.match("/**/outdoor_t1"));
+        // '**' also matches no segment at all
+        assertEquals(Arrays.asList("/heatingCircuits/hc1/temperatureLevels/comfort2", "/heatingCircuits/hc2/temperatureLevels/comfort2"),
+                trie.match("/heatingCircuits/**/temperatureLevels/comfort2"));
+        assertEquals(Collections.singletonList("/system/sensors/temperatures"), trie.match("/system/**/sensors/**/temperatures"));
+        assertEquals(Arrays.asList("/dhwCircuits/dhw1/actualTemp"), trie.match("/dhwCircuits/**"));
+        assertEquals(PATHS.size(), trie.match("/**").size());
+    }
+
+    @Test
+    public void patternsMatchLikeAReferenceMatcher()
+    {
+        final KM200PathTrie<String> trie = trie();
+        for (String pattern : Arrays.asList("/**", "/*", "/*/*", "/**/*", "/*/**", "/**/**", "/**/**/outdoor_t1", "/**/sensors/**",
+                "/**/temperatures/**", "/**/*/**/roomtemperature", "/heatingCircuits/**/*", "/**/hc*/**", "/**/*_t1*",
+                "/system/**/temperatures/**/outdoor_t1", "/**/system/**/sensors/**", "/*/**/*", "/nothing/**", "/**/nothing"))
+        {
+            final List<String> expected = new ArrayList<>();
+            for (String path : PATHS)
+            {
+                if (matches(KM200PathTrie.segments(pattern), 0, KM200PathTrie.segments(path), 0))
+                {
+                    expected.add(path);
+                }
+            }
+            Collections.sort(expected);
+            assertEquals(pattern, expected, trie.match(pattern));
+        }
+    }
+
+    @Test
+    public void eachPathIsMatchedOnce()
+    {
+        final KM200PathTrie<String> trie = new KM200PathTrie<>();
+        for (String path : Arrays.asList("/b", "/b/b", "/b/b/b", "/b/b/b/b", "/a/b/a/b"))
+        {
+            trie.put(path, path);
+        }
+        assertEquals(Arrays.asList("/a/b/a/b", "/b", "/b/b", "/b/b/b", "/b/b/b/b"), trie.match("/**/b/**"));
+        assertEquals(Arrays.asList("/a/b/a/b", "/b", "/b/b", "/b/b/b", "/b/b/b/b"), trie.match("/**/b"));
+        assertEquals(Arrays.asList("/a/b/a/b", "/b/b", "/b/b/b", "/b/b/b/b"), trie.match("/**/b/**/b/**"));
+        assertEquals(Arrays.asList("/a/b/a/b", "/b/b", "/b/b/b", "/b/b/b/b"), trie.match("/**/**/*/b"));
+    }
+
+    @Test
+    public void matchPassesTheValues()
+    {
+        final Map<String, String> matched = new LinkedHashMap<>();
+        trie().match("/heatingCircuits/hc2/**", matched::put);
+        final Map<String, String> expected = new TreeMap<>();
+        expected.put("/heatingCircuits/hc2/roomtemperature", "value of /heatingCircuits/hc2/roomtemperature");
+        expected.put("/heatingCircuits/hc2/temperatureLevels/comfort2", "value of /heatingCircuits/hc2/temperatureLevels/comfort2");
+        assertEquals(expected, matched);
+    }
+
+    @Test
+    public void globs()
+    {
+        assertTrue(KM200PathTrie.globMatches("hc*", "hc1"));
+        assertTrue(KM200PathTrie.globMatches("hc*", "hc"));
+        assertTrue(KM200PathTrie.globMatches("*", ""));
+        assertTrue(KM200PathTrie.globMatches("*_t1", "outdoor_t1"));
+        assertTrue(KM200PathTrie.globMatches("s*y*_t*", "supply_t1"));
+        assertTrue(KM200PathTrie.globMatches("a**b", "ab"));
+        assertTrue(KM200PathTrie.globMatches("exact", "exact"));
+        assertFalse(KM200PathTrie.globMatches("hc*", "dhw1"));
+        assertFalse(KM200PathTrie.globMatches("*_t1", "supply_t1_setpoint"));
+        assertFalse(KM200PathTrie.globMatches("exact", "exactly"));
+        assertFalse(KM200PathTrie.globMatches("a*b*c", "acb"));
+    }
+
+    @Test
+    public void segmentsIgnoreEmptyParts()
+    {
+        assertEquals(Arrays.asList("a", "b"), KM200PathTrie.segments("//a///b/"));
+        assertTrue(KM200PathTrie.segments("/").isEmpty());
+        assertTrue(KM200PathTrie.segments("").isEmpty());
+    }
+
+    /**
+     * The reference: a plain recursive matcher over the segments of one path.
+     */
+    private static boolean matches(final List<String> pattern, final int p, final List<String> path, final int s)
+    {
+        if (p == pattern.size())
+        {
+            return s == path.size();
+        }
+        if (KM200PathTrie.ANY_DEPTH.equals(pattern.get(p)))
+        {
+            for (int skip = s; skip <= path.size(); skip++)
+            {
+                if (matches(pattern, p + 1, path, skip))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return s < path.size() && KM200PathTrie.globMatches(pattern.get(p), path.get(s)) && matches(pattern, p + 1, path, s + 1);
+    }
+}
@@ -0,0 +1,89 @@
+package de.hendriklipka.buderus.km200;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class KM200ServiceCacheTest
+{
+    private static final KM200ServiceCache.GatewayIdentity IDENTITY = new KM200ServiceCache.GatewayIdentity("uuid-1", "04.08.02");
+
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder();
+
+    private static Map<String, KM200CommObject> services()
+    {
+        final Map<String, KM200CommObject> services = new HashMap<>();
+        final KM200CommObject outdoor = new KM200CommObject("/system/sensors/temperatures/outdoor_t1", "floatValue", 1, 0, 0);
+        outdoor.setFloatValue(7.5f);
+        outdoor.setRange(-20, 30.5f);
+        services.put(outdoor.getFullServiceName(), outdoor);
+        final KM200CommObject mode = new KM200CommObject("/heatingCircuits/hc1/operationMode", "stringValue", 1, 1, 0);
+        mode.setValue("auto");
+        mode.setAllowedValues(Arrays.asList("manual", "auto"));
+        services.put(mode.getFullServiceName(), mode);
+        return services;
+    }
+
+    @Test
+    public void savedServicesAreLoadedAgain() throws IOException
+    {
+        final KM200ServiceCache cache = new KM200ServiceCache(_folder.newFolder());
+        cache.save(IDENTITY, services());
+        final Map<String, KM200CommObject> loaded = cache.load(IDENTITY);
+        assertNotNull(loaded);
+        assertEquals(2, loaded.size());
+        final KM200CommObject outdoor = loaded.get("/system/sensors/temperatures/outdoor_t1");
+        assertEquals(7.5f, outdoor.getFloatValue(), 0);
+        assertEquals(-20f, outdoor.getMinValue(), 0);
+        assertEquals(30.5f, outdoor.getMaxValue(), 0);
+        final KM200CommObject mode = loaded.get("/heatingCircuits/hc1/operationMode");
+        assertEquals("auto", mode.getValue());
+        assertTrue(mode.isWriteable());
+        assertEquals(Arrays.asList("manual", "auto"), mode.getAllowedValues());
+
+        // another gateway, or another firmware of the same one
+        assertNull(cache.load(new KM200ServiceCache.GatewayIdentity("uuid-1", "05.01.00")));
+    }
+
+    /* a range beyond the float range ends up infinite, and JSON has no infinity */
+    @Test
+    public void nonFiniteValuesAndRangesAreSaved() throws IOException
+    {
+        final KM200ServiceCache cache = new KM200ServiceCache(_folder.newFolder());
+        final Map<String, KM200CommObject> services = services();
+        final KM200CommObject outdoor = services.get("/system/sensors/temperatures/outdoor_t1");
+        outdoor.setFloatValue(Float.NaN);
+        outdoor.setRange((float) -1e39, Float.POSITIVE_INFINITY);
+        cache.save(IDENTITY, services);
+
+        final KM200CommObject loaded = cache.load(IDENTITY).get(outdoor.getFullServiceName());
+        assertTrue(Float.isNaN(loaded.getFloatValue()));
+        assertTrue(loaded.hasRange());
+        assertEquals(Float.NEGATIVE_INFINITY, loaded.getMinValue(), 0);
+        assertEquals(Float.POSITIVE_INFINITY, loaded.getMaxValue(), 0);
+    }
+
+    @Test
+    public void aFailedSaveIsNotAnError() throws IOException
+    {
+        // the directory cannot be created, there is a file in its place
+        final File blocked = _folder.newFile();
+        final KM200ServiceCache cache = new KM200ServiceCache(blocked);
+        cache.save(IDENTITY, services());
+        assertNull(cache.load(IDENTITY));
+        assertFalse(blocked.isDirectory());
+    }
+}
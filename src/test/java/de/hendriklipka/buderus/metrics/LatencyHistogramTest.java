@@ -0,0 +1,131 @@
+package de.hendriklipka.buderus.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest
+{
+    @Test
+    public void everyValueIsWithinTheBoundsOfItsBucket()
+    {
+        final Random random = new Random(42);
+        for (int i = 0; i < 100000; i++)
+        {
+            final long value = i < 1000 ? i : random.nextLong() >>> (1 + random.nextInt(63));
+            final int index = LatencyHistogram.bucketIndex(value);
+            final long upper = LatencyHistogram.bucketUpperBound(index);
+            final long lower = 0 == index ? 0 : LatencyHistogram.bucketUpperBound(index - 1) + 1;
+            assertTrue(value + " <= " + upper, value <= upper);
+            assertTrue(value + " >= " + lower, value >= lower);
+            // within 25% of the value
+            assertTrue(value + " in bucket up to " + upper, upper - value <= value / 4);
+        }
+    }
+
+    @Test
+    public void bucketsCoverAllValuesWithoutGaps()
+    {
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketIndex(Long.MAX_VALUE)));
+        for (int index = 1; index <= LatencyHistogram.bucketIndex(Long.MAX_VALUE); index++)
+        {
+            final long lower = LatencyHistogram.bucketUpperBound(index - 1) + 1;
+            assertEquals(index, LatencyHistogram.bucketIndex(lower));
+            assertEquals(index, LatencyHistogram.bucketIndex(LatencyHistogram.bucketUpperBound(index)));
+        }
+    }
+
+    @Test
+    public void emptyHistogram()
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMean(), 0);
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getP99());
+    }
+
+    @Test
+    public void countMeanMaxAndPercentiles()
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int value = 1; value <= 1000; value++)
+        {
+            histogram.record(value);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500.5, histogram.getMean(), 1e-9);
+        assertEquals(1000, histogram.getMax());
+        assertPercentile(500, histogram.getP50());
+        assertPercentile(900, histogram.getP90());
+        assertPercentile(990, histogram.getP99());
+        assertEquals(1, histogram.getPercentile(0));
+        assertEquals(1000, histogram.getPercentile(100));
+    }
+
+    private static void assertPercentile(final long expected, final long actual)
+    {
+        assertTrue(actual + " >= " + expected, actual >= expected);
+        assertTrue(actual + " within 25% of " + expected, actual <= expected * 5 / 4);
+    }
+
+    @Test
+    public void percentileIsNotAboveTheMaximum()
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1025);
+        assertEquals(1025, histogram.getP50());
+    }
+
+    @Test
+    public void recordsNanosAsMicrosAndNegativeValuesAsZero()
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordNanos(2_500_000);
+        histogram.record(-5);
+        assertEquals(2, histogram.getCount());
+        assertEquals(2500, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void resetClearsEverything()
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(100);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        histogram.record(7);
+        assertEquals(7, histogram.getP99());
+    }
+
+    @Test
+    public void concurrentRecordingLosesNoValues() throws InterruptedException
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++)
+        {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 50000; i++)
+                {
+                    histogram.record(i % 100);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        assertEquals(200000, histogram.getCount());
+        assertEquals(49.5, histogram.getMean(), 1e-9);
+        assertEquals(99, histogram.getMax());
+    }
+}